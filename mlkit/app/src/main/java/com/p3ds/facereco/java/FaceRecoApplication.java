@@ -0,0 +1,31 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java;
+
+import android.app.Application;
+
+import com.p3ds.facereco.java.facerecognition.ModelManager;
+
+/**
+ * Starts loading the recognition model as soon as the process starts, so that it is ready by the
+ * time the camera delivers the first face.
+ */
+public class FaceRecoApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ModelManager.getInstance().preload(this);
+    }
+}
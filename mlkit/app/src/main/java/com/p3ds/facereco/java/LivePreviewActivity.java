@@ -33,9 +33,12 @@ import android.widget.CompoundButton;
 import com.google.android.gms.common.annotation.KeepName;
 import com.p3ds.facereco.R;
 import com.p3ds.facereco.java.facedetection.FaceDetectionProcessor;
+import com.p3ds.facereco.java.facerecognition.ModelManager;
+import com.p3ds.facereco.java.processing.BatteryConditionSource;
 import com.p3ds.facereco.java.processing.CameraSource;
 import com.p3ds.facereco.java.processing.CameraSourcePreview;
 import com.p3ds.facereco.java.processing.GraphicOverlay;
+import com.p3ds.facereco.java.processing.ThrottlingPolicy;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -57,6 +60,10 @@ public final class LivePreviewActivity extends AppCompatActivity
     private CameraSourcePreview preview;
     private GraphicOverlay graphicOverlay;
 
+    // Set on the main thread, read by the throttling policy
+    private volatile FaceDetectionProcessor faceDetectionProcessor;
+    private ThrottlingPolicy throttlingPolicy;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -74,6 +81,7 @@ public final class LivePreviewActivity extends AppCompatActivity
         if (graphicOverlay == null) {
             Log.d(TAG, "graphicOverlay is null");
         }
+        throttlingPolicy = new ThrottlingPolicy(new BatteryConditionSource(this), this::applyThrottling);
 
         // TODO Toggle Button
 
@@ -122,12 +130,35 @@ public final class LivePreviewActivity extends AppCompatActivity
             cameraSource = new CameraSource(this, graphicOverlay);
         }
         try {
-            cameraSource.setMachineLearningFrameProcessor(new FaceDetectionProcessor(this));
+            FaceDetectionProcessor processor = new FaceDetectionProcessor(this);
+            ThrottlingPolicy.Level level = throttlingPolicy.getLevel();
+            if (level != null) {
+                applyThrottling(processor, level);
+            }
+            cameraSource.setMachineLearningFrameProcessor(processor);
+            faceDetectionProcessor = processor;
         } catch (IOException e) {
             Log.e(TAG, "Cannot create the face recognition processor.");
         }
     }
 
+    /**
+     * Applies a throttling level to the recognition model and to the current processor.
+     */
+    private void applyThrottling(ThrottlingPolicy.Level level) {
+        ModelManager.getInstance().setNumThreads(level.getNumThreads());
+        FaceDetectionProcessor processor = faceDetectionProcessor;
+        if (processor != null) {
+            applyThrottling(processor, level);
+        }
+    }
+
+    private static void applyThrottling(FaceDetectionProcessor processor, ThrottlingPolicy.Level level) {
+        processor.setMaxFrameRate(level.getMaxFrameRate());
+        processor.setRecognitionIntervalMs(level.getRecognitionIntervalMs());
+        processor.setSkipIdentifiedTracks(level.isSkipIdentifiedTracks());
+    }
+
     /**
      * Starts or restarts the camera source, if it exists. If the camera source doesn't exist yet
      * (e.g., because onResume was called before the camera source was created), this will be called
@@ -155,6 +186,9 @@ public final class LivePreviewActivity extends AppCompatActivity
     public void onResume() {
         super.onResume();
         Log.d(TAG, "onResume");
+        // Picks up models installed while the app was in the background, without pausing
+        ModelManager.getInstance().checkForUpdate();
+        throttlingPolicy.start();
         startCameraSource();
     }
 
@@ -164,6 +198,7 @@ public final class LivePreviewActivity extends AppCompatActivity
     @Override
     protected void onPause() {
         super.onPause();
+        throttlingPolicy.stop();
         preview.stop();
     }
 
@@ -14,24 +14,38 @@
 package com.p3ds.facereco.java;
 
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
 import android.media.Image;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+import com.p3ds.facereco.java.processing.FrameDropStats;
 import com.p3ds.facereco.java.processing.FrameMetadata;
+import com.p3ds.facereco.java.processing.FramePixels;
 import com.p3ds.facereco.java.processing.GraphicOverlay;
 import com.p3ds.facereco.java.processing.VisionImageProcessor;
+import com.p3ds.facereco.java.processing.YuvPlanes;
 
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract base class for ML Kit frame processors. Subclasses need to implement {@link
  * #onSuccess(FirebaseVisionImage, T, FrameMetadata, GraphicOverlay)} to define what they want to with the detection
  * results and {@link #detectInImage(FirebaseVisionImage)} to specify the detector object.
  *
+ * <p>Camera frames past their deadline (see {@link FrameMetadata#getDeadlineMs()}) are not
+ * detected, and detections finishing after it are discarded instead of handed to {@code onSuccess}.
+ * Every dropped frame is counted in {@link #getDropStats()} by the stage that dropped it.
+ *
+ * <p>The rate camera frames are detected at can be limited with {@link #setMaxFrameRate(float)};
+ * frames skipped for it are not counted as dropped.
+ *
  * @param <T> The type of the detected feature.
  */
 public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
@@ -40,14 +54,64 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
     // the model can handle.
     private final AtomicBoolean shouldThrottle = new AtomicBoolean(false);
 
+    // Frames dropped for any reason since the last call to takeDroppedFrameCount()
+    private final AtomicInteger droppedFrames = new AtomicInteger();
+
+    private final FrameDropStats dropStats;
+
+    // Sequence number of the last frame received, only touched by the processing thread
+    private long lastSequence = -1;
+
+    // Minimum time between the captures of two detected frames, 0 for none
+    private volatile long minFrameIntervalMs;
+
+    // Capture time of the last frame detected, only touched by the processing thread
+    private long lastDetectedCaptureMs = -1;
+
     public VisionProcessorBase() {
+        this("camera");
     }
 
+    /**
+     * @param name name of the camera in the drop stats logs
+     */
+    protected VisionProcessorBase(String name) {
+        dropStats = new FrameDropStats(name);
+    }
+
+    /**
+     * Processes a frame whose buffer is not reused before detection completes.
+     */
     @Override
     public void process(
             ByteBuffer data, final FrameMetadata frameMetadata, final GraphicOverlay
             graphicOverlay) {
+        process(data, frameMetadata, graphicOverlay, () -> {
+        });
+    }
+
+    /**
+     * Processes a camera frame, holding on to its buffer until the detection results have been
+     * handed to {@link #onSuccess(FirebaseVisionImage, Object, FrameMetadata, GraphicOverlay,
+     * FramePixels)} with the frame. Dropped frames are released right away.
+     */
+    @Override
+    public void process(
+            ByteBuffer data, final FrameMetadata frameMetadata, final GraphicOverlay
+            graphicOverlay, Runnable release) {
+        countSkippedFrames(frameMetadata.getSequence());
+        if (isAheadOfFrameRate(frameMetadata.getCaptureTimeMs())) {
+            release.run();
+            return;
+        }
         if (shouldThrottle.get()) {
+            drop(FrameDropStats.Stage.THROTTLE);
+            release.run();
+            return;
+        }
+        if (frameMetadata.isExpired(SystemClock.elapsedRealtime())) {
+            drop(FrameDropStats.Stage.DETECTION_QUEUE);
+            release.run();
             return;
         }
         FirebaseVisionImageMetadata metadata =
@@ -58,51 +122,138 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
                         .setRotation(frameMetadata.getRotation())
                         .build();
 
-        detectInVisionImage(
-                FirebaseVisionImage.fromByteBuffer(data, metadata), frameMetadata, graphicOverlay);
+        lastDetectedCaptureMs = frameMetadata.getCaptureTimeMs();
+        detectInVisionImage(FirebaseVisionImage.fromByteBuffer(data, metadata), frameMetadata,
+                graphicOverlay, new FramePixels(data, frameMetadata, release));
+    }
+
+    /**
+     * Counts the frames the camera source replaced by newer ones before they were processed.
+     */
+    private void countSkippedFrames(long sequence) {
+        if (sequence < 0) {
+            return;
+        }
+        if (lastSequence >= 0 && sequence > lastSequence + 1) {
+            int skipped = (int) (sequence - lastSequence - 1);
+            dropStats.record(FrameDropStats.Stage.CAPTURE, skipped);
+            droppedFrames.addAndGet(skipped);
+        }
+        lastSequence = sequence;
+    }
+
+    /**
+     * Limits the rate camera frames are detected at, e.g. to keep the device cool.
+     *
+     * @param maxFrameRate frames per second, 0 for every frame the camera delivers
+     */
+    public void setMaxFrameRate(float maxFrameRate) {
+        minFrameIntervalMs = maxFrameRate > 0 ? (long) (1000 / maxFrameRate) : 0;
     }
 
-    // Bitmap version
+    /**
+     * Whether a frame comes too soon after the last detected one for the frame rate limit, in
+     * which case it is skipped on purpose rather than dropped.
+     */
+    private boolean isAheadOfFrameRate(long captureTimeMs) {
+        long interval = minFrameIntervalMs;
+        return interval > 0 && lastDetectedCaptureMs >= 0
+                && captureTimeMs - lastDetectedCaptureMs < interval;
+    }
+
+    private void drop(FrameDropStats.Stage stage) {
+        dropStats.record(stage);
+        droppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Detects features in an upright bitmap, handed to {@link #onSuccess(FirebaseVisionImage,
+     * Object, FrameMetadata, GraphicOverlay, FramePixels)} as the frame. The bitmap must not be
+     * recycled before the results have been consumed.
+     */
     @Override
     public void process(Bitmap bitmap, final GraphicOverlay
             graphicOverlay) {
         if (shouldThrottle.get()) {
+            drop(FrameDropStats.Stage.THROTTLE);
             return;
         }
-        detectInVisionImage(FirebaseVisionImage.fromBitmap(bitmap), null, graphicOverlay);
+        FrameMetadata frameMetadata =
+                new FrameMetadata.Builder().setWidth(bitmap.getWidth()).setHeight(bitmap.getHeight()).build();
+        detectInVisionImage(FirebaseVisionImage.fromBitmap(bitmap), frameMetadata, graphicOverlay,
+                new FramePixels(bitmap, frameMetadata, () -> {
+                }));
     }
 
     /**
-     * Detects feature from given media.Image
+     * Detects feature from given media.Image, which is not closed before detection completes.
      */
     @Override
     public void process(Image image, int rotation, final GraphicOverlay graphicOverlay) {
+        process(image, rotation, graphicOverlay, () -> {
+        });
+    }
+
+    /**
+     * Detects features in an image, holding on to its planes until the results have been
+     * handed to {@link #onSuccess(FirebaseVisionImage, Object, FrameMetadata, GraphicOverlay,
+     * FramePixels)} with the frame, so that faces are cut out of the planes without copying the
+     * image. Dropped images are released right away.
+     */
+    @Override
+    public void process(Image image, int rotation, final GraphicOverlay graphicOverlay, Runnable release) {
         if (shouldThrottle.get()) {
+            drop(FrameDropStats.Stage.THROTTLE);
+            release.run();
             return;
         }
         // This is for overlay display's usage
         FrameMetadata frameMetadata =
                 new FrameMetadata.Builder().setWidth(image.getWidth()).setHeight(image.getHeight
-                        ()).build();
+                        ()).setRotation(rotation).build();
         FirebaseVisionImage fbVisionImage =
                 FirebaseVisionImage.fromMediaImage(image, rotation);
-        detectInVisionImage(fbVisionImage, frameMetadata, graphicOverlay);
+        // JPEG images are detected in but have no planes to cut faces from
+        YuvPlanes planes = image.getFormat() == ImageFormat.YUV_420_888 ? YuvPlanes.fromImage(image) : null;
+        detectInVisionImage(fbVisionImage, frameMetadata, graphicOverlay,
+                new FramePixels(planes, frameMetadata, release));
     }
 
+    /**
+     * @param frame pixels of the camera frame, image or bitmap, released once the results are
+     *              consumed
+     */
     private void detectInVisionImage(
             FirebaseVisionImage image,
             final FrameMetadata metadata,
-            final GraphicOverlay graphicOverlay) {
+            final GraphicOverlay graphicOverlay,
+            final FramePixels frame) {
         detectInImage(image)
                 .addOnSuccessListener(
                         results -> {
                             shouldThrottle.set(false);
-                            VisionProcessorBase.this.onSuccess(image, results, metadata,
-                                    graphicOverlay);
+                            try {
+                                long now = SystemClock.elapsedRealtime();
+                                dropStats.logIfDue(now);
+                                // Detection cannot be aborted, its late results are discarded instead
+                                if (metadata != null && metadata.isExpired(now)) {
+                                    drop(FrameDropStats.Stage.DETECTION);
+                                    return;
+                                }
+                                VisionProcessorBase.this.onSuccess(image, results, metadata,
+                                        graphicOverlay, frame);
+                            } finally {
+                                if (frame != null) {
+                                    frame.release();
+                                }
+                            }
                         })
                 .addOnFailureListener(
                         e -> {
                             shouldThrottle.set(false);
+                            if (frame != null) {
+                                frame.release();
+                            }
                             VisionProcessorBase.this.onFailure(e);
                         });
         // Begin throttling until this frame of input has been processed, either in onSuccess or
@@ -110,6 +261,22 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
         shouldThrottle.set(true);
     }
 
+    /**
+     * @return the number of frames dropped since the previous call, whether skipped, throttled or
+     * expired, i.e. how far the processing falls behind the camera
+     */
+    protected int takeDroppedFrameCount() {
+        return droppedFrames.getAndSet(0);
+    }
+
+    /**
+     * @return the drop counts of this processor, by stage. Subclasses record the faces and results
+     * they drop in it too.
+     */
+    public FrameDropStats getDropStats() {
+        return dropStats;
+    }
+
     @Override
     public void stop() {
     }
@@ -122,5 +289,21 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
             @NonNull FrameMetadata frameMetadata,
             @NonNull GraphicOverlay graphicOverlay);
 
+    /**
+     * Called with the pixels of the camera frame the results were detected in, which are released
+     * when this returns. Calls {@link #onSuccess(FirebaseVisionImage, Object, FrameMetadata,
+     * GraphicOverlay)} by default.
+     *
+     * @param frame pixels of the frame
+     */
+    protected void onSuccess(
+            FirebaseVisionImage image,
+            @NonNull T results,
+            @NonNull FrameMetadata frameMetadata,
+            @NonNull GraphicOverlay graphicOverlay,
+            @Nullable FramePixels frame) {
+        onSuccess(image, results, frameMetadata, graphicOverlay);
+    }
+
     protected abstract void onFailure(@NonNull Exception e);
 }
@@ -0,0 +1,114 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.events;
+
+/**
+ * A recognition event of the audit trail. Immutable.
+ */
+public class RecognitionEvent {
+
+    public enum Type {
+        /**
+         * A face appeared.
+         */
+        TRACK_START,
+        /**
+         * Best identity seen during the visit of a face, emitted once when the face leaves.
+         */
+        BEST_MATCH,
+        /**
+         * The face left.
+         */
+        TRACK_END
+    }
+
+    /**
+     * Identity ID of events that carry no identity.
+     */
+    public static final int NO_IDENTITY = -1;
+
+    private final Type type;
+    private final long timestampMs;
+    private final String streamName;
+    private final int cameraFacing;
+    private final int trackingId;
+    private final int identityId;
+    private final String identityName;
+    private final float confidence;
+
+    public RecognitionEvent(Type type, long timestampMs, String streamName, int cameraFacing, int trackingId,
+                            int identityId, String identityName, float confidence) {
+        this.type = type;
+        this.timestampMs = timestampMs;
+        this.streamName = streamName;
+        this.cameraFacing = cameraFacing;
+        this.trackingId = trackingId;
+        this.identityId = identityId;
+        this.identityName = identityName;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Creates an event without identity, i.e. a track start or end.
+     */
+    public static RecognitionEvent forTrack(Type type, long timestampMs, String streamName, int cameraFacing,
+                                            int trackingId) {
+        return new RecognitionEvent(type, timestampMs, streamName, cameraFacing, trackingId, NO_IDENTITY, null, 0);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return wall clock time of the event, in milliseconds since the epoch
+     */
+    public long getTimestampMs() {
+        return timestampMs;
+    }
+
+    /**
+     * @return the name of the camera stream that saw the face, which its tracking ID belongs to
+     */
+    public String getStreamName() {
+        return streamName;
+    }
+
+    /**
+     * @return the facing of the camera that saw the face, see {@link
+     * com.p3ds.facereco.java.processing.CameraSource#CAMERA_FACING_BACK}
+     */
+    public int getCameraFacing() {
+        return cameraFacing;
+    }
+
+    public int getTrackingId() {
+        return trackingId;
+    }
+
+    public int getIdentityId() {
+        return identityId;
+    }
+
+    /**
+     * @return the label of the identity, {@code null} for events without identity
+     */
+    public String getIdentityName() {
+        return identityName;
+    }
+
+    public float getConfidence() {
+        return confidence;
+    }
+}
@@ -0,0 +1,212 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.events;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of {@link RecognitionEvent}s, persisted as CSV segments in a directory. There is
+ * one log per process, shared by the cameras, so that a single writer rotates the segments; events
+ * tell the cameras apart by their stream name.
+ *
+ * <p>{@link #post(RecognitionEvent)} only enqueues the event on a lock-free queue. A background
+ * writer drains the queue every {@value #FLUSH_INTERVAL_MS} ms, appends the whole batch to the
+ * current segment and syncs it to disk once per batch. Segments are rotated once they exceed
+ * {@value #MAX_SEGMENT_BYTES} bytes and the oldest are deleted beyond {@value #MAX_SEGMENTS}.
+ *
+ * <p>Segments are named {@code events-<start time>.csv} and start with a header line:
+ *
+ * <pre>
+ * timestamp_ms,type,stream,camera,track,identity_id,identity,confidence
+ * </pre>
+ *
+ * Tracking IDs are only unique within a stream.
+ */
+public class RecognitionEventLog {
+
+    private static final String TAG = "RecognitionEventLog";
+
+    private static final long FLUSH_INTERVAL_MS = 2000;
+    private static final long MAX_SEGMENT_BYTES = 1024 * 1024;
+    private static final int MAX_SEGMENTS = 16;
+
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".csv";
+    private static final String HEADER = "timestamp_ms,type,stream,camera,track,identity_id,identity,confidence\n";
+
+    private static final RecognitionEventLog INSTANCE = new RecognitionEventLog();
+
+    private final Queue<RecognitionEvent> queue = new ConcurrentLinkedQueue<>();
+
+    // @GuardedBy("this")
+    private ScheduledExecutorService writer;
+
+    private volatile boolean open;
+
+    // Touched by the writer only
+    private File directory;
+    private final StringBuilder batch = new StringBuilder();
+    private FileOutputStream segment;
+    private long segmentBytes;
+
+    private RecognitionEventLog() {
+    }
+
+    public static RecognitionEventLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts logging into {@code directory}, created if needed. Does nothing if already open.
+     */
+    public synchronized void open(File directory) {
+        if (writer != null) {
+            return;
+        }
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "RecognitionEventLog"));
+        writer.execute(() -> this.directory = directory);
+        writer.scheduleWithFixedDelay(this::write, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        open = true;
+    }
+
+    /**
+     * Queues an event for persistence. Never blocks. Events posted before the log is opened are
+     * dropped.
+     */
+    public void post(RecognitionEvent event) {
+        if (open) {
+            queue.offer(event);
+        }
+    }
+
+    /**
+     * Writes out the queued events now rather than at the next flush, e.g. when a camera stops.
+     */
+    public synchronized void flush() {
+        if (writer != null) {
+            writer.execute(this::write);
+        }
+    }
+
+    private void write() {
+        RecognitionEvent event;
+        while ((event = queue.poll()) != null) {
+            append(event);
+        }
+        if (batch.length() == 0) {
+            return;
+        }
+        try {
+            if (segment == null || segmentBytes >= MAX_SEGMENT_BYTES) {
+                rotate();
+            }
+            byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            segment.write(bytes);
+            // One sync per batch rather than per event
+            segment.getFD().sync();
+            segmentBytes += bytes.length;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write recognition events, dropping " + batch.length() + " chars.", e);
+            closeSegment();
+        }
+        batch.setLength(0);
+    }
+
+    private void append(RecognitionEvent event) {
+        batch.append(event.getTimestampMs()).append(',')
+                .append(event.getType().name().toLowerCase(Locale.US)).append(',');
+        appendQuoted(event.getStreamName());
+        batch.append(',').append(event.getCameraFacing()).append(',')
+                .append(event.getTrackingId()).append(',');
+        if (event.getIdentityId() != RecognitionEvent.NO_IDENTITY) {
+            batch.append(event.getIdentityId()).append(',');
+            appendQuoted(event.getIdentityName());
+            batch.append(',').append(event.getConfidence());
+        } else {
+            batch.append(",,");
+        }
+        batch.append('\n');
+    }
+
+    private void appendQuoted(String value) {
+        batch.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                batch.append('"');
+            }
+            batch.append(c);
+        }
+        batch.append('"');
+    }
+
+    private void rotate() throws IOException {
+        closeSegment();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, SEGMENT_PREFIX + System.currentTimeMillis() + SEGMENT_SUFFIX);
+        segment = new FileOutputStream(file, true);
+        segmentBytes = file.length();
+        if (segmentBytes == 0) {
+            byte[] header = HEADER.getBytes(StandardCharsets.UTF_8);
+            segment.write(header);
+            segmentBytes = header.length;
+        }
+        deleteOldSegments();
+    }
+
+    private void deleteOldSegments() {
+        File[] segments = directory.listFiles(
+                (dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null || segments.length <= MAX_SEGMENTS) {
+            return;
+        }
+        // Same name length until 2286, so names sort by start time
+        Arrays.sort(segments);
+        for (int i = 0; i < segments.length - MAX_SEGMENTS; ++i) {
+            if (!segments[i].delete()) {
+                Log.w(TAG, "Cannot delete old segment " + segments[i]);
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close segment", e);
+        }
+        segment = null;
+    }
+}
@@ -0,0 +1,410 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.events;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thumbnails of face crops, kept for audit and enrollment and keyed by stream, tracking ID and
+ * time. There is one cache per process, shared by the cameras, so that the budgets hold for the
+ * directory as a whole; tracking IDs are only unique within a stream.
+ *
+ * <p>Thumbnails are held in memory in LRU order up to a byte budget. Beyond it the least recently
+ * used thumbnails are spilled to the directory as WebP files by a background writer; the caller
+ * only scales the crop down. Files older than the maximum age are deleted, then the oldest ones
+ * while the directory exceeds its byte budget, after every spill and every
+ * {@value #TRIM_INTERVAL_MS} ms. {@link #flush()} spills everything still in memory.
+ *
+ * <p>Files are named {@code <stream>_<tracking ID>_<timestamp>.webp}, like the stream and track
+ * columns of the {@link RecognitionEventLog}, and survive restarts. Stream names must be valid in
+ * file names.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+
+    /**
+     * Longest side of a thumbnail in pixels, larger crops are scaled down.
+     */
+    private static final int MAX_SIDE = 128;
+
+    private static final int WEBP_QUALITY = 75;
+    private static final String SUFFIX = ".webp";
+    private static final long TRIM_INTERVAL_MS = 60 * 1000;
+
+    private static final ThumbnailCache INSTANCE = new ThumbnailCache();
+
+    /**
+     * Identifies a thumbnail. Ordered by time, then stream, then tracking ID.
+     */
+    public static final class Key implements Comparable<Key> {
+        private final String streamName;
+        private final int trackingId;
+        private final long timestampMs;
+
+        public Key(String streamName, int trackingId, long timestampMs) {
+            this.streamName = streamName;
+            this.trackingId = trackingId;
+            this.timestampMs = timestampMs;
+        }
+
+        public String getStreamName() {
+            return streamName;
+        }
+
+        public int getTrackingId() {
+            return trackingId;
+        }
+
+        /**
+         * @return wall clock time the crop was taken at
+         */
+        public long getTimestampMs() {
+            return timestampMs;
+        }
+
+        String getFileName() {
+            String prefix = streamName.isEmpty() ? "" : streamName + "_";
+            return prefix + trackingId + "_" + timestampMs + SUFFIX;
+        }
+
+        /**
+         * @return the key of a thumbnail file, {@code null} if the file is not a thumbnail. Files
+         * named before thumbnails had a stream get the empty stream, so that they are trimmed too.
+         */
+        static Key fromFileName(String name) {
+            int timeSeparator = name.lastIndexOf('_');
+            if (timeSeparator <= 0 || !name.endsWith(SUFFIX)) {
+                return null;
+            }
+            int trackSeparator = name.lastIndexOf('_', timeSeparator - 1);
+            try {
+                return new Key(trackSeparator < 0 ? "" : name.substring(0, trackSeparator),
+                        Integer.parseInt(name.substring(trackSeparator + 1, timeSeparator)),
+                        Long.parseLong(name.substring(timeSeparator + 1, name.length() - SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int byTime = Long.compare(timestampMs, other.timestampMs);
+            if (byTime != 0) {
+                return byTime;
+            }
+            int byStream = streamName.compareTo(other.streamName);
+            return byStream != 0 ? byStream : Integer.compare(trackingId, other.trackingId);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).streamName.equals(streamName)
+                    && ((Key) other).trackingId == trackingId && ((Key) other).timestampMs == timestampMs;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * streamName.hashCode() + trackingId) + Long.hashCode(timestampMs);
+        }
+
+        @Override
+        public String toString() {
+            return "stream " + streamName + " track " + trackingId + " at " + timestampMs;
+        }
+    }
+
+    // Set once when opened, before the writer is published
+    private File directory;
+    private long maxMemoryBytes;
+    private long maxDiskBytes;
+    private long maxAgeMs;
+    // Null until opened, never shut down
+    private volatile ScheduledExecutorService writer;
+
+    // @GuardedBy("this"), in access order
+    private final LinkedHashMap<Key, Bitmap> memory = new LinkedHashMap<>(16, 0.75f, true);
+    // @GuardedBy("this")
+    private long memoryBytes;
+    // @GuardedBy("this"), evicted from memory and not written yet
+    private final Map<Key, Bitmap> spilling = new HashMap<>();
+    // @GuardedBy("this"), file sizes in time order
+    private final TreeMap<Key, Long> disk = new TreeMap<>();
+    // @GuardedBy("this")
+    private long diskBytes;
+
+    private ThumbnailCache() {
+    }
+
+    public static ThumbnailCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts keeping thumbnails. Does nothing if already open, the budgets of the first caller
+     * hold.
+     *
+     * @param directory      directory of the spilled thumbnails, created if needed. Thumbnails
+     *                       already in it are picked up.
+     * @param maxMemoryBytes budget of the thumbnails in memory
+     * @param maxDiskBytes   budget of the thumbnail files
+     * @param maxAgeMs       thumbnails older than this are deleted
+     */
+    public synchronized void open(File directory, long maxMemoryBytes, long maxDiskBytes, long maxAgeMs) {
+        if (writer != null) {
+            return;
+        }
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxAgeMs = maxAgeMs;
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+                runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "ThumbnailCache"));
+        writer.execute(this::loadIndex);
+        writer.scheduleWithFixedDelay(this::trim, TRIM_INTERVAL_MS, TRIM_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.writer = writer;
+    }
+
+    /**
+     * Keeps an upright thumbnail of a crop. Only scales and turns the crop, encoding happens in the
+     * background. Crops put before the cache is opened are dropped.
+     *
+     * @param streamName name of the camera the crop comes from
+     * @param crop       pixels of the face, not modified and still owned by the caller
+     * @param rotation   quarter turns clockwise that turn {@code crop} upright
+     * @return the key of the thumbnail
+     */
+    public Key put(String streamName, int trackingId, long timestampMs, Bitmap crop, int rotation) {
+        Key key = new Key(streamName, trackingId, timestampMs);
+        if (writer == null) {
+            return key;
+        }
+        Bitmap thumbnail = scale(crop, rotation & 3);
+        List<Map.Entry<Key, Bitmap>> evicted = null;
+        synchronized (this) {
+            Bitmap previous = memory.put(key, thumbnail);
+            if (previous != null) {
+                memoryBytes -= previous.getByteCount();
+            }
+            memoryBytes += thumbnail.getByteCount();
+            Iterator<Map.Entry<Key, Bitmap>> it = memory.entrySet().iterator();
+            while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                Map.Entry<Key, Bitmap> eldest = it.next();
+                it.remove();
+                memoryBytes -= eldest.getValue().getByteCount();
+                spilling.put(eldest.getKey(), eldest.getValue());
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(eldest);
+            }
+        }
+        if (evicted != null) {
+            spillLater(evicted);
+        }
+        return key;
+    }
+
+    private void spillLater(List<Map.Entry<Key, Bitmap>> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Key, Bitmap> entry : entries) {
+            writer.execute(() -> spill(entry.getKey(), entry.getValue()));
+        }
+        writer.execute(this::trim);
+    }
+
+    private static Bitmap scale(Bitmap crop, int rotation) {
+        int width = crop.getWidth();
+        int height = crop.getHeight();
+        int longest = Math.max(width, height);
+        if (rotation == 0) {
+            if (longest <= MAX_SIDE) {
+                return crop.copy(Bitmap.Config.ARGB_8888, false);
+            }
+            return Bitmap.createScaledBitmap(crop, Math.max(1, width * MAX_SIDE / longest),
+                    Math.max(1, height * MAX_SIDE / longest), true);
+        }
+        // Scaled and turned in a single pass
+        float scale = Math.min(1.0f, (float) MAX_SIDE / longest);
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postRotate(90 * rotation);
+        return Bitmap.createBitmap(crop, 0, 0, width, height, matrix, true);
+    }
+
+    /**
+     * Reads a thumbnail, from memory or from its file. Decoding a file blocks, so reviewers should
+     * not call this on the UI thread.
+     *
+     * @return the thumbnail or {@code null} if it was evicted. Must not be recycled.
+     */
+    public Bitmap get(Key key) {
+        File file;
+        synchronized (this) {
+            Bitmap thumbnail = memory.get(key);
+            if (thumbnail == null) {
+                thumbnail = spilling.get(key);
+            }
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+            if (!disk.containsKey(key)) {
+                return null;
+            }
+            file = new File(directory, key.getFileName());
+        }
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    /**
+     * @return the keys of all thumbnails, newest first
+     */
+    public synchronized List<Key> getKeys() {
+        TreeSet<Key> keys = new TreeSet<>(disk.keySet());
+        keys.addAll(spilling.keySet());
+        keys.addAll(memory.keySet());
+        return new ArrayList<>(keys.descendingSet());
+    }
+
+    /**
+     * @return the keys of the thumbnails of a track of a camera, newest first
+     */
+    public List<Key> getKeys(String streamName, int trackingId) {
+        List<Key> keys = getKeys();
+        Iterator<Key> it = keys.iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            if (key.getTrackingId() != trackingId || !key.getStreamName().equals(streamName)) {
+                it.remove();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Spills all thumbnails held in memory, e.g. when a camera stops or before the process may be
+     * killed.
+     */
+    public void flush() {
+        List<Map.Entry<Key, Bitmap>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(memory.entrySet());
+            spilling.putAll(memory);
+            memory.clear();
+            memoryBytes = 0;
+        }
+        spillLater(entries);
+    }
+
+    private void loadIndex() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + directory);
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        synchronized (this) {
+            for (File file : files) {
+                Key key = Key.fromFileName(file.getName());
+                if (key != null && disk.put(key, file.length()) == null) {
+                    diskBytes += file.length();
+                }
+            }
+        }
+        trim();
+    }
+
+    private void spill(Key key, Bitmap thumbnail) {
+        File file = new File(directory, key.getFileName());
+        File temp = new File(directory, key.getFileName() + ".tmp");
+        boolean written = false;
+        try (OutputStream out = new FileOutputStream(temp)) {
+            written = thumbnail.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, out);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot spill thumbnail of " + key, e);
+        }
+        written = written && temp.renameTo(file);
+        if (!written && temp.exists() && !temp.delete()) {
+            Log.w(TAG, "Cannot delete " + temp);
+        }
+        synchronized (this) {
+            spilling.remove(key);
+            if (written) {
+                Long previous = disk.put(key, file.length());
+                diskBytes += file.length() - (previous != null ? previous : 0);
+            }
+        }
+    }
+
+    /**
+     * Deletes the files that are too old, then the oldest files beyond the byte budget. Thumbnails
+     * in memory past the maximum age are dropped too.
+     */
+    private void trim() {
+        long oldestKeptMs = System.currentTimeMillis() - maxAgeMs;
+        List<Key> deleted = new ArrayList<>();
+        synchronized (this) {
+            while (!disk.isEmpty()) {
+                Map.Entry<Key, Long> oldest = disk.firstEntry();
+                if (oldest.getKey().getTimestampMs() >= oldestKeptMs && diskBytes <= maxDiskBytes) {
+                    break;
+                }
+                disk.pollFirstEntry();
+                diskBytes -= oldest.getValue();
+                deleted.add(oldest.getKey());
+            }
+            Iterator<Map.Entry<Key, Bitmap>> it = memory.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Bitmap> entry = it.next();
+                if (entry.getKey().getTimestampMs() < oldestKeptMs) {
+                    memoryBytes -= entry.getValue().getByteCount();
+                    it.remove();
+                }
+            }
+        }
+        for (Key key : deleted) {
+            File file = new File(directory, key.getFileName());
+            if (!file.delete()) {
+                Log.w(TAG, "Cannot delete " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.events;
+
+import com.p3ds.facereco.java.facerecognition.Recognition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Turns per-frame detections and recognitions into one record per visit of a tracked face: a
+ * {@link RecognitionEvent.Type#TRACK_START} when it appears, and the {@link
+ * RecognitionEvent.Type#BEST_MATCH} of the visit followed by a {@link
+ * RecognitionEvent.Type#TRACK_END} when it leaves. Frames in between only update the visit.
+ *
+ * <p>Not thread safe, meant to be called from the thread that handles detection results.
+ */
+public class VisitTracker {
+
+    private static class Visit {
+        final int cameraFacing;
+        Recognition bestMatch;
+
+        Visit(int cameraFacing) {
+            this.cameraFacing = cameraFacing;
+        }
+    }
+
+    private final RecognitionEventLog log;
+    private final String streamName;
+    private final Map<Integer, Visit> visits = new HashMap<>();
+
+    /**
+     * @param streamName name of the camera stream the tracking IDs belong to
+     */
+    public VisitTracker(RecognitionEventLog log, String streamName) {
+        this.log = log;
+        this.streamName = streamName;
+    }
+
+    /**
+     * Records that a tracked face is in the current frame, starting its visit if it is new.
+     */
+    public void onFace(int trackingId, int cameraFacing) {
+        if (!visits.containsKey(trackingId)) {
+            visits.put(trackingId, new Visit(cameraFacing));
+            log.post(RecognitionEvent.forTrack(RecognitionEvent.Type.TRACK_START,
+                    System.currentTimeMillis(), streamName, cameraFacing, trackingId));
+        }
+    }
+
+    /**
+     * Records a recognition of a tracked face, kept if it is the most confident of the visit.
+     */
+    public void onRecognition(int trackingId, Recognition recognition) {
+        Visit visit = visits.get(trackingId);
+        if (visit != null && (visit.bestMatch == null
+                || recognition.getConfidence() > visit.bestMatch.getConfidence())) {
+            visit.bestMatch = recognition;
+        }
+    }
+
+    /**
+     * Forgets the best match of a visit, e.g. once its face turns out to be a photo.
+     */
+    public void clearBestMatch(int trackingId) {
+        Visit visit = visits.get(trackingId);
+        if (visit != null) {
+            visit.bestMatch = null;
+        }
+    }
+
+    /**
+     * Ends the visits of the faces that are no longer tracked.
+     *
+     * @param trackingIds faces of the current frame
+     */
+    public void retain(Collection<Integer> trackingIds) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Integer, Visit>> iterator = visits.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Visit> entry = iterator.next();
+            if (!trackingIds.contains(entry.getKey())) {
+                end(entry.getKey(), entry.getValue(), now);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Ends all visits, e.g. when the camera stops.
+     */
+    public void endAll() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, Visit> entry : visits.entrySet()) {
+            end(entry.getKey(), entry.getValue(), now);
+        }
+        visits.clear();
+    }
+
+    private void end(int trackingId, Visit visit, long now) {
+        Recognition bestMatch = visit.bestMatch;
+        if (bestMatch != null) {
+            log.post(new RecognitionEvent(RecognitionEvent.Type.BEST_MATCH, now, streamName, visit.cameraFacing,
+                    trackingId, bestMatch.getIdentityId(), bestMatch.getName(), bestMatch.getConfidence()));
+        }
+        log.post(RecognitionEvent.forTrack(RecognitionEvent.Type.TRACK_END, now, streamName, visit.cameraFacing,
+                trackingId));
+    }
+}
@@ -0,0 +1,167 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.facedetection;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the best scored candidate of every tracked face within a time window. Once the window of a
+ * track has elapsed its best candidate is handed out, so recognition runs once per window and
+ * track on the best crop instead of on every frame.
+ *
+ * <p>The window stays short, so the held candidate is handed out before its frame expires. How often
+ * a track is recognized is set by the interval between the starts of its windows; candidates offered
+ * after a window closed and before the next one opens are released right away.
+ *
+ * <p>Candidates that lose against a better one, score too low or belong to a track that vanished
+ * are given to the {@link Releaser}. Not thread safe.
+ *
+ * @param <T> the type of the candidate, e.g. a face crop
+ */
+public class BestFrameSelector<T> {
+
+    /**
+     * Releases candidates that will not be handed out.
+     */
+    public interface Releaser<T> {
+        void release(T candidate);
+    }
+
+    private static class Window<T> {
+        private final long startMs;
+        private float bestScore = -1.0f;
+        private T best;
+
+        Window(long startMs) {
+            this.startMs = startMs;
+        }
+    }
+
+    private long windowMs;
+    private long intervalMs;
+    private final float minScore;
+    private final Releaser<T> releaser;
+
+    private final Map<Integer, Window<T>> windows = new HashMap<>();
+
+    /**
+     * Time the next window of a track may open at, for tracks whose last window closed.
+     */
+    private final Map<Integer, Long> nextWindowMs = new HashMap<>();
+
+    /**
+     * @param windowMs length of the selection window of a track
+     * @param minScore candidates scoring below are never handed out
+     * @param releaser called for every candidate that is not handed out
+     */
+    public BestFrameSelector(long windowMs, float minScore, Releaser<T> releaser) {
+        this.windowMs = windowMs;
+        this.intervalMs = windowMs;
+        this.minScore = minScore;
+        this.releaser = releaser;
+    }
+
+    /**
+     * Changes the length of the selection windows, open ones included.
+     */
+    public void setWindowMs(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Changes the time between the starts of two windows of a track. Intervals shorter than the
+     * window open the next window as soon as the last one closed.
+     */
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Offers a candidate of a track.
+     *
+     * @return the best candidate of the track if its window closed with this offer, {@code null}
+     * otherwise. The caller owns the returned candidate.
+     */
+    public T offer(int trackingId, float score, long nowMs, T candidate) {
+        Window<T> window = windows.get(trackingId);
+        if (window == null) {
+            Long next = nextWindowMs.get(trackingId);
+            if (next != null && nowMs < next) {
+                releaser.release(candidate);
+                return null;
+            }
+            nextWindowMs.remove(trackingId);
+            window = new Window<>(nowMs);
+            windows.put(trackingId, window);
+        }
+        if (score >= minScore && score > window.bestScore) {
+            if (window.best != null) {
+                releaser.release(window.best);
+            }
+            window.best = candidate;
+            window.bestScore = score;
+        } else {
+            releaser.release(candidate);
+        }
+        if (nowMs - window.startMs < windowMs) {
+            return null;
+        }
+        windows.remove(trackingId);
+        nextWindowMs.put(trackingId, window.startMs + Math.max(intervalMs, windowMs));
+        return window.best;
+    }
+
+    /**
+     * Whether a candidate scores high enough to be handed out at all.
+     */
+    public boolean accepts(float score) {
+        return score >= minScore;
+    }
+
+    /**
+     * Drops the windows of all tracks that are not in {@code trackingIds}.
+     */
+    public void retain(Collection<Integer> trackingIds) {
+        Iterator<Map.Entry<Integer, Window<T>>> it = windows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Window<T>> entry = it.next();
+            if (!trackingIds.contains(entry.getKey())) {
+                release(entry.getValue());
+                it.remove();
+            }
+        }
+        nextWindowMs.keySet().retainAll(trackingIds);
+    }
+
+    /**
+     * Drops all windows.
+     */
+    public void clear() {
+        for (Window<T> window : windows.values()) {
+            release(window);
+        }
+        windows.clear();
+        nextWindowMs.clear();
+    }
+
+    private void release(Window<T> window) {
+        if (window.best != null) {
+            releaser.release(window.best);
+            window.best = null;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.facedetection;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.google.firebase.ml.vision.common.FirebaseVisionPoint;
+import com.google.firebase.ml.vision.face.FirebaseVisionFace;
+import com.google.firebase.ml.vision.face.FirebaseVisionFaceLandmark;
+import com.p3ds.facereco.java.facerecognition.FaceAligner;
+import com.p3ds.facereco.java.processing.BitmapPool;
+import com.p3ds.facereco.java.processing.CoordinateTransform;
+import com.p3ds.facereco.java.processing.FrameMetadata;
+import com.p3ds.facereco.java.processing.FramePixels;
+import com.p3ds.facereco.java.processing.YuvPlanes;
+
+/**
+ * Pixels of a detected face cut out of the camera frame, with the alignment landmarks of the face
+ * expressed in the coordinates of the crop.
+ *
+ * <p>ML Kit reports faces in the upright image while the frame is in buffer space (see {@link
+ * CoordinateTransform}). Crops with landmarks stay in buffer orientation, the alignment takes care
+ * of the rotation; {@link #getRotation()} tells how to turn them upright for display or storage.
+ * Crops without landmarks are rotated upright.
+ *
+ * <p>A crop keeps the deadline of its frame, so that a crop recognized frames later still
+ * expires with the frame it was cut out of.
+ *
+ * <p>The pixels are drawn into a bitmap leased from the {@link BitmapPool}. The crop owns it until
+ * {@link #release()}, which must be called exactly once, by whoever holds the crop last.
+ */
+public class FaceCrop {
+
+    /**
+     * Margin added around the detected box on every side, relative to the box size, so that the
+     * alignment has pixels to sample from when the face is rotated.
+     */
+    private static final float MARGIN = 0.2f;
+
+    private static final Paint FILTER = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Pixels of the last region converted from planes, grown to the largest one.
+     */
+    // @GuardedBy("FaceCrop.class")
+    private static int[] regionPixels = new int[0];
+
+    private final Bitmap bitmap;
+    private final float[] landmarks;
+    private final int rotation;
+    private final long deadlineMs;
+    private float quality;
+
+    private FaceCrop(Bitmap bitmap, float[] landmarks, int rotation, long deadlineMs) {
+        this.bitmap = bitmap;
+        this.landmarks = landmarks;
+        this.rotation = rotation;
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Cuts the face out of a frame.
+     *
+     * @param frame         frame the face was detected in, in buffer space
+     * @param face          detected face, in image space
+     * @param imageToBuffer mapping from image to buffer space of the frame
+     * @return the crop or {@code null} if the face is outside of the frame or the frame has no
+     * pixels to cut from. The crop keeps the deadline of the frame, see
+     * {@link FrameMetadata#getDeadlineMs()}.
+     */
+    public static FaceCrop create(FramePixels frame, FirebaseVisionFace face,
+                                  CoordinateTransform imageToBuffer) {
+        FrameMetadata metadata = frame.getMetadata();
+        YuvPlanes planes = frame.getPlanes();
+        if (planes == null && !frame.hasBitmap()) {
+            return null;
+        }
+        Rect box = face.getBoundingBox();
+        float marginX = box.width() * MARGIN;
+        float marginY = box.height() * MARGIN;
+        float[] bounds = {box.left - marginX, box.top - marginY, box.right + marginX, box.bottom + marginY};
+        imageToBuffer.mapRect(bounds);
+        int left = Math.max(0, (int) bounds[0]);
+        int top = Math.max(0, (int) bounds[1]);
+        int right = Math.min(metadata.getWidth(), (int) bounds[2]);
+        int bottom = Math.min(metadata.getHeight(), (int) bounds[3]);
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+        int width = right - left;
+        int height = bottom - top;
+        float[] landmarks = alignmentLandmarks(face);
+        int rotation = metadata.getRotation() & 3;
+        // Quarter turns left to the consumers of the crop
+        int uprightRotation = 0;
+        if (landmarks != null) {
+            imageToBuffer.mapPoints(landmarks);
+            for (int i = 0; i < FaceAligner.LANDMARK_ARRAY_SIZE; i += 2) {
+                landmarks[i] -= left;
+                landmarks[i + 1] -= top;
+            }
+            uprightRotation = rotation;
+            rotation = 0;
+        }
+        Bitmap crop = planes != null
+                ? convert(planes, left, top, width, height, rotation)
+                : cut(frame.getBitmap(), left, top, width, height, rotation);
+        return new FaceCrop(crop, landmarks, uprightRotation, metadata.getDeadlineMs());
+    }
+
+    /**
+     * Converts a region of the planes into a pooled bitmap.
+     *
+     * @param rotation quarter turns the region is rotated by clockwise
+     */
+    private static synchronized Bitmap convert(YuvPlanes planes, int left, int top, int width, int height,
+                                               int rotation) {
+        if (regionPixels.length < width * height) {
+            regionPixels = new int[width * height];
+        }
+        planes.toArgb(left, top, width, height, rotation, regionPixels);
+        boolean sideways = (rotation & 1) != 0;
+        int cropWidth = sideways ? height : width;
+        int cropHeight = sideways ? width : height;
+        Bitmap crop = BitmapPool.getInstance().acquire(cropWidth, cropHeight);
+        crop.setPixels(regionPixels, 0, cropWidth, 0, 0, cropWidth, cropHeight);
+        return crop;
+    }
+
+    /**
+     * Draws a region of the frame into a pooled bitmap, never sharing pixels with the frame, which
+     * goes back to the pool with its buffer.
+     *
+     * @param rotation quarter turns the region is rotated by clockwise
+     */
+    private static Bitmap cut(Bitmap frame, int left, int top, int width, int height, int rotation) {
+        boolean sideways = (rotation & 1) != 0;
+        Bitmap crop = BitmapPool.getInstance().acquire(sideways ? height : width, sideways ? width : height);
+        Canvas canvas = new Canvas(crop);
+        if (rotation == 0) {
+            canvas.drawBitmap(frame, new Rect(left, top, left + width, top + height),
+                    new Rect(0, 0, width, height), null);
+            return crop;
+        }
+        // Moves the region to the origin, turns it and moves it back into the crop
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-left, -top);
+        matrix.postRotate(90 * rotation);
+        matrix.postTranslate(rotation == 3 ? 0 : crop.getWidth(), rotation == 1 ? 0 : crop.getHeight());
+        canvas.drawBitmap(frame, matrix, FILTER);
+        return crop;
+    }
+
+    /**
+     * Eye and mouth landmarks in image space, laid out as expected by
+     * {@link FaceAligner#setLandmarks(float[])}.
+     *
+     * @return {@code null} if an eye or the mouth was not found
+     */
+    private static float[] alignmentLandmarks(FirebaseVisionFace face) {
+        FirebaseVisionFaceLandmark leftEye = face.getLandmark(FirebaseVisionFaceLandmark.LEFT_EYE);
+        FirebaseVisionFaceLandmark rightEye = face.getLandmark(FirebaseVisionFaceLandmark.RIGHT_EYE);
+        FirebaseVisionFaceLandmark leftMouth = face.getLandmark(FirebaseVisionFaceLandmark.LEFT_MOUTH);
+        FirebaseVisionFaceLandmark rightMouth = face.getLandmark(FirebaseVisionFaceLandmark.RIGHT_MOUTH);
+        FirebaseVisionFaceLandmark bottomMouth = face.getLandmark(FirebaseVisionFaceLandmark.BOTTOM_MOUTH);
+        if (leftEye == null || rightEye == null) {
+            return null;
+        }
+        float[] landmarks = new float[FaceAligner.LANDMARK_ARRAY_SIZE];
+        set(landmarks, FaceAligner.LEFT_EYE, leftEye.getPosition());
+        set(landmarks, FaceAligner.RIGHT_EYE, rightEye.getPosition());
+        if (leftMouth != null && rightMouth != null) {
+            FirebaseVisionPoint l = leftMouth.getPosition();
+            FirebaseVisionPoint r = rightMouth.getPosition();
+            landmarks[FaceAligner.MOUTH] = (l.getX() + r.getX()) / 2;
+            landmarks[FaceAligner.MOUTH + 1] = (l.getY() + r.getY()) / 2;
+        } else if (bottomMouth != null) {
+            set(landmarks, FaceAligner.MOUTH, bottomMouth.getPosition());
+        } else {
+            return null;
+        }
+        return landmarks;
+    }
+
+    private static void set(float[] landmarks, int index, FirebaseVisionPoint point) {
+        landmarks[index] = point.getX();
+        landmarks[index + 1] = point.getY();
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * @return the quarter turns clockwise that turn the bitmap upright, non zero only for crops
+     * with landmarks
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return landmarks in crop coordinates or {@code null} if the face cannot be aligned
+     */
+    public float[] getLandmarks() {
+        return landmarks;
+    }
+
+    /**
+     * @return the quality score of the crop, see {@link FaceQualityScorer}
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /**
+     * Returns the pixels to the pool. The crop must not be used afterwards.
+     */
+    public void release() {
+        BitmapPool.getInstance().release(bitmap);
+    }
+}
@@ -15,12 +15,11 @@
 package com.p3ds.facereco.java.facedetection;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.google.android.gms.tasks.Task;
@@ -30,16 +29,28 @@ import com.google.firebase.ml.vision.face.FirebaseVisionFace;
 import com.google.firebase.ml.vision.face.FirebaseVisionFaceDetector;
 import com.google.firebase.ml.vision.face.FirebaseVisionFaceDetectorOptions;
 import com.p3ds.facereco.java.VisionProcessorBase;
+import com.p3ds.facereco.java.events.RecognitionEventLog;
+import com.p3ds.facereco.java.events.ThumbnailCache;
+import com.p3ds.facereco.java.events.VisitTracker;
 import com.p3ds.facereco.java.facerecognition.FaceRecognitionProcessor;
+import com.p3ds.facereco.java.facerecognition.InferenceScheduler;
+import com.p3ds.facereco.java.facerecognition.ModelManager;
+import com.p3ds.facereco.java.facerecognition.Recognition;
+import com.p3ds.facereco.java.facerecognition.UnknownFaceClusterer;
+import com.p3ds.facereco.java.processing.CoordinateTransform;
+import com.p3ds.facereco.java.processing.FrameDropStats;
 import com.p3ds.facereco.java.processing.FrameMetadata;
+import com.p3ds.facereco.java.processing.FramePixels;
 import com.p3ds.facereco.java.processing.GraphicOverlay;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Face Detector.
@@ -48,12 +59,87 @@ public class FaceDetectionProcessor extends VisionProcessorBase<List<FirebaseVis
 
     private static final String TAG = "FaceDetectionProcessor";
 
+    /**
+     * Only the best crop of a track within this window is recognized, by default.
+     */
+    private static final long BEST_FRAME_WINDOW_MS = 500;
+
+    /**
+     * Crops scoring below are never recognized.
+     */
+    private static final float MIN_FACE_QUALITY = 0.2f;
+
+    /**
+     * Directory of the recognition event log, relative to the files directory of the app.
+     */
+    private static final String EVENTS_DIRECTORY = "events";
+
+    /**
+     * Directory of the clusters of unknown faces, relative to the files directory of the app.
+     */
+    private static final String CLUSTERS_DIRECTORY = "unknown_faces";
+
+    /**
+     * Directory of the thumbnails of recognized crops, relative to the files directory of the app,
+     * and the budgets of the thumbnail cache.
+     */
+    private static final String THUMBNAILS_DIRECTORY = "thumbnails";
+    private static final long THUMBNAIL_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long THUMBNAIL_DISK_BYTES = 64 * 1024 * 1024;
+    private static final long THUMBNAIL_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
     private final FirebaseVisionFaceDetector detector;
     private FaceRecognitionProcessor processor;
 
-    private Bitmap bitmap = null;
+    private final FaceQualityScorer qualityScorer = new FaceQualityScorer();
+    private final LivenessDetector livenessDetector = new LivenessDetector();
+    private final BestFrameSelector<FaceCrop> bestFrameSelector =
+            new BestFrameSelector<>(BEST_FRAME_WINDOW_MS, MIN_FACE_QUALITY, FaceCrop::release);
+
+    /**
+     * Graphics of the tracked faces, retained across frames. A graphic keeps showing the last
+     * recognition result of its track until the next window of the track closes.
+     */
+    private final Map<Integer, FaceGraphic> faceGraphics = new HashMap<>();
+
+    private final RecognitionEventLog eventLog;
+    private final VisitTracker visitTracker;
+    private final ThumbnailCache thumbnailCache;
+    private final String streamName;
+
+    /**
+     * Tracks recognized as a known identity, which are not recognized again while
+     * {@link #skipIdentifiedTracks} is set.
+     */
+    private final Set<Integer> identifiedTrackingIds = new HashSet<>();
+
+    private volatile long recognitionIntervalMs = BEST_FRAME_WINDOW_MS;
+    private volatile boolean skipIdentifiedTracks;
+
+    // Reused between frames, only touched in onSuccess
+    private final Set<Integer> frameTrackingIds = new HashSet<>();
+    private final List<FaceGraphic> frameGraphics = new ArrayList<>();
+
+    /**
+     * Mapping from the image space of the faces to the buffer space of the frame, cached for the
+     * frame geometry it was built for.
+     */
+    private CoordinateTransform imageToBuffer = CoordinateTransform.IDENTITY;
+    private int transformWidth;
+    private int transformHeight;
+    private int transformRotation;
 
     public FaceDetectionProcessor(Activity livePreviewActivity) throws IOException {
+        this(livePreviewActivity, "camera", InferenceScheduler.DEFAULT_WEIGHT);
+    }
+
+    /**
+     * @param streamName name of the camera in the recognition metrics
+     * @param priority   share of the recognitions the camera gets when several cameras compete
+     */
+    public FaceDetectionProcessor(Activity livePreviewActivity, String streamName, int priority) throws IOException {
+        super(streamName);
+        this.streamName = streamName;
         FirebaseVisionFaceDetectorOptions options =
                 new FirebaseVisionFaceDetectorOptions.Builder()
                         .setClassificationType(FirebaseVisionFaceDetectorOptions.ALL_CLASSIFICATIONS)
@@ -62,16 +148,46 @@ public class FaceDetectionProcessor extends VisionProcessorBase<List<FirebaseVis
                         .build();
 
         detector = FirebaseVision.getInstance().getVisionFaceDetector(options);
-        //System.out.println("ACTIVITY ASSETS");
-        //System.err.println(livePreviewActivity.getAssets());
-        //System.err.println(livePreviewActivity.getAssets().open("emp.txt").toString());
-        //System.out.println(livePreviewActivity.getAssets().openFd("emp.tflite");
-        processor = new FaceRecognitionProcessor(livePreviewActivity);
+        // Normally already started by the application, the model is loaded in the background.
+        ModelManager.getInstance().preload(livePreviewActivity);
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        processor = new FaceRecognitionProcessor(ModelManager.getInstance(), InferenceScheduler.getInstance(),
+                streamName, priority, mainHandler::post);
+        eventLog = RecognitionEventLog.getInstance();
+        eventLog.open(new File(livePreviewActivity.getFilesDir(), EVENTS_DIRECTORY));
+        visitTracker = new VisitTracker(eventLog, streamName);
+        thumbnailCache = ThumbnailCache.getInstance();
+        thumbnailCache.open(new File(livePreviewActivity.getFilesDir(), THUMBNAILS_DIRECTORY),
+                THUMBNAIL_MEMORY_BYTES, THUMBNAIL_DISK_BYTES, THUMBNAIL_MAX_AGE_MS);
+        UnknownFaceClusterer.getInstance().open(new File(livePreviewActivity.getFilesDir(), CLUSTERS_DIRECTORY));
+    }
+
+    /**
+     * Sets the time between two recognitions of a track. The best crop is still selected within a
+     * window short enough for the crop to be recognized before its frame expires.
+     */
+    public void setRecognitionIntervalMs(long recognitionIntervalMs) {
+        this.recognitionIntervalMs = recognitionIntervalMs;
+    }
+
+    /**
+     * Sets whether tracks already recognized as a known identity are left alone, their last
+     * result staying on screen while they are tracked.
+     */
+    public void setSkipIdentifiedTracks(boolean skipIdentifiedTracks) {
+        this.skipIdentifiedTracks = skipIdentifiedTracks;
     }
 
     @Override
     public void stop() {
         try {
+            bestFrameSelector.clear();
+            identifiedTrackingIds.clear();
+            livenessDetector.clear();
+            visitTracker.endAll();
+            // Shared with the other cameras, only flushed
+            eventLog.flush();
+            thumbnailCache.flush();
             detector.close();
             processor.close();
         } catch (IOException e) {
@@ -79,6 +195,14 @@ public class FaceDetectionProcessor extends VisionProcessorBase<List<FirebaseVis
         }
     }
 
+    /**
+     * @return the thumbnails of the crops sent to recognition, for reviewers. Shared by the cameras,
+     * keyed by stream name.
+     */
+    public ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
     @Override
     protected Task<List<FirebaseVisionFace>> detectInImage(FirebaseVisionImage image) {
         return detector.detectInImage(image);
@@ -90,83 +214,177 @@ public class FaceDetectionProcessor extends VisionProcessorBase<List<FirebaseVis
             @NonNull List<FirebaseVisionFace> faces,
             @NonNull FrameMetadata frameMetadata,
             @NonNull GraphicOverlay graphicOverlay) {
-        graphicOverlay.clear();
-        faces.forEach(face -> {
-            Map.Entry<String, Float> result = null;
-            FaceGraphic faceGraphic = new FaceGraphic(graphicOverlay);
-            graphicOverlay.add(faceGraphic);
-                FaceGraphic.FaceBounds faceBounds = faceGraphic.getFaceBoundsForFace(face);
-                Bitmap croppedFaceBmp = cropFace(faceBounds);
-                if(null != croppedFaceBmp) {
+        onSuccess(image, faces, frameMetadata, graphicOverlay, null);
+    }
+
+    /**
+     * Draws the faces and recognizes them from the pixels of the frame they were detected in. The
+     * frame is only decoded if a face needs to be cropped.
+     */
+    @Override
+    protected void onSuccess(
+            FirebaseVisionImage image,
+            @NonNull List<FirebaseVisionFace> faces,
+            @NonNull FrameMetadata frameMetadata,
+            @NonNull GraphicOverlay graphicOverlay,
+            @Nullable FramePixels frame) {
+        updateImageToBuffer(frameMetadata);
+        processor.reportFrameLoad(takeDroppedFrameCount());
+        bestFrameSelector.setIntervalMs(recognitionIntervalMs);
+        boolean skipIdentified = skipIdentifiedTracks;
+        long now = SystemClock.elapsedRealtime();
+        frameTrackingIds.clear();
+        frameGraphics.clear();
+        for (FirebaseVisionFace face : faces) {
+            int trackingId = face.getTrackingId();
+            FaceGraphic faceGraphic = trackingId != FirebaseVisionFace.INVALID_ID ? faceGraphics.get(trackingId) : null;
+            if (faceGraphic == null) {
+                faceGraphic = new FaceGraphic(graphicOverlay);
+                if (trackingId != FirebaseVisionFace.INVALID_ID) {
+                    faceGraphics.put(trackingId, faceGraphic);
+                }
+            }
+            frameTrackingIds.add(trackingId);
+            frameGraphics.add(faceGraphic);
+            LivenessDetector.Verdict liveness = LivenessDetector.Verdict.UNKNOWN;
+            if (trackingId != FirebaseVisionFace.INVALID_ID) {
+                visitTracker.onFace(trackingId, frameMetadata.getCameraFacing());
+                liveness = livenessDetector.update(trackingId, face, frame != null ? frame.getNv21() : null,
+                        frameMetadata.getWidth(), frameMetadata.getHeight(), imageToBuffer, now);
+                faceGraphic.setLiveness(liveness);
+                if (liveness == LivenessDetector.Verdict.SPOOF) {
+                    visitTracker.clearBestMatch(trackingId);
+                    identifiedTrackingIds.remove(trackingId);
+                }
+            }
+            boolean identified = skipIdentified && identifiedTrackingIds.contains(trackingId);
+            if (identified) {
+                faceGraphic.extendResult(frameMetadata.getDeadlineMs());
+            }
+            // Only faces judged live are recognized or clustered as unknown visitors, so a photo is
+            // not recognized while its first liveness window is still open
+            FaceCrop faceCrop = liveness == LivenessDetector.Verdict.LIVE && !identified
+                    ? cropFace(face, frame) : null;
+            if (null != faceCrop) {
+                FaceCrop bestFaceCrop = selectBestFrame(face, faceCrop, now);
+                if (null != bestFaceCrop) {
+                    long deadlineMs = bestFaceCrop.getDeadlineMs();
+                    thumbnailCache.put(streamName, trackingId, System.currentTimeMillis(),
+                            bestFaceCrop.getBitmap(), bestFaceCrop.getRotation());
                     try {
-                        result = processor.classifyFrame(croppedFaceBmp);
+                        processor.classifyFrame(bestFaceCrop.getBitmap(), bestFaceCrop.getLandmarks(),
+                                bestFaceCrop.getRotation(), bestFaceCrop.getQuality(), deadlineMs,
+                                new ResultCallback(faceGraphic, trackingId, deadlineMs));
                     } catch (IOException e) {
                         Log.e(TAG, e.getMessage());
+                    } finally {
+                        bestFaceCrop.release();
                     }
                 }
-            faceGraphic.updateFace(face,
-                    frameMetadata.getCameraFacing(),
-                    result != null ?
-                    String.format("\n%s (%.0f%%)", result.getKey().substring(0, 1).toUpperCase() + result.getKey().substring(1), result.getValue() * 100) :
-                    null);
-        });
+            }
+            faceGraphic.updateFace(face);
+        }
+        bestFrameSelector.retain(frameTrackingIds);
+        livenessDetector.retain(frameTrackingIds);
+        faceGraphics.keySet().retainAll(frameTrackingIds);
+        identifiedTrackingIds.retainAll(frameTrackingIds);
+        visitTracker.retain(frameTrackingIds);
+        graphicOverlay.setGraphics(frameGraphics);
     }
 
     /**
-     * Triggered when face detection failed to process
-     * @param e exception thrown
+     * Shows the result of a face on its graphic unless it arrived after the deadline of its frame,
+     * and records it in the visits either way. Tracks shown as a known identity are marked as
+     * identified. Results of faces no longer judged live are ignored.
      */
-    @Override
-    protected void onFailure(@NonNull Exception e) {
-        Log.e(TAG, "Face detection failed " + e);
+    private class ResultCallback implements InferenceScheduler.Callback {
+
+        private final FaceGraphic graphic;
+        private final int trackingId;
+        private final long deadlineMs;
+
+        ResultCallback(FaceGraphic graphic, int trackingId, long deadlineMs) {
+            this.graphic = graphic;
+            this.trackingId = trackingId;
+            this.deadlineMs = deadlineMs;
+        }
+
+        @Override
+        public void onRecognized(Recognition result) {
+            if (result == null
+                    || livenessDetector.getVerdict(trackingId) != LivenessDetector.Verdict.LIVE) {
+                return;
+            }
+            visitTracker.onRecognition(trackingId, result);
+            if (SystemClock.elapsedRealtime() > deadlineMs) {
+                getDropStats().record(FrameDropStats.Stage.RESULT);
+                return;
+            }
+            graphic.setResult(result, deadlineMs);
+            graphic.postInvalidate();
+            if (trackingId != FirebaseVisionFace.INVALID_ID
+                    && result.getConfidence() >= Recognition.MIN_KNOWN_CONFIDENCE) {
+                identifiedTrackingIds.add(trackingId);
+            }
+        }
+
+        @Override
+        public void onExpired() {
+            getDropStats().record(FrameDropStats.Stage.RECOGNITION);
+        }
     }
 
+    /**
+     * Scores the crop and decides whether it should be recognized now.
+     *
+     * @return the best crop of the face's track if its selection window closed, {@code null} if
+     * nothing should be recognized for this face in this frame
+     */
+    private FaceCrop selectBestFrame(FirebaseVisionFace face, FaceCrop faceCrop, long now) {
+        float quality = qualityScorer.score(face, faceCrop.getBitmap());
+        faceCrop.setQuality(quality);
+        if (face.getTrackingId() != FirebaseVisionFace.INVALID_ID) {
+            return bestFrameSelector.offer(face.getTrackingId(), quality, now, faceCrop);
+        }
+        // Untracked faces cannot be compared across frames, so only the threshold applies.
+        if (bestFrameSelector.accepts(quality)) {
+            return faceCrop;
+        }
+        faceCrop.release();
+        return null;
+    }
 
     /**
-     * Process the data coming from the camera and create a bitmap from it.
-     * @param data cam data
-     * @param frameMetadata firebase frame metadata
-     * @param graphicOverlay the graphic overlay from our layout
+     * Triggered when face detection failed to process
+     * @param e exception thrown
      */
     @Override
-    public void process(ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
-        super.process(data, frameMetadata, graphicOverlay);
-        data.order(ByteOrder.nativeOrder());
-        bitmap = createBitmapFromByteBuffer(data, frameMetadata.getWidth(), frameMetadata.getHeight());
+    protected void onFailure(@NonNull Exception e) {
+        Log.e(TAG, "Face detection failed " + e);
     }
 
 
     /**
-     * Creates a bitmap from {@code ByteBuffer}
+     * Cuts the face out of the frame it was detected in. The face box is mapped from the image
+     * space ML Kit reports it in to the buffer space of the frame; overlay coordinates are only
+     * used to draw.
      */
-    private Bitmap createBitmapFromByteBuffer(ByteBuffer buffer, int width, int height) {
-        YuvImage img = new YuvImage(buffer.array(), ImageFormat.NV21, width, height, null); // Prod onFlyCompress
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        img.compressToJpeg(new Rect(0, 0, img.getWidth(), img.getHeight()), 50, out);
-        byte[] imageBytes = out.toByteArray();
-        return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
+    private FaceCrop cropFace(FirebaseVisionFace face, FramePixels frame) {
+        if(null != frame) {
+            return FaceCrop.create(frame, face, imageToBuffer);
+        }
+        return null;
     }
 
-    private Bitmap cropFace(FaceGraphic.FaceBounds bounds) {
-        if(null != bitmap) {
-            int x = (int) bounds.getLeft() < 0 ? 0 : (int) bounds.getLeft();
-            int y = (int) bounds.getTop() > bitmap.getHeight() ? bitmap.getHeight() : (int) bounds.getTop();
-            if(y < 0) {
-                y = 0;
-            }
-            int width = bounds.getWidth() - 150;
-            int height = bounds.getHeight() - 100;
-            //System.out.printf(String.format("\n1.%s %s %s %s\n", x, y, width, height));
-            if (x + width > bitmap.getWidth()) {
-                width = bitmap.getWidth() - x;
-            }
-            if (y + height > bitmap.getHeight()) {
-                height = bitmap.getHeight() - y;
-            }
-            //System.out.printf(String.format("\n2. %s %s %s %s\n", x, y, width, height));
-            return Bitmap.createBitmap(bitmap, x, y, width, height);
+    private void updateImageToBuffer(FrameMetadata frameMetadata) {
+        if (frameMetadata.getWidth() != transformWidth
+                || frameMetadata.getHeight() != transformHeight
+                || frameMetadata.getRotation() != transformRotation) {
+            transformWidth = frameMetadata.getWidth();
+            transformHeight = frameMetadata.getHeight();
+            transformRotation = frameMetadata.getRotation();
+            imageToBuffer = CoordinateTransform.forFrame(transformWidth, transformHeight, transformRotation);
         }
-        return null;
     }
 
 }
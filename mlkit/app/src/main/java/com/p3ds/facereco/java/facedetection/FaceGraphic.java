@@ -18,16 +18,18 @@ package com.p3ds.facereco.java.facedetection;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.os.SystemClock;
 
 import com.google.firebase.ml.vision.common.FirebaseVisionPoint;
 import com.google.firebase.ml.vision.face.FirebaseVisionFace;
 import com.google.firebase.ml.vision.face.FirebaseVisionFaceLandmark;
-import com.p3ds.facereco.java.processing.CameraSource;
+import com.p3ds.facereco.java.facerecognition.LabelStore;
+import com.p3ds.facereco.java.facerecognition.Recognition;
 import com.p3ds.facereco.java.processing.GraphicOverlay;
 
 /**
  * Graphic instance for rendering face position, orientation, and landmarks within an associated
- * graphic overlay view.
+ * graphic overlay view. Updated from the detection results, drawn through immutable snapshots.
  */
 public class FaceGraphic extends GraphicOverlay.Graphic {
     private static final float FACE_POSITION_RADIUS = 10.0f;
@@ -36,13 +38,41 @@ public class FaceGraphic extends GraphicOverlay.Graphic {
     private static final float ID_X_OFFSET = -100.0f;
     private static final float BOX_STROKE_WIDTH = 8.0f;
 
+    /**
+     * Shown instead of the recognition result of faces judged to be a photo or a screen.
+     */
+    private static final String SPOOF_TEXT = "\nNot a live face";
+
     private static final int[] COLOR_CHOICES = {
             Color.YELLOW
             //Color.BLUE, Color.CYAN, Color.GREEN, Color.MAGENTA, Color.RED, Color.WHITE, Color.YELLOW
     };
     private static int currentColorIndex = 0;
 
-    private int cameraFacing;
+    /**
+     * Paints of every color choice, shared by all graphics since they never change.
+     */
+    private static final Paint[] FACE_POSITION_PAINTS = new Paint[COLOR_CHOICES.length];
+    private static final Paint[] ID_PAINTS = new Paint[COLOR_CHOICES.length];
+    private static final Paint[] BOX_PAINTS = new Paint[COLOR_CHOICES.length];
+
+    static {
+        for (int i = 0; i < COLOR_CHOICES.length; ++i) {
+            FACE_POSITION_PAINTS[i] = new Paint();
+            FACE_POSITION_PAINTS[i].setColor(COLOR_CHOICES[i]);
+
+            ID_PAINTS[i] = new Paint();
+            ID_PAINTS[i].setColor(COLOR_CHOICES[i]);
+            ID_PAINTS[i].setTextSize(ID_TEXT_SIZE);
+
+            BOX_PAINTS[i] = new Paint();
+            BOX_PAINTS[i].setColor(COLOR_CHOICES[i]);
+            BOX_PAINTS[i].setStyle(Paint.Style.STROKE);
+            BOX_PAINTS[i].setStrokeWidth(BOX_STROKE_WIDTH);
+        }
+    }
+
+    private final GraphicOverlay overlay;
 
     private final Paint facePositionPaint;
     private final Paint idPaint;
@@ -50,36 +80,85 @@ public class FaceGraphic extends GraphicOverlay.Graphic {
 
     private volatile FirebaseVisionFace firebaseVisionFace;
 
-    private String faceName = null;
+    private volatile String faceName = null;
+
+    // Time after which faceName is stale and no longer drawn
+    private volatile long faceNameDeadlineMs;
+
+    private volatile LivenessDetector.Verdict liveness = LivenessDetector.Verdict.UNKNOWN;
+
+    // Recognition result the cached faceName was built from
+    private LabelStore resultLabels = null;
+    private int resultIdentityId = -1;
+    private int resultPercent = -1;
 
     public FaceGraphic(GraphicOverlay overlay) {
         super(overlay);
+        this.overlay = overlay;
 
         currentColorIndex = (currentColorIndex + 1) % COLOR_CHOICES.length;
-        final int selectedColor = COLOR_CHOICES[currentColorIndex];
+        facePositionPaint = FACE_POSITION_PAINTS[currentColorIndex];
+        idPaint = ID_PAINTS[currentColorIndex];
+        boxPaint = BOX_PAINTS[currentColorIndex];
+    }
 
-        facePositionPaint = new Paint();
-        facePositionPaint.setColor(selectedColor);
+    /**
+     * Updates the face instance from the detection of the most recent frame. The graphic is
+     * retained across frames, the overlay is redrawn once the frame's graphics are published.
+     */
+    public void updateFace(FirebaseVisionFace face) {
+        firebaseVisionFace = face;
+    }
 
-        idPaint = new Paint();
-        idPaint.setColor(selectedColor);
-        idPaint.setTextSize(ID_TEXT_SIZE);
+    /**
+     * Sets the liveness of the face. The recognition result of a spoofed face is not shown.
+     */
+    public void setLiveness(LivenessDetector.Verdict liveness) {
+        this.liveness = liveness;
+    }
 
-        boxPaint = new Paint();
-        boxPaint.setColor(selectedColor);
-        boxPaint.setStyle(Paint.Style.STROKE);
-        boxPaint.setStrokeWidth(BOX_STROKE_WIDTH);
+    /**
+     * Sets the recognition result shown below the face. The text is only rebuilt when the identity
+     * or the rounded confidence changes, from the display name precomputed in the label store.
+     *
+     * @param deadlineMs deadline of the frame the face was recognized in; the result is hidden
+     *                   once it passed
+     */
+    public void setResult(Recognition recognition, long deadlineMs) {
+        faceNameDeadlineMs = deadlineMs;
+        int percent = Math.round(recognition.getConfidence() * 100);
+        if (percent == resultPercent && recognition.getIdentityId() == resultIdentityId
+                && recognition.getLabels() == resultLabels) {
+            return;
+        }
+        resultLabels = recognition.getLabels();
+        resultIdentityId = recognition.getIdentityId();
+        resultPercent = percent;
+        String displayName = resultLabels.getDisplayName(resultIdentityId);
+        faceName = displayName.isEmpty() ? null : "\n" + displayName + " (" + percent + "%)";
     }
 
     /**
-     * Updates the face instance from the detection of the most recent frame. Invalidates the relevant
-     * portions of the overlay to trigger a redraw.
+     * Keeps showing the current result until {@code deadlineMs}, for faces that are not
+     * recognized again.
      */
-    public void updateFace(FirebaseVisionFace face, int facing, String faceName) {
-        firebaseVisionFace = face;
-        this.cameraFacing = facing;
-        this.faceName = faceName;
-        postInvalidate();
+    public void extendResult(long deadlineMs) {
+        if (deadlineMs > faceNameDeadlineMs) {
+            faceNameDeadlineMs = deadlineMs;
+        }
+    }
+
+    /**
+     * Captures the face and the label to show for it, resolved now so that the snapshot never
+     * changes while it is rendered.
+     */
+    @Override
+    public GraphicOverlay.Graphic snapshot() {
+        String faceName = liveness == LivenessDetector.Verdict.SPOOF ? SPOOF_TEXT : this.faceName;
+        if (faceName != SPOOF_TEXT && SystemClock.elapsedRealtime() > faceNameDeadlineMs) {
+            faceName = null;
+        }
+        return new Snapshot(overlay, firebaseVisionFace, faceName, facePositionPaint, idPaint, boxPaint);
     }
 
     /**
@@ -87,82 +166,79 @@ public class FaceGraphic extends GraphicOverlay.Graphic {
      */
     @Override
     public void draw(Canvas canvas) {
-        if (null == firebaseVisionFace)
-            return;
-        drawRectangle(firebaseVisionFace, canvas);
+        snapshot().draw(canvas);
     }
 
     /**
-     * Draw a rectangle around the face.
+     * A face and its label as they were when the snapshot was taken.
      */
-    private void drawRectangle(FirebaseVisionFace face, Canvas canvas) {
-        FaceBounds faceBounds = getFaceBoundsForFace(face);
-        canvas.drawRect(faceBounds.getLeft(), faceBounds.getTop(), faceBounds.getRight(), faceBounds.getBottom(), boxPaint);
-        if (null != faceName) {
-            //canvas.drawText("Face ID: " + face.getTrackingId(), x + ID_X_OFFSET, bottom + ID_Y_OFFSET, idPaint);
-            canvas.drawText(faceName, faceBounds.getX() + ID_X_OFFSET, faceBounds.getBottom() + ID_Y_OFFSET, idPaint);
+    private static final class Snapshot extends GraphicOverlay.Graphic {
+
+        private final FirebaseVisionFace face;
+        private final String faceName;
+        private final Paint facePositionPaint;
+        private final Paint idPaint;
+        private final Paint boxPaint;
+
+        Snapshot(GraphicOverlay overlay, FirebaseVisionFace face, String faceName,
+                 Paint facePositionPaint, Paint idPaint, Paint boxPaint) {
+            super(overlay);
+            this.face = face;
+            this.faceName = faceName;
+            this.facePositionPaint = facePositionPaint;
+            this.idPaint = idPaint;
+            this.boxPaint = boxPaint;
         }
-        float x = faceBounds.getX();
-        float y = faceBounds.getY();
-
-
-        //<editor-fold>
-    canvas.drawCircle(x, y, FACE_POSITION_RADIUS, facePositionPaint);
-
-    /*
-    canvas.drawText(
-        "happiness: " + String.format("%.2f", face.getSmilingProbability()),
-        x + ID_X_OFFSET * 6,
-        y - ID_Y_OFFSET,
-        idPaint);
-    if (cameraFacing == CameraSource.CAMERA_FACING_FRONT) {
-      canvas.drawText(
-          "right eye: " + String.format("%.2f", face.getRightEyeOpenProbability()),
-          x - ID_X_OFFSET,
-          y,
-          idPaint);
-      canvas.drawText(
-          "left eye: " + String.format("%.2f", face.getLeftEyeOpenProbability()),
-          x + ID_X_OFFSET * 6,
-          y,
-          idPaint);
-    } else {
-      canvas.drawText(
-          "left eye: " + String.format("%.2f", face.getLeftEyeOpenProbability()),
-          x - ID_X_OFFSET,
-          y,
-          idPaint);
-      canvas.drawText(
-          "right eye: " + String.format("%.2f", face.getRightEyeOpenProbability()),
-          x + ID_X_OFFSET * 6,
-          y,
-          idPaint);
-    }*/
-
-
-        // draw landmarks
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.BOTTOM_MOUTH);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_CHEEK);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_EAR);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_MOUTH);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_EYE);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.NOSE_BASE);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_CHEEK);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_EAR);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_EYE);
-    drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_MOUTH);
-
-        //</editor-fold>
 
+        @Override
+        public void draw(Canvas canvas) {
+            if (null == face)
+                return;
+            drawRectangle(face, canvas);
+        }
 
+        /**
+         * Draw a rectangle around the face, its position and its landmarks.
+         */
+        private void drawRectangle(FirebaseVisionFace face, Canvas canvas) {
+            FaceBounds faceBounds = getFaceBounds(this, face);
+            canvas.drawRect(faceBounds.getLeft(), faceBounds.getTop(), faceBounds.getRight(), faceBounds.getBottom(), boxPaint);
+            if (null != faceName) {
+                canvas.drawText(faceName, faceBounds.getX() + ID_X_OFFSET, faceBounds.getBottom() + ID_Y_OFFSET, idPaint);
+            }
+            canvas.drawCircle(faceBounds.getX(), faceBounds.getY(), FACE_POSITION_RADIUS, facePositionPaint);
+
+            // draw landmarks
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.BOTTOM_MOUTH);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_CHEEK);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_EAR);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_MOUTH);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.LEFT_EYE);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.NOSE_BASE);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_CHEEK);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_EAR);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_EYE);
+            drawLandmarkPosition(canvas, face, FirebaseVisionFaceLandmark.RIGHT_MOUTH);
+        }
 
+        private void drawLandmarkPosition(Canvas canvas, FirebaseVisionFace face, int landmarkID) {
+            FirebaseVisionFaceLandmark landmark = face.getLandmark(landmarkID);
+            if (landmark != null) {
+                FirebaseVisionPoint point = landmark.getPosition();
+                canvas.drawCircle(translateX(point.getX()), translateY(point.getY()), 10f, idPaint);
+            }
+        }
     }
 
     public FaceBounds getFaceBoundsForFace(FirebaseVisionFace face) {
-        float x = translateX(face.getBoundingBox().centerX());
-        float y = translateY(face.getBoundingBox().centerY());
-        float xOffset = scaleX(face.getBoundingBox().width() / 2.0f);
-        float yOffset = scaleY(face.getBoundingBox().height() / 2.0f);
+        return getFaceBounds(this, face);
+    }
+
+    private static FaceBounds getFaceBounds(GraphicOverlay.Graphic graphic, FirebaseVisionFace face) {
+        float x = graphic.translateX(face.getBoundingBox().centerX());
+        float y = graphic.translateY(face.getBoundingBox().centerY());
+        float xOffset = graphic.scaleX(face.getBoundingBox().width() / 2.0f);
+        float yOffset = graphic.scaleY(face.getBoundingBox().height() / 2.0f);
         float left = x - xOffset;
         float top = y - yOffset;
         float right = x + xOffset;
@@ -243,19 +319,4 @@ public class FaceGraphic extends GraphicOverlay.Graphic {
         }
 
     }
-
-
-    //<editor-fold>
-
-  private void drawLandmarkPosition(Canvas canvas, FirebaseVisionFace face, int landmarkID) {
-    FirebaseVisionFaceLandmark landmark = face.getLandmark(landmarkID);
-    if (landmark != null) {
-      FirebaseVisionPoint point = landmark.getPosition();
-      canvas.drawCircle(
-              translateX(point.getX()),
-              translateY(point.getY()),
-              10f, idPaint);
-    }
-  }
-    //</editor-fold>
 }
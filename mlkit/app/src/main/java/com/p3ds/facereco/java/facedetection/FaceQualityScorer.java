@@ -0,0 +1,153 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.facedetection;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import com.google.firebase.ml.vision.face.FirebaseVisionFace;
+
+/**
+ * Scores face crops before they are sent to recognition. The score is in [0, 1] and combines the
+ * sharpness of the crop (variance of the Laplacian on luma), the size of the detected box and the
+ * head pose / eye-open classifications ML Kit returns with {@code ALL_CLASSIFICATIONS}.
+ *
+ * <p>Not thread safe, the scratch pixel buffer is reused between calls.
+ */
+public class FaceQualityScorer {
+
+    /**
+     * Boxes smaller than this (in image pixels) score 0, boxes of {@link #FULL_FACE_SIZE} and
+     * more score 1 for size.
+     */
+    private static final float MIN_FACE_SIZE = 48.0f;
+    private static final float FULL_FACE_SIZE = 160.0f;
+
+    /**
+     * Head rotation (in degrees) at which a face is considered turned away.
+     */
+    private static final float MAX_EULER_Y = 40.0f;
+    private static final float MAX_EULER_Z = 30.0f;
+
+    /**
+     * Laplacian variance at which a crop is considered perfectly sharp.
+     */
+    private static final float FULL_SHARPNESS = 120.0f;
+
+    /**
+     * Larger crops are sampled on a grid so that about this many samples per side are used.
+     */
+    private static final int SHARPNESS_SAMPLES_PER_SIDE = 96;
+
+    private int[] pixels = new int[0];
+
+    /**
+     * Scores the given face with its crop.
+     *
+     * @param face detected face, its bounding box is expected in image coordinates
+     * @param crop pixels of the face
+     * @return quality in [0, 1], 0 meaning the crop is useless for recognition
+     */
+    public float score(FirebaseVisionFace face, Bitmap crop) {
+        Rect box = face.getBoundingBox();
+        float size = sizeScore(Math.min(box.width(), box.height()));
+        if (size == 0.0f) {
+            return 0.0f;
+        }
+        float pose = poseScore(face.getHeadEulerAngleY(), face.getHeadEulerAngleZ());
+        if (pose == 0.0f) {
+            return 0.0f;
+        }
+        float eyes = eyeScore(face.getLeftEyeOpenProbability(), face.getRightEyeOpenProbability());
+        return size * pose * eyes * sharpnessScore(crop);
+    }
+
+    /**
+     * Sharpness of the crop in [0, 1].
+     */
+    private float sharpnessScore(Bitmap crop) {
+        int width = crop.getWidth();
+        int height = crop.getHeight();
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        crop.getPixels(pixels, 0, width, 0, 0, width, height);
+        int step = Math.max(1, Math.min(width, height) / SHARPNESS_SAMPLES_PER_SIDE);
+        return Math.min(1.0f, laplacianVariance(pixels, width, height, step) / FULL_SHARPNESS);
+    }
+
+    static float sizeScore(float size) {
+        if (size <= MIN_FACE_SIZE) {
+            return 0.0f;
+        }
+        return Math.min(1.0f, (size - MIN_FACE_SIZE) / (FULL_FACE_SIZE - MIN_FACE_SIZE));
+    }
+
+    static float poseScore(float eulerY, float eulerZ) {
+        float yaw = Math.max(0.0f, 1.0f - Math.abs(eulerY) / MAX_EULER_Y);
+        float roll = Math.max(0.0f, 1.0f - Math.abs(eulerZ) / MAX_EULER_Z);
+        return yaw * roll;
+    }
+
+    /**
+     * Closed eyes halve the score. Uncomputed probabilities are neutral.
+     */
+    static float eyeScore(float leftEyeOpen, float rightEyeOpen) {
+        if (leftEyeOpen == FirebaseVisionFace.UNCOMPUTED_PROBABILITY
+                || rightEyeOpen == FirebaseVisionFace.UNCOMPUTED_PROBABILITY) {
+            return 1.0f;
+        }
+        return 0.5f + 0.5f * Math.min(leftEyeOpen, rightEyeOpen);
+    }
+
+    /**
+     * Variance of the 4-neighbour Laplacian of the luma of {@code argb}, sampled every
+     * {@code step} pixels.
+     *
+     * @param argb   packed pixels, row stride is {@code width}
+     * @param width  width of the image
+     * @param height height of the image
+     * @param step   sampling distance in pixels, also used as the Laplacian neighbour distance
+     */
+    static float laplacianVariance(int[] argb, int width, int height, int step) {
+        double sum = 0;
+        double sumSq = 0;
+        int count = 0;
+        for (int y = step; y < height - step; y += step) {
+            int row = y * width;
+            for (int x = step; x < width - step; x += step) {
+                int lap = 4 * luma(argb[row + x])
+                        - luma(argb[row + x - step])
+                        - luma(argb[row + x + step])
+                        - luma(argb[row - step * width + x])
+                        - luma(argb[row + step * width + x]);
+                sum += lap;
+                sumSq += lap * lap;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0.0f;
+        }
+        double mean = sum / count;
+        return (float) (sumSq / count - mean * mean);
+    }
+
+    /**
+     * BT.601 luma with integer weights.
+     */
+    private static int luma(int argb) {
+        return (77 * ((argb >> 16) & 0xFF) + 150 * ((argb >> 8) & 0xFF) + 29 * (argb & 0xFF)) >> 8;
+    }
+}
@@ -0,0 +1,350 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.facedetection;
+
+import android.graphics.Rect;
+
+import com.google.firebase.ml.vision.face.FirebaseVisionFace;
+import com.p3ds.facereco.java.processing.CoordinateTransform;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tells live faces from photos and screens held in front of the camera, per tracked face, from
+ * signals accumulated over a window of {@value #WINDOW_MS} ms:
+ *
+ * <ul>
+ *   <li>a blink, from the eye-open probabilities of ML Kit,
+ *   <li>head yaw changes,
+ *   <li>non-rigid motion: change of the luma of the face between frames, sampled on a grid that
+ *       follows the face box. A flat picture moving as a whole barely changes once the box
+ *       follows it,
+ *   <li>texture: a recaptured face loses its finest detail, so the ratio of fine to coarse
+ *       luma Laplacian energy drops. Screens may show moire instead, which raises it.
+ * </ul>
+ *
+ * Signals are updated incrementally with every frame from the NV21 luma of the frame, at a cost of
+ * a few hundred luma reads per face. Every track holds a fixed amount of state and at most
+ * {@value #MAX_TRACKS} tracks are kept. Not thread safe.
+ */
+public class LivenessDetector {
+
+    /**
+     * Liveness of a track.
+     */
+    public enum Verdict {
+        /** Not enough frames observed yet. */
+        UNKNOWN,
+        LIVE,
+        SPOOF
+    }
+
+    private static final long WINDOW_MS = 3000;
+    private static final int MIN_FRAMES = 8;
+    private static final int MAX_TRACKS = 16;
+
+    /**
+     * Eye-open probabilities below which both eyes count as closed, and above which as open.
+     */
+    private static final float EYE_CLOSED = 0.3f;
+    private static final float EYE_OPEN = 0.7f;
+
+    /**
+     * Range of head yaw, in degrees, within a window that counts as a head movement.
+     */
+    private static final float MIN_YAW_RANGE = 8.0f;
+
+    /**
+     * Cells per side of the motion grid, each the mean of a square of {@value #CELL_SAMPLES} by
+     * {@value #CELL_SAMPLES} luma samples so that the jitter of the box is averaged out.
+     */
+    private static final int GRID = 8;
+    private static final int CELL_SAMPLES = 3;
+
+    /**
+     * Mean change of a grid cell between frames, relative to the mean luma, above which the face
+     * moves non-rigidly.
+     */
+    private static final float MIN_MOTION = 0.02f;
+
+    /**
+     * Points per side of the face the Laplacians are sampled at, and the coarse Laplacian
+     * distance relative to the face size.
+     */
+    private static final int TEXTURE_SAMPLES = 12;
+    private static final float COARSE_STEP = 1 / 24.0f;
+
+    /**
+     * Band of the fine to coarse Laplacian energy ratio of live faces.
+     */
+    private static final float MIN_TEXTURE_RATIO = 0.25f;
+    private static final float MAX_TEXTURE_RATIO = 1.2f;
+
+    /**
+     * Smoothing factor of the per-frame motion and texture measures.
+     */
+    private static final float SMOOTHING = 0.3f;
+
+    private static final int EYES_UNKNOWN = 0;
+    private static final int EYES_OPEN = 1;
+    private static final int EYES_CLOSED = 2;
+
+    /**
+     * Signals of a track over the current window. The verdict of the previous window stays until
+     * the current one closes.
+     */
+    private static class Track {
+        long windowStartMs;
+        long lastSeenMs;
+        int frames;
+        int eyes = EYES_UNKNOWN;
+        boolean blinked;
+        float minYaw = Float.MAX_VALUE;
+        float maxYaw = -Float.MAX_VALUE;
+        final float[] cells = new float[GRID * GRID];
+        boolean hasCells;
+        float motion;
+        float textureRatio = -1.0f;
+        Verdict verdict = Verdict.UNKNOWN;
+
+        void startWindow(long nowMs) {
+            windowStartMs = nowMs;
+            frames = 0;
+            blinked = false;
+            minYaw = Float.MAX_VALUE;
+            maxYaw = -Float.MAX_VALUE;
+            motion = 0.0f;
+            textureRatio = -1.0f;
+        }
+    }
+
+    private final Map<Integer, Track> tracks = new HashMap<>();
+
+    // Scratch of the current frame
+    private final float[] corners = new float[6];
+    private final float[] frameCells = new float[GRID * GRID];
+
+    /**
+     * Updates the signals of a track with a new frame.
+     *
+     * @param trackingId    tracking ID of the face
+     * @param face          detected face, in image space
+     * @param luma          luma plane of the NV21 frame, in buffer space, row stride
+     *                      {@code lumaWidth}
+     * @param imageToBuffer mapping from image to buffer space of the frame
+     * @return the verdict of the track
+     */
+    public Verdict update(int trackingId, FirebaseVisionFace face, byte[] luma, int lumaWidth,
+                          int lumaHeight, CoordinateTransform imageToBuffer, long nowMs) {
+        Track track = tracks.get(trackingId);
+        if (track == null) {
+            if (tracks.size() >= MAX_TRACKS) {
+                evictOldest();
+            }
+            track = new Track();
+            track.startWindow(nowMs);
+            tracks.put(trackingId, track);
+        }
+        track.lastSeenMs = nowMs;
+        track.frames++;
+        updateEyes(track, face.getLeftEyeOpenProbability(), face.getRightEyeOpenProbability());
+        track.minYaw = Math.min(track.minYaw, face.getHeadEulerAngleY());
+        track.maxYaw = Math.max(track.maxYaw, face.getHeadEulerAngleY());
+        if (luma != null && mapBox(face.getBoundingBox(), imageToBuffer, lumaWidth, lumaHeight)) {
+            updateMotion(track, luma, lumaWidth);
+            updateTexture(track, luma, lumaWidth, lumaHeight);
+        }
+        if (nowMs - track.windowStartMs >= WINDOW_MS && track.frames >= MIN_FRAMES) {
+            track.verdict = decide(track);
+            track.startWindow(nowMs);
+        } else if (track.blinked && track.verdict == Verdict.UNKNOWN && track.frames >= MIN_FRAMES
+                && decide(track) == Verdict.LIVE) {
+            // A blink with another cue is enough, no need to wait for the end of the first window
+            track.verdict = Verdict.LIVE;
+        }
+        return track.verdict;
+    }
+
+    /**
+     * @return the verdict of a track, {@link Verdict#UNKNOWN} for unknown tracks
+     */
+    public Verdict getVerdict(int trackingId) {
+        Track track = tracks.get(trackingId);
+        return track != null ? track.verdict : Verdict.UNKNOWN;
+    }
+
+    /**
+     * Drops the state of all tracks that are not in {@code trackingIds}.
+     */
+    public void retain(Collection<Integer> trackingIds) {
+        tracks.keySet().retainAll(trackingIds);
+    }
+
+    public void clear() {
+        tracks.clear();
+    }
+
+    private void evictOldest() {
+        Integer oldest = null;
+        long oldestMs = Long.MAX_VALUE;
+        for (Map.Entry<Integer, Track> entry : tracks.entrySet()) {
+            if (entry.getValue().lastSeenMs < oldestMs) {
+                oldestMs = entry.getValue().lastSeenMs;
+                oldest = entry.getKey();
+            }
+        }
+        tracks.remove(oldest);
+    }
+
+    /**
+     * A blink is both eyes going from open to closed and open again.
+     */
+    private static void updateEyes(Track track, float leftEyeOpen, float rightEyeOpen) {
+        if (leftEyeOpen == FirebaseVisionFace.UNCOMPUTED_PROBABILITY
+                || rightEyeOpen == FirebaseVisionFace.UNCOMPUTED_PROBABILITY) {
+            return;
+        }
+        if (leftEyeOpen < EYE_CLOSED && rightEyeOpen < EYE_CLOSED) {
+            if (track.eyes == EYES_OPEN) {
+                track.eyes = EYES_CLOSED;
+            }
+        } else if (leftEyeOpen > EYE_OPEN && rightEyeOpen > EYE_OPEN) {
+            if (track.eyes == EYES_CLOSED) {
+                track.blinked = true;
+            }
+            track.eyes = EYES_OPEN;
+        }
+    }
+
+    /**
+     * Maps the top left, top right and bottom left corners of the box to buffer space, into
+     * {@link #corners}.
+     *
+     * @return false if the box is not entirely inside the frame
+     */
+    private boolean mapBox(Rect box, CoordinateTransform imageToBuffer, int width, int height) {
+        corners[0] = box.left;
+        corners[1] = box.top;
+        corners[2] = box.right;
+        corners[3] = box.top;
+        corners[4] = box.left;
+        corners[5] = box.bottom;
+        imageToBuffer.mapPoints(corners);
+        float right = corners[0] + (corners[2] - corners[0]) + (corners[4] - corners[0]);
+        float bottom = corners[1] + (corners[3] - corners[1]) + (corners[5] - corners[1]);
+        return Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], right)) >= 0
+                && Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], bottom)) >= 0
+                && Math.max(Math.max(corners[0], corners[2]), Math.max(corners[4], right)) < width
+                && Math.max(Math.max(corners[1], corners[3]), Math.max(corners[5], bottom)) < height;
+    }
+
+    /**
+     * Luma at relative position (u, v) of the mapped box.
+     */
+    private int sample(byte[] luma, int stride, float u, float v) {
+        int x = (int) (corners[0] + u * (corners[2] - corners[0]) + v * (corners[4] - corners[0]));
+        int y = (int) (corners[1] + u * (corners[3] - corners[1]) + v * (corners[5] - corners[1]));
+        return luma[y * stride + x] & 0xFF;
+    }
+
+    private void updateMotion(Track track, byte[] luma, int stride) {
+        float step = 1.0f / (GRID * CELL_SAMPLES);
+        float total = 0.0f;
+        for (int cy = 0; cy < GRID; ++cy) {
+            for (int cx = 0; cx < GRID; ++cx) {
+                int sum = 0;
+                for (int sy = 0; sy < CELL_SAMPLES; ++sy) {
+                    for (int sx = 0; sx < CELL_SAMPLES; ++sx) {
+                        sum += sample(luma, stride, ((cx * CELL_SAMPLES + sx) + 0.5f) * step,
+                                ((cy * CELL_SAMPLES + sy) + 0.5f) * step);
+                    }
+                }
+                float mean = (float) sum / (CELL_SAMPLES * CELL_SAMPLES);
+                frameCells[cy * GRID + cx] = mean;
+                total += mean;
+            }
+        }
+        float meanLuma = Math.max(1.0f, total / (GRID * GRID));
+        if (track.hasCells) {
+            float change = 0.0f;
+            for (int i = 0; i < GRID * GRID; ++i) {
+                change += Math.abs(frameCells[i] - track.cells[i]);
+            }
+            float motion = change / (GRID * GRID) / meanLuma;
+            track.motion += SMOOTHING * (motion - track.motion);
+        }
+        System.arraycopy(frameCells, 0, track.cells, 0, GRID * GRID);
+        track.hasCells = true;
+    }
+
+    private void updateTexture(Track track, byte[] luma, int stride, int height) {
+        float sideX = corners[2] - corners[0];
+        float sideY = corners[3] - corners[1];
+        int coarse = Math.max(2, (int) (Math.sqrt(sideX * sideX + sideY * sideY) * COARSE_STEP));
+        long fineEnergy = 0;
+        long coarseEnergy = 0;
+        for (int j = 1; j <= TEXTURE_SAMPLES; ++j) {
+            for (int i = 1; i <= TEXTURE_SAMPLES; ++i) {
+                float u = (float) i / (TEXTURE_SAMPLES + 1);
+                float v = (float) j / (TEXTURE_SAMPLES + 1);
+                int x = (int) (corners[0] + u * (corners[2] - corners[0]) + v * (corners[4] - corners[0]));
+                int y = (int) (corners[1] + u * (corners[3] - corners[1]) + v * (corners[5] - corners[1]));
+                if (x < coarse || y < coarse || x >= stride - coarse || y >= height - coarse) {
+                    continue;
+                }
+                fineEnergy += Math.abs(laplacian(luma, stride, x, y, 1));
+                coarseEnergy += Math.abs(laplacian(luma, stride, x, y, coarse));
+            }
+        }
+        if (coarseEnergy == 0) {
+            return;
+        }
+        float ratio = (float) fineEnergy / coarseEnergy;
+        track.textureRatio = track.textureRatio < 0 ? ratio
+                : track.textureRatio + SMOOTHING * (ratio - track.textureRatio);
+    }
+
+    private static int laplacian(byte[] luma, int stride, int x, int y, int step) {
+        int center = y * stride + x;
+        return 4 * (luma[center] & 0xFF)
+                - (luma[center - step] & 0xFF)
+                - (luma[center + step] & 0xFF)
+                - (luma[center - step * stride] & 0xFF)
+                - (luma[center + step * stride] & 0xFF);
+    }
+
+    /**
+     * A blink counts twice, head movement and non-rigid motion once each, a texture out of the
+     * live band counts against. Two points make a live face.
+     */
+    private static Verdict decide(Track track) {
+        int evidence = 0;
+        if (track.blinked) {
+            evidence += 2;
+        }
+        if (track.maxYaw - track.minYaw >= MIN_YAW_RANGE) {
+            evidence++;
+        }
+        if (track.motion >= MIN_MOTION) {
+            evidence++;
+        }
+        if (track.textureRatio >= 0
+                && (track.textureRatio < MIN_TEXTURE_RATIO || track.textureRatio > MAX_TEXTURE_RATIO)) {
+            evidence--;
+        }
+        return evidence >= 2 ? Verdict.LIVE : Verdict.SPOOF;
+    }
+}
@@ -0,0 +1,168 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures what {@link TemplateAggregator} trades: gallery size and search time against accuracy.
+ *
+ * <p>Every {@value #IMPOSTOR_EVERY}th identity, in the order of the gallery, is held out as a
+ * whole: its templates are impostor probes, faces of visitors the gallery does not know. Of the
+ * other identities, one template of every identity enrolled at least twice is held out as a genuine
+ * probe, and the remaining templates form the reference gallery, searched as enrolled and
+ * aggregated by mean and by medoid. For each the number of templates, the top-1 accuracy of the
+ * genuine probes, the share of them identified correctly at {@link Recognition#MIN_KNOWN_CONFIDENCE},
+ * the share of impostor probes accepted as someone at that threshold and the mean search time are
+ * reported.
+ *
+ * <pre>
+ * java com.p3ds.facereco.java.facerecognition.AggregationEvaluation gallery embedding_size [max templates]
+ * </pre>
+ */
+public final class AggregationEvaluation {
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * One identity out of this many is held out as impostors.
+     */
+    private static final int IMPOSTOR_EVERY = 5;
+
+    private AggregationEvaluation() {
+    }
+
+    /**
+     * Probes of one kind, with the identity each one belongs to.
+     */
+    private static class Probes {
+        private final int[] identityIds;
+        private final float[] embeddings;
+        private int count;
+
+        Probes(int capacity, int embeddingSize) {
+            identityIds = new int[capacity];
+            embeddings = new float[capacity * embeddingSize];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AggregationEvaluation gallery embedding_size [max templates]");
+            System.exit(1);
+        }
+        FaceGallery gallery = FaceGallery.read(new File(args[0]), Integer.parseInt(args[1]));
+        int maxTemplates = args.length > 2 ? Integer.parseInt(args[2])
+                : ModelManifest.DEFAULT_GALLERY_AGGREGATION_MAX_TEMPLATES;
+
+        int size = gallery.getEmbeddingSize();
+        int count = gallery.size();
+        Map<Integer, Integer> templateCounts = new HashMap<>();
+        Map<Integer, Integer> ordinals = new HashMap<>();
+        for (int i = 0; i < count; ++i) {
+            int identityId = gallery.getIdentityId(i);
+            templateCounts.merge(identityId, 1, Integer::sum);
+            if (!ordinals.containsKey(identityId)) {
+                ordinals.put(identityId, ordinals.size());
+            }
+        }
+        Probes genuine = new Probes(count, size);
+        Probes impostors = new Probes(count, size);
+        int[] referenceIds = new int[count];
+        float[] references = new float[count * size];
+        int referenceCount = 0;
+        for (int i = 0; i < count; ++i) {
+            int identityId = gallery.getIdentityId(i);
+            Probes probes = null;
+            if (ordinals.get(identityId) % IMPOSTOR_EVERY == 0) {
+                probes = impostors;
+            } else if (templateCounts.get(identityId) > 1) {
+                // The first template of an identity with others to match it against is the probe
+                probes = genuine;
+                templateCounts.put(identityId, 0);
+            }
+            if (probes != null) {
+                probes.identityIds[probes.count] = identityId;
+                gallery.getTemplate(i, probes.embeddings, probes.count++ * size);
+            } else {
+                referenceIds[referenceCount] = identityId;
+                gallery.getTemplate(i, references, referenceCount++ * size);
+            }
+        }
+        if (genuine.count == 0) {
+            System.err.println("No identity left in the gallery has more than one template");
+            System.exit(1);
+        }
+        FaceGallery reference = new FaceGallery(size, Arrays.copyOf(referenceIds, referenceCount),
+                Arrays.copyOf(references, referenceCount * size));
+
+        System.out.println(String.format(Locale.US,
+                "%d templates of %d identities, %d genuine and %d impostor probes, "
+                        + "at most %d templates per identity",
+                count, ordinals.size(), genuine.count, impostors.count, maxTemplates));
+        evaluate("enrolled", reference, genuine, impostors);
+        for (TemplateAggregator.Mode mode : TemplateAggregator.Mode.values()) {
+            long start = System.nanoTime();
+            FaceGallery aggregated = new TemplateAggregator(mode, maxTemplates,
+                    TemplateAggregator.DEFAULT_COVER_SIMILARITY).aggregate(reference, null);
+            System.out.println(String.format(Locale.US, "%s aggregated in %.1f ms",
+                    mode.name().toLowerCase(Locale.US), (System.nanoTime() - start) / 1e6));
+            evaluate(mode.name().toLowerCase(Locale.US), aggregated, genuine, impostors);
+        }
+    }
+
+    private static void evaluate(String name, FaceGallery gallery, Probes genuine, Probes impostors) {
+        int size = gallery.getEmbeddingSize();
+        float[] probe = new float[size];
+        TopK matches = new TopK(1);
+        int correct = 0;
+        int identified = 0;
+        int accepted = 0;
+        long elapsedNs = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (int p = 0; p < genuine.count; ++p) {
+                System.arraycopy(genuine.embeddings, p * size, probe, 0, size);
+                long start = System.nanoTime();
+                gallery.match(probe, matches);
+                elapsedNs += System.nanoTime() - start;
+                if (round == 0 && matches.size() > 0 && matches.getId(0) == genuine.identityIds[p]) {
+                    correct++;
+                    if (matches.getScore(0) >= Recognition.MIN_KNOWN_CONFIDENCE) {
+                        identified++;
+                    }
+                }
+            }
+        }
+        for (int p = 0; p < impostors.count; ++p) {
+            System.arraycopy(impostors.embeddings, p * size, probe, 0, size);
+            gallery.match(probe, matches);
+            if (matches.size() > 0 && matches.getScore(0) >= Recognition.MIN_KNOWN_CONFIDENCE) {
+                accepted++;
+            }
+        }
+        System.out.println(String.format(Locale.US,
+                "%-8s %8d templates, top-1 %.2f%%, identified %.2f%%, false accepts %s, %.1f us per search",
+                name, gallery.size(), 100.0 * correct / genuine.count, 100.0 * identified / genuine.count,
+                impostors.count > 0 ? String.format(Locale.US, "%.2f%%", 100.0 * accepted / impostors.count)
+                        : "n/a",
+                elapsedNs / 1e3 / ROUNDS / genuine.count));
+    }
+}
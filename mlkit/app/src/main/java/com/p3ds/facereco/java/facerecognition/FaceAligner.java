@@ -0,0 +1,237 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Aligns a face on the eye and mouth landmarks and writes it straight into the input tensor.
+ *
+ * <p>A similarity transform (rotation, uniform scale and translation) is fitted in the least
+ * squares sense from the canonical landmark positions of the tensor to the landmarks found in the
+ * source image. Every tensor pixel is then sampled bilinearly from the source and normalized in a
+ * single pass, so no intermediate crop or scaled bitmap is needed. Nothing is allocated per call.
+ *
+ * <p>Normalization is affine, so it commutes with the interpolation: the four source samples are
+ * normalized through a 256 entry table and interpolated afterwards, which leaves no division in the
+ * loop. Rows are assembled in an array and written to the tensor in bulk.
+ *
+ * <p>Faces without usable landmarks are scaled as a whole to the tensor with
+ * {@link #setRegion(int, int)} instead.
+ */
+public class FaceAligner {
+
+    /**
+     * Index of the coordinates of a landmark in the landmark array, x first, y second.
+     */
+    public static final int LEFT_EYE = 0;
+    public static final int RIGHT_EYE = 2;
+    public static final int MOUTH = 4;
+    public static final int LANDMARK_ARRAY_SIZE = 6;
+
+    /**
+     * Canonical landmark positions, relative to the tensor size. The subject's left eye is on the
+     * right of the (non mirrored) image. The template is loose enough to keep the forehead and the
+     * chin, like the box crops the model has been trained on.
+     */
+    private static final float[] TEMPLATE = {
+            0.68f, 0.40f,
+            0.32f, 0.40f,
+            0.50f, 0.76f,
+    };
+
+    private final int outWidth;
+    private final int outHeight;
+
+    private final float[] template = new float[LANDMARK_ARRAY_SIZE];
+
+    /**
+     * Normalized value of every channel value, the mean and scale are shared by the channels.
+     */
+    private final float[] normalized = new float[256];
+
+    /**
+     * One tensor row, interleaved channels.
+     */
+    private final float[] row;
+
+    // Float view of the last tensor written to, spanning the whole buffer
+    private ByteBuffer viewSource;
+    private FloatBuffer view;
+
+    // Tensor to source transform: sx = m00 * u + m01 * v + tx, sy = m10 * u + m11 * v + ty
+    private float m00;
+    private float m01;
+    private float m10;
+    private float m11;
+    private float tx;
+    private float ty;
+
+    /**
+     * @param outWidth  width of the input tensor
+     * @param outHeight height of the input tensor
+     * @param mean      value subtracted from every channel
+     * @param std       value every channel is divided by after subtracting the mean
+     */
+    public FaceAligner(int outWidth, int outHeight, float mean, float std) {
+        this.outWidth = outWidth;
+        this.outHeight = outHeight;
+        for (int i = 0; i < LANDMARK_ARRAY_SIZE; i += 2) {
+            template[i] = TEMPLATE[i] * outWidth;
+            template[i + 1] = TEMPLATE[i + 1] * outHeight;
+        }
+        for (int c = 0; c < normalized.length; ++c) {
+            normalized[c] = (c - mean) / std;
+        }
+        row = new float[outWidth * 3];
+    }
+
+    /**
+     * Fits the transform to the landmarks of a face.
+     *
+     * @param landmarks {@link #LANDMARK_ARRAY_SIZE} coordinates in source pixels, laid out as
+     *                  given by {@link #LEFT_EYE}, {@link #RIGHT_EYE} and {@link #MOUTH}
+     * @return false if the landmarks are degenerate and cannot be used
+     */
+    public boolean setLandmarks(float[] landmarks) {
+        float dstMeanX = 0;
+        float dstMeanY = 0;
+        float srcMeanX = 0;
+        float srcMeanY = 0;
+        for (int i = 0; i < LANDMARK_ARRAY_SIZE; i += 2) {
+            dstMeanX += template[i];
+            dstMeanY += template[i + 1];
+            srcMeanX += landmarks[i];
+            srcMeanY += landmarks[i + 1];
+        }
+        int count = LANDMARK_ARRAY_SIZE / 2;
+        dstMeanX /= count;
+        dstMeanY /= count;
+        srcMeanX /= count;
+        srcMeanY /= count;
+
+        float norm = 0;
+        float dot = 0;
+        float cross = 0;
+        for (int i = 0; i < LANDMARK_ARRAY_SIZE; i += 2) {
+            float dx = template[i] - dstMeanX;
+            float dy = template[i + 1] - dstMeanY;
+            float sx = landmarks[i] - srcMeanX;
+            float sy = landmarks[i + 1] - srcMeanY;
+            norm += dx * dx + dy * dy;
+            dot += dx * sx + dy * sy;
+            cross += dx * sy - dy * sx;
+        }
+        float a = dot / norm;
+        float b = cross / norm;
+        if (!(a * a + b * b > 1e-6f)) {
+            // Collapsed or NaN landmarks
+            return false;
+        }
+        // Similarity: rotation and uniform scale
+        m00 = a;
+        m01 = -b;
+        m10 = b;
+        m11 = a;
+        tx = srcMeanX - (a * dstMeanX - b * dstMeanY);
+        ty = srcMeanY - (b * dstMeanX + a * dstMeanY);
+        return true;
+    }
+
+    /**
+     * Sets the transform to scale the whole source to the tensor, pixel centers aligned, like a
+     * bilinear bitmap scale would.
+     *
+     * @param width  width of the source
+     * @param height height of the source
+     */
+    public void setRegion(int width, int height) {
+        m00 = (float) width / outWidth;
+        m01 = 0;
+        m10 = 0;
+        m11 = (float) height / outHeight;
+        tx = 0.5f * m00 - 0.5f;
+        ty = 0.5f * m11 - 0.5f;
+    }
+
+    /**
+     * Warps the source into {@code out} with the transform of the last successful
+     * {@link #setLandmarks(float[])} or {@link #setRegion(int, int)}. Samples outside of the
+     * source are clamped to its border.
+     *
+     * @param argb   source pixels, row stride is {@code width}
+     * @param width  width of the source
+     * @param height height of the source
+     * @param out    tensor of {@code outWidth * outHeight * 3} native order floats, written from
+     *               its current position
+     */
+    public void warp(int[] argb, int width, int height, ByteBuffer out) {
+        FloatBuffer floats = floatView(out);
+        floats.position(out.position() / 4);
+        int maxX = width - 1;
+        int maxY = height - 1;
+        for (int v = 0; v < outHeight; ++v) {
+            float rowX = m01 * v + tx;
+            float rowY = m11 * v + ty;
+            for (int u = 0, i = 0; u < outWidth; ++u, i += 3) {
+                float sx = m00 * u + rowX;
+                float sy = m10 * u + rowY;
+                sx = sx < 0 ? 0 : (sx > maxX ? maxX : sx);
+                sy = sy < 0 ? 0 : (sy > maxY ? maxY : sy);
+                int x0 = (int) sx;
+                int y0 = (int) sy;
+                int x1 = x0 < maxX ? x0 + 1 : x0;
+                int y1 = y0 < maxY ? y0 + 1 : y0;
+                float fx = sx - x0;
+                float fy = sy - y0;
+                int p00 = argb[y0 * width + x0];
+                int p01 = argb[y0 * width + x1];
+                int p10 = argb[y1 * width + x0];
+                int p11 = argb[y1 * width + x1];
+                row[i] = lerp(p00, p01, p10, p11, 16, fx, fy);
+                row[i + 1] = lerp(p00, p01, p10, p11, 8, fx, fy);
+                row[i + 2] = lerp(p00, p01, p10, p11, 0, fx, fy);
+            }
+            floats.put(row);
+        }
+        out.position(4 * floats.position());
+    }
+
+    /**
+     * @return a float view of the whole of {@code out} in its byte order, kept while the same
+     * tensor is written to
+     */
+    private FloatBuffer floatView(ByteBuffer out) {
+        if (out != viewSource) {
+            ByteBuffer whole = out.duplicate().order(out.order());
+            whole.clear();
+            view = whole.asFloatBuffer();
+            viewSource = out;
+        }
+        return view;
+    }
+
+    private float lerp(int p00, int p01, int p10, int p11, int shift, float fx, float fy) {
+        float c00 = normalized[(p00 >> shift) & 0xFF];
+        float c01 = normalized[(p01 >> shift) & 0xFF];
+        float c10 = normalized[(p10 >> shift) & 0xFF];
+        float c11 = normalized[(p11 >> shift) & 0xFF];
+        float top = c00 + (c01 - c00) * fx;
+        float bottom = c10 + (c11 - c10) * fx;
+        return top + (bottom - top) * fy;
+    }
+}
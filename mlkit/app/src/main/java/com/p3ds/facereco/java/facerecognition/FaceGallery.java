@@ -0,0 +1,272 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Enrolled face embeddings of an embedding model, each tagged with the identity ID it belongs to.
+ * An identity may have several templates. Embeddings are normalized on load, so that matching is
+ * a dot product per template.
+ *
+ * <p>The gallery file is little endian:
+ *
+ * <pre>
+ * int     magic "P3GL"
+ * int     format version
+ * int     embedding size
+ * int     count
+ * count * (int identity ID, float[embedding size] embedding)
+ * </pre>
+ *
+ * Identity IDs are the output indices of the model and its labels, never negative.
+ *
+ * <p>Templates can adapt online, see {@link #enableAdaptation(float, float, float)}: a confident
+ * match moves the closest template of the identity a step towards the face, but never further from
+ * the enrolled template than a bound, so that a template cannot drift to another person. Adapting
+ * writes the templates in place while other threads may read them; a concurrent match may then
+ * score a template half moved, off by at most one step.
+ */
+public class FaceGallery implements Gallery {
+
+    private static final int MAGIC = 0x5033474C;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Adaptation settings of {@link #enableAdaptation(float, float, float)}.
+     */
+    public static final float DEFAULT_ADAPTATION_MIN_SCORE = 0.8f;
+    public static final float DEFAULT_ADAPTATION_RATE = 0.05f;
+    public static final float DEFAULT_ADAPTATION_MIN_ANCHOR_SIMILARITY = 0.9f;
+
+    private final int embeddingSize;
+    private final int[] identityIds;
+    private final float[] embeddings;
+
+    // Set once by enableAdaptation, adaptation is off while null
+    private volatile Adaptation adaptation;
+
+    private static final class Adaptation {
+        final float minScore;
+        final float rate;
+        final float minAnchorSimilarity;
+        // Templates as enrolled
+        final float[] anchors;
+        // Templates of every identity
+        final Map<Integer, int[]> templatesById;
+        // Reused by adapt(), which is synchronized
+        final float[] step;
+
+        Adaptation(float minScore, float rate, float minAnchorSimilarity, float[] anchors,
+                   Map<Integer, int[]> templatesById, int embeddingSize) {
+            this.minScore = minScore;
+            this.rate = rate;
+            this.minAnchorSimilarity = minAnchorSimilarity;
+            this.anchors = anchors;
+            this.templatesById = templatesById;
+            this.step = new float[embeddingSize];
+        }
+    }
+
+    /**
+     * @param identityIds identity ID of every template
+     * @param embeddings  embeddings of the templates, one after the other, normalized in place
+     */
+    public FaceGallery(int embeddingSize, int[] identityIds, float[] embeddings) {
+        if (embeddings.length != embeddingSize * identityIds.length) {
+            throw new IllegalArgumentException("Expected " + identityIds.length + " embeddings of "
+                    + embeddingSize + " floats, got " + embeddings.length + " floats");
+        }
+        this.embeddingSize = embeddingSize;
+        this.identityIds = identityIds;
+        this.embeddings = embeddings;
+        for (int i = 0; i < identityIds.length; ++i) {
+            normalize(embeddings, i * embeddingSize, embeddingSize);
+        }
+    }
+
+    /**
+     * Reads a gallery file.
+     *
+     * @param embeddingSize embedding size of the model the gallery is used with
+     */
+    public static FaceGallery read(File file, int embeddingSize) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a face gallery");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported gallery version " + buffer.getInt(4) + " in " + file);
+        }
+        if (buffer.getInt(8) != embeddingSize) {
+            throw new IOException("Gallery " + file + " holds embeddings of " + buffer.getInt(8)
+                    + " floats, the model outputs " + embeddingSize);
+        }
+        int count = buffer.getInt(12);
+        long expected = HEADER_SIZE + (long) count * 4 * (1 + embeddingSize);
+        if (count < 0 || expected > buffer.capacity()) {
+            throw new IOException("Truncated gallery " + file);
+        }
+        int[] identityIds = new int[count];
+        float[] embeddings = new float[count * embeddingSize];
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < count; ++i) {
+            identityIds[i] = buffer.getInt();
+            if (identityIds[i] < 0) {
+                throw new IOException("Negative identity ID " + identityIds[i] + " in gallery " + file);
+            }
+            FloatBuffer floats = buffer.asFloatBuffer();
+            floats.get(embeddings, i * embeddingSize, embeddingSize);
+            buffer.position(buffer.position() + 4 * embeddingSize);
+        }
+        return new FaceGallery(embeddingSize, identityIds, embeddings);
+    }
+
+    /**
+     * Scales a vector to unit length, leaving null vectors alone.
+     */
+    public static void normalize(float[] values, int offset, int length) {
+        float norm = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            norm += values[i] * values[i];
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = offset; i < offset + length; ++i) {
+                values[i] *= scale;
+            }
+        }
+    }
+
+    @Override
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    @Override
+    public int size() {
+        return identityIds.length;
+    }
+
+    /**
+     * @return the identity ID of a template
+     */
+    public int getIdentityId(int template) {
+        return identityIds[template];
+    }
+
+    /**
+     * Copies a normalized template to {@code out} at {@code offset}.
+     */
+    public void getTemplate(int template, float[] out, int offset) {
+        System.arraycopy(embeddings, template * embeddingSize, out, offset, embeddingSize);
+    }
+
+    /**
+     * @return the memory taken by the templates
+     */
+    public long getByteSize() {
+        return 4L * (identityIds.length + embeddings.length);
+    }
+
+    @Override
+    public void offer(float[] embedding, TopK matches, int[] excludedIds) {
+        for (int i = 0, offset = 0; i < identityIds.length; ++i, offset += embeddingSize) {
+            if (excludedIds != null && Arrays.binarySearch(excludedIds, identityIds[i]) >= 0) {
+                continue;
+            }
+            float similarity = 0;
+            for (int j = 0; j < embeddingSize; ++j) {
+                similarity += embedding[j] * embeddings[offset + j];
+            }
+            matches.offer(identityIds[i], similarity);
+        }
+    }
+
+    /**
+     * Lets confident matches adapt the templates. The templates as they are now are kept as the
+     * anchors bounding the drift.
+     *
+     * @param minScore            score of a match from which it adapts the identity
+     * @param rate                fraction of the way to the face a template moves per match
+     * @param minAnchorSimilarity similarity to its anchor below which a template is not moved
+     */
+    public synchronized void enableAdaptation(float minScore, float rate, float minAnchorSimilarity) {
+        Map<Integer, int[]> templatesById = new HashMap<>();
+        for (int i = 0; i < identityIds.length; ++i) {
+            int[] templates = templatesById.get(identityIds[i]);
+            templates = templates == null ? new int[1] : Arrays.copyOf(templates, templates.length + 1);
+            templates[templates.length - 1] = i;
+            templatesById.put(identityIds[i], templates);
+        }
+        adaptation = new Adaptation(minScore, rate, minAnchorSimilarity, embeddings.clone(),
+                templatesById, embeddingSize);
+    }
+
+    @Override
+    public boolean adapt(float[] embedding, int identityId, float score) {
+        Adaptation settings = adaptation;
+        if (settings == null || score < settings.minScore) {
+            return false;
+        }
+        int[] templates = settings.templatesById.get(identityId);
+        return templates != null && adapt(settings, templates, embedding);
+    }
+
+    private synchronized boolean adapt(Adaptation settings, int[] templates, float[] embedding) {
+        int closest = -1;
+        float best = Float.NEGATIVE_INFINITY;
+        for (int template : templates) {
+            float similarity = dot(embedding, 0, embeddings, template * embeddingSize);
+            if (similarity > best) {
+                best = similarity;
+                closest = template;
+            }
+        }
+        int offset = closest * embeddingSize;
+        float[] step = settings.step;
+        for (int j = 0; j < embeddingSize; ++j) {
+            step[j] = embeddings[offset + j] + settings.rate * (embedding[j] - embeddings[offset + j]);
+        }
+        normalize(step, 0, embeddingSize);
+        if (dot(step, 0, settings.anchors, offset) < settings.minAnchorSimilarity) {
+            return false;
+        }
+        System.arraycopy(step, 0, embeddings, offset, embeddingSize);
+        return true;
+    }
+
+    private float dot(float[] a, int aOffset, float[] b, int bOffset) {
+        float dot = 0;
+        for (int j = 0; j < embeddingSize; ++j) {
+            dot += a[aOffset + j] * b[bOffset + j];
+        }
+        return dot;
+    }
+}
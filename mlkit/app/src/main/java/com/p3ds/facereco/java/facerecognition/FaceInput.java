@@ -0,0 +1,62 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+/**
+ * A face to recognize: its pixels and, if known, its landmarks. Mutable so that it can be reused.
+ */
+public class FaceInput {
+
+    /**
+     * ARGB pixels, row stride is {@link #width}.
+     */
+    public int[] pixels;
+    public int width;
+    public int height;
+
+    /**
+     * Eye and mouth landmarks in the coordinates of {@link #pixels}, see
+     * {@link FaceAligner#setLandmarks(float[])}, or {@code null} to scale the whole face.
+     */
+    public float[] landmarks;
+
+    /**
+     * Smoother of the track of the face, {@code null} to use the output as is.
+     */
+    public ScoreSmoother smoother;
+
+    /**
+     * Receives the normalized output of the model for the face, i.e. the embedding or the score
+     * vector of a classifier, if not {@code null} and large enough.
+     */
+    public float[] descriptor;
+
+    public FaceInput() {
+    }
+
+    public FaceInput(int[] pixels, int width, int height, float[] landmarks) {
+        set(pixels, width, height, landmarks);
+    }
+
+    public FaceInput set(int[] pixels, int width, int height, float[] landmarks) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.landmarks = landmarks;
+        this.smoother = null;
+        this.descriptor = null;
+        return this;
+    }
+}
@@ -15,34 +15,16 @@ limitations under the License.
 
 package com.p3ds.facereco.java.facerecognition;
 
-import android.annotation.SuppressLint;
-import android.app.Activity;
-import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
-import android.os.Environment;
 import android.util.Log;
 
-import org.tensorflow.lite.Interpreter;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.AbstractMap;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
 
 /**
- * Recognize (classify) faces with TF Lite
+ * Recognize (classify) faces of one camera with TF Lite. Faces are handed to a stream of the
+ * {@link InferenceScheduler}, which shares the active model of the {@link ModelManager} with the
+ * other cameras, and results come back asynchronously.
  */
 public class FaceRecognitionProcessor {
 
@@ -51,206 +33,85 @@ public class FaceRecognitionProcessor {
      */
     private static final String TAG = "P3DSFaceReco";
 
-    /**
-     * Name of the model file stored in Assets.
-     */
-    private static final String MODEL_PATH = "emp.tflite";
-
-    /**
-     * Name of the label file stored in Assets.
-     */
-    private static final String LABEL_PATH = "retrained_labels.txt";
-
-    /**
-     * Number of results to show in the UI.
-     */
-    private static final int RESULTS_TO_SHOW = 3;
-
-    /**
-     * Dimensions of inputs.
-     */
-    private static final int DIM_BATCH_SIZE = 1;
-
-    private static final int DIM_PIXEL_SIZE = 3;
+    private final ModelManager modelManager;
 
-    private static final int DIM_IMG_SIZE_X = 224;
-    private static final int DIM_IMG_SIZE_Y = 224;
+    private final InferenceScheduler.Stream stream;
 
-    private static final int IMAGE_MEAN = 128;
-    private static final float IMAGE_STD = 128.0f;
-
-
-    /**
-     * An instance of the driver class to run model inference with Tensorflow Lite.
-     */
-    private Interpreter tfLite;
+    private boolean closed;
 
     /**
-     * Labels corresponding to the output of the vision model.
+     * Pixels of the face being submitted, grown to the largest face seen.
      */
-    private List<String> labelList;
-
-
-    private static final int FILTER_STAGES = 3;
-    private static final float FILTER_FACTOR = 0.4f;
-
-    private PriorityQueue<Map.Entry<String, Float>> sortedLabels =
-            new PriorityQueue<>(
-                    RESULTS_TO_SHOW,
-                    Comparator.comparing(o -> (o.getValue())));
+    private int[] facePixels = new int[0];
 
     /**
-     * Initializes an {@code ImageClassifier}.
+     * Initializes an {@code ImageClassifier} on a stream of {@code scheduler}. Faces are skipped
+     * until the model has been loaded and warmed up.
+     *
+     * @param streamName       name of the camera in the scheduler metrics
+     * @param weight           share of the inferences of the camera, see
+     *                         {@link InferenceScheduler#openStream(String, int, Executor)}
+     * @param callbackExecutor executor the results are delivered on
      */
-    public FaceRecognitionProcessor(Activity activity) throws IOException {
-        tfLite = new Interpreter(loadModelFile(activity));
-        labelList = loadLabelList(activity);
-        Log.d(TAG, "Created a Tensorflow Lite Image Classifier.");
+    public FaceRecognitionProcessor(ModelManager modelManager, InferenceScheduler scheduler,
+                                    String streamName, int weight, Executor callbackExecutor) {
+        this.modelManager = modelManager;
+        this.stream = scheduler.openStream(streamName, weight, callbackExecutor);
     }
 
     /**
-     * Classifies a frame from the preview stream.
+     * Queues a face for recognition, aligning it on its landmarks first.
+     *
+     * @param bitmap     pixels of the face, copied; still owned by the caller
+     * @param landmarks  eye and mouth landmarks in the coordinates of {@code bitmap}, see
+     *                   {@link FaceAligner#setLandmarks(float[])}. When {@code null} or unusable
+     *                   the whole bitmap is scaled to the input size instead.
+     * @param rotation   quarter turns clockwise that turn {@code bitmap} upright, for the faces
+     *                   kept as unknown visitors
+     * @param quality    quality of the face in [0, 1], kept with faces no identity is found for
+     * @param deadlineMs time after which the result is stale, on the
+     *                   {@code SystemClock.elapsedRealtime()} time base; the face is skipped if
+     *                   it cannot be recognized before
+     * @param callback   receives the result on the callback executor
      */
-    public Map.Entry<String, Float> classifyFrame(Bitmap bitmap) throws IOException {
-        if (tfLite == null) {
+    public void classifyFrame(Bitmap bitmap, float[] landmarks, int rotation, float quality, long deadlineMs,
+                              InferenceScheduler.Callback callback) throws IOException {
+        if (closed) {
+            throw new IOException("Image classifier has been closed; Skipped.");
+        }
+        if (modelManager.getModelIfReady() == null) {
             throw new IOException("Image classifier has not been initialized; Skipped.");
         }
         if (bitmap.isRecycled()) {
             throw new IOException("Bitmap recycled prematurely. Skip this frame.");
         }
-        ByteBuffer imgData = convertBitmapToByteBuffer(bitmap);
-        float[][] labelProb = applyFilter();
-        tfLite.run(imgData, labelProb);
-        bitmap.recycle();
-        return getLabelAndConfidence(labelProb);
-    }
-
-    private float[][] applyFilter() {
-        int num_labels = labelList.size();
-        float[][] labelProbArray = new float[1][labelList.size()];
-        float[][] filterLabelProbArray = new float[FILTER_STAGES][labelList.size()];
-        for (int j = 0; j < num_labels; ++j) {
-            filterLabelProbArray[0][j] += FILTER_FACTOR * (labelProbArray[0][j] -
-                    filterLabelProbArray[0][j]);
-        }
-        for (int i = 1; i < FILTER_STAGES; ++i) {
-            for (int j = 0; j < num_labels; ++j) {
-                filterLabelProbArray[i][j] += FILTER_FACTOR * (
-                        filterLabelProbArray[i - 1][j] -
-                                filterLabelProbArray[i][j]);
-
-            }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (facePixels.length < width * height) {
+            facePixels = new int[width * height];
         }
-
-        System.arraycopy(filterLabelProbArray[FILTER_STAGES - 1], 0, labelProbArray[0], 0, num_labels);
-        return labelProbArray;
+        bitmap.getPixels(facePixels, 0, width, 0, 0, width, height);
+        stream.submit(facePixels, width, height, landmarks, rotation, quality, deadlineMs, callback);
     }
 
     /**
-     * Close TF Lite and release resources.
+     * Reports a processed frame and how many frames the pipeline dropped before it. Feeds the
+     * frame rate of the stream and suspends shadow evaluation while the device falls behind.
      */
-    public void close() {
-        tfLite.close();
-        tfLite = null;
-    }
-
-    /**
-     * Reads label list from Assets.
-     */
-    private List<String> loadLabelList(Activity activity) throws IOException {
-        List<String> labelList = new ArrayList<>();
-        BufferedReader reader =
-                new BufferedReader(new InputStreamReader(activity.getAssets().open(LABEL_PATH)));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            labelList.add(line);
+    public void reportFrameLoad(int droppedFrames) {
+        stream.reportFrame();
+        ShadowEvaluator shadow = modelManager.getShadowEvaluator();
+        if (shadow != null) {
+            shadow.reportFrameLoad(droppedFrames);
         }
-        reader.close();
-        return labelList;
     }
 
     /**
-     * Memory-map the model file in Assets.
+     * Closes the stream. The model itself is owned by the {@link ModelManager} and stays loaded
+     * for the next processor.
      */
-    private MappedByteBuffer loadModelFile(Activity activity) throws IOException {
-        AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(MODEL_PATH);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
-    }
-
-    //int frameCount = 0;
-
-    /**
-     * Writes Image data into a {@code ByteBuffer}.
-     */
-    private ByteBuffer convertBitmapToByteBuffer(Bitmap bitmap) {
-        ByteBuffer imgData = ByteBuffer.allocateDirect(4 * DIM_BATCH_SIZE * DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y * DIM_PIXEL_SIZE);
-        imgData.order(ByteOrder.nativeOrder());
-        imgData.rewind();
-        bitmap = Bitmap.createScaledBitmap(bitmap, FaceRecognitionProcessor.DIM_IMG_SIZE_X, FaceRecognitionProcessor.DIM_IMG_SIZE_Y, true);
-        // Save every 10th frame for debugging purposes
-
-        //System.out.println("Frame " + frameCount);
-        //frameCount++;
-        //if(frameCount % 10 == 0) {
-        //    try {
-        //        saveBitmapToFile(bitmap, "faces/face" + ( frameCount ));
-        //    } catch (IOException e) {
-        //        e.printStackTrace();
-        //    }
-        //}
-        int[] intValues = new int[DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y];
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        int pixel = 0;
-        for (int i = 0; i < DIM_IMG_SIZE_X; ++i) {
-            for (int j = 0; j < DIM_IMG_SIZE_Y; ++j) {
-                final int val = intValues[pixel++];
-                imgData.putFloat((((val >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat((((val >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat((((val) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-            }
-        }
-        return imgData;
-    }
-
-
-    /**
-     * Prints the label and its confidence level
-     */
-    @SuppressLint("DefaultLocale")
-    private Map.Entry<String, Float> getLabelAndConfidence(float[][] labelProb) {
-        for (int i = 0; i < labelList.size(); ++i) {
-            sortedLabels.add(new AbstractMap.SimpleEntry<>(labelList.get(i), labelProb[0][i]));
-            if (sortedLabels.size() > RESULTS_TO_SHOW) {
-                sortedLabels.poll();
-            }
-        }
-        //String textToShow = "";
-        //final int size = sortedLabels.size();
-        //for (int i = 0; i < size; ++i) {
-        return sortedLabels.poll();
-        //return String.format("\n%s (%.0f%%)", label.getKey().substring(0, 1).toUpperCase() + label.getKey().substring(1), label.getValue() * 100); // + textToShow
-        //}
-    }
-
-
-    /**
-     * Save a bitmap to file
-     * @param bitmap input file
-     * @param fileName output file name
-     */
-    @SuppressWarnings("unused")
-    private void saveBitmapToFile(Bitmap bitmap, String fileName) throws IOException {
-        String path = Environment.getExternalStorageDirectory().toString() + "/" + fileName + ".jpg";
-        try (FileOutputStream out = new FileOutputStream(new File(path))) {
-            if(bitmap.isRecycled()) {
-                throw new IOException("Bitmap is recycled, cannot save.");
-            }
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-            //System.out.println("Saved Bitmap to " + path);
-        }
+    public void close() {
+        closed = true;
+        stream.close();
     }
 }
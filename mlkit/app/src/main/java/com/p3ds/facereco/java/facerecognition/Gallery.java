@@ -0,0 +1,60 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+/**
+ * Enrolled faces the output of an embedding model is matched against.
+ */
+public interface Gallery {
+
+    int getEmbeddingSize();
+
+    /**
+     * @return the number of templates that can be searched without loading anything
+     */
+    int size();
+
+    /**
+     * Finds the identities closest to an embedding, scored by cosine similarity of their best
+     * template.
+     *
+     * @param embedding normalized embedding of a face
+     * @param matches   receives the best identities
+     */
+    default void match(float[] embedding, TopK matches) {
+        matches.clear();
+        offer(embedding, matches, null);
+    }
+
+    /**
+     * Offers the identities of the gallery to {@code matches} without clearing it, to search
+     * several galleries as one.
+     *
+     * @param excludedIds identity IDs whose templates are skipped, sorted; {@code null} for none
+     */
+    void offer(float[] embedding, TopK matches, int[] excludedIds);
+
+    /**
+     * Moves the templates of an identity towards a face it was matched with, for galleries that
+     * adapt online; others ignore it.
+     *
+     * @param embedding normalized embedding of the face
+     * @param score     score of the match
+     * @return true if a template moved
+     */
+    default boolean adapt(float[] embedding, int identityId, float score) {
+        return false;
+    }
+}
@@ -0,0 +1,237 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A signed batch of gallery changes, taking a {@link LiveGallery} from one delta version to the
+ * next. Delta versions are counted per model, so a delta names the model whose gallery it changes
+ * and is signed together with it.
+ *
+ * <p>The delta file is little endian, like the gallery file:
+ *
+ * <pre>
+ * int      magic "P3GD"
+ * int      format version
+ * int      embedding size
+ * int      version of the model whose gallery the delta changes
+ * long     version the delta applies to
+ * long     version after the delta
+ * int      count
+ * count * (int op, int identity ID, int name length, byte[] UTF-8 name,
+ *          int template count, float[template count * embedding size] templates)
+ * byte[32] HMAC-SHA256 of all the preceding bytes
+ * </pre>
+ *
+ * Ops are {@link #ENROLL}, {@link #REMOVE} and {@link #UPDATE}. Identity IDs are never negative.
+ * The name is only given for identities the label store of the model does not know, and may be
+ * empty.
+ */
+public class GalleryDelta {
+
+    /**
+     * Adds templates to an identity, new or not.
+     */
+    public static final int ENROLL = 1;
+    /**
+     * Removes an identity and all of its templates.
+     */
+    public static final int REMOVE = 2;
+    /**
+     * Replaces all the templates of an identity.
+     */
+    public static final int UPDATE = 3;
+
+    private static final int MAGIC = 0x50334744;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 36;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+
+    private final int modelVersion;
+    private final long fromVersion;
+    private final long toVersion;
+    private final int[] ops;
+    private final int[] identityIds;
+    private final String[] names;
+    private final float[][] templates;
+
+    private GalleryDelta(int modelVersion, long fromVersion, long toVersion, int[] ops, int[] identityIds,
+                         String[] names, float[][] templates) {
+        this.modelVersion = modelVersion;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.ops = ops;
+        this.identityIds = identityIds;
+        this.names = names;
+        this.templates = templates;
+    }
+
+    /**
+     * Reads a delta file and checks its signature. Templates are normalized.
+     *
+     * @param key           key the delta must be signed with
+     * @param embeddingSize embedding size of the gallery the delta is applied to
+     * @param labelCount    number of identities the label store of the model names, which a delta
+     *                      must not name again
+     * @throws IOException if the file is not a valid delta signed with {@code key}
+     */
+    public static GalleryDelta read(File file, byte[] key, int embeddingSize, int labelCount)
+            throws IOException {
+        byte[] bytes;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < HEADER_SIZE + MAC_SIZE || in.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a gallery delta");
+            }
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        }
+        int signed = bytes.length - MAC_SIZE;
+        byte[] signature;
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            mac.update(bytes, 0, signed);
+            signature = mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot check the signature of " + file, e);
+        }
+        byte[] expected = new byte[MAC_SIZE];
+        System.arraycopy(bytes, signed, expected, 0, MAC_SIZE);
+        // Constant time, not to leak how much of a forged signature is right
+        if (!MessageDigest.isEqual(signature, expected)) {
+            throw new IOException("Invalid signature of " + file);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, signed).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a gallery delta");
+        }
+        int formatVersion = buffer.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported gallery delta version " + formatVersion + " in " + file);
+        }
+        int deltaEmbeddingSize = buffer.getInt();
+        if (deltaEmbeddingSize != embeddingSize) {
+            throw new IOException("Gallery delta " + file + " holds embeddings of " + deltaEmbeddingSize
+                    + " floats, the gallery " + embeddingSize);
+        }
+        int modelVersion = buffer.getInt();
+        long fromVersion = buffer.getLong();
+        long toVersion = buffer.getLong();
+        int count = buffer.getInt();
+        if (toVersion <= fromVersion || count < 0 || count > signed / 16) {
+            throw new IOException("Invalid gallery delta " + file);
+        }
+        int[] ops = new int[count];
+        int[] identityIds = new int[count];
+        String[] names = new String[count];
+        float[][] templates = new float[count][];
+        try {
+            for (int i = 0; i < count; ++i) {
+                ops[i] = buffer.getInt();
+                if (ops[i] != ENROLL && ops[i] != REMOVE && ops[i] != UPDATE) {
+                    throw new IOException("Unknown op " + ops[i] + " in gallery delta " + file);
+                }
+                identityIds[i] = buffer.getInt();
+                if (identityIds[i] < 0) {
+                    throw new IOException("Negative identity ID " + identityIds[i] + " in gallery delta "
+                            + file);
+                }
+                int nameLength = buffer.getInt();
+                if (nameLength < 0 || nameLength > buffer.remaining()) {
+                    throw new IOException("Truncated gallery delta " + file);
+                }
+                byte[] name = new byte[nameLength];
+                buffer.get(name);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+                if (nameLength > 0 && identityIds[i] < labelCount) {
+                    throw new IOException("Gallery delta " + file + " renames identity " + identityIds[i]
+                            + " of the label store");
+                }
+                int templateCount = buffer.getInt();
+                if (templateCount < 0 || (long) templateCount * embeddingSize * 4 > buffer.remaining()) {
+                    throw new IOException("Truncated gallery delta " + file);
+                }
+                float[] values = new float[templateCount * embeddingSize];
+                buffer.asFloatBuffer().get(values);
+                buffer.position(buffer.position() + 4 * values.length);
+                for (int j = 0; j < templateCount; ++j) {
+                    FaceGallery.normalize(values, j * embeddingSize, embeddingSize);
+                }
+                templates[i] = values;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated gallery delta " + file, e);
+        }
+        return new GalleryDelta(modelVersion, fromVersion, toVersion, ops, identityIds, names, templates);
+    }
+
+    /**
+     * @return the version of the model whose gallery the delta changes
+     */
+    public int getModelVersion() {
+        return modelVersion;
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * @return the number of changes
+     */
+    public int size() {
+        return ops.length;
+    }
+
+    public int getOp(int i) {
+        return ops[i];
+    }
+
+    public int getIdentityId(int i) {
+        return identityIds[i];
+    }
+
+    /**
+     * @return the name of the identity of change {@code i}, empty if none
+     */
+    public String getName(int i) {
+        return names[i];
+    }
+
+    /**
+     * @return the normalized templates of change {@code i}, one after the other
+     */
+    public float[] getTemplates(int i) {
+        return templates[i];
+    }
+}
@@ -0,0 +1,172 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link LiveGallery} up to date with the {@link GalleryDelta} files dropped in a
+ * directory, e.g. pushed to the device or synced from a mounted share.
+ *
+ * <p>The directory is polled rather than watched, as changes made on a share are not notified.
+ * Deltas are applied in version order on a background thread, each one once its predecessor has
+ * been; deltas the gallery already went past are skipped, and files that are not valid deltas
+ * signed with the key are reported once and ignored. The directory is shared by the models, so
+ * deltas of other models than the one of the gallery are skipped as well. After each poll that
+ * applied deltas, the gallery is checkpointed, so that a restart resumes from the last applied
+ * version. Delta files are never deleted, the share may be read-only.
+ */
+public class GallerySync {
+
+    private static final String TAG = "GallerySync";
+
+    public static final long DEFAULT_POLL_INTERVAL_MS = 30000;
+
+    /**
+     * Extension of the delta files in the drop directory.
+     */
+    public static final String EXTENSION = ".delta";
+
+    private final File directory;
+    private final File checkpointFile;
+    private final byte[] key;
+    private final int modelVersion;
+    private final LiveGallery gallery;
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "GallerySync"));
+
+    // Touched by the worker only. Files not to read again, with their modification time.
+    private final Map<String, Long> skippedFiles = new HashMap<>();
+
+    /**
+     * @param directory      drop directory of the delta files
+     * @param checkpointFile checkpoint of {@code gallery}
+     * @param key            key the deltas must be signed with
+     * @param modelVersion   version of the model {@code gallery} belongs to
+     */
+    public GallerySync(File directory, File checkpointFile, byte[] key, int modelVersion,
+                       LiveGallery gallery) {
+        this.directory = directory;
+        this.checkpointFile = checkpointFile;
+        this.key = key.clone();
+        this.modelVersion = modelVersion;
+        this.gallery = gallery;
+    }
+
+    /**
+     * Restores the gallery from the checkpoint, if there is one. Meant to be called before the
+     * gallery is used, as it blocks until the checkpoint has been read.
+     */
+    public void restore() {
+        if (!checkpointFile.isFile()) {
+            return;
+        }
+        try {
+            if (gallery.readCheckpoint(checkpointFile)) {
+                Log.i(TAG, "Restored gallery at delta version " + gallery.getVersion());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot restore the gallery from " + checkpointFile
+                    + ", deltas are applied again", e);
+        }
+    }
+
+    /**
+     * Polls the drop directory every {@link #DEFAULT_POLL_INTERVAL_MS}, starting now.
+     */
+    public void start() {
+        worker.scheduleWithFixedDelay(this::poll, 0, DEFAULT_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling once the running poll, if any, is done.
+     */
+    public void close() {
+        worker.shutdown();
+    }
+
+    private void poll() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        List<GalleryDelta> pending = new ArrayList<>();
+        for (File file : files) {
+            Long skippedModified = skippedFiles.get(file.getName());
+            if (skippedModified != null && skippedModified == file.lastModified()) {
+                continue;
+            }
+            GalleryDelta delta;
+            try {
+                delta = GalleryDelta.read(file, key, gallery.getEmbeddingSize(), gallery.getLabels().size());
+            } catch (IOException e) {
+                Log.w(TAG, "Ignoring " + file, e);
+                skippedFiles.put(file.getName(), file.lastModified());
+                continue;
+            }
+            if (delta.getModelVersion() != modelVersion) {
+                Log.d(TAG, "Skipping " + file + ", a delta of model v" + delta.getModelVersion());
+                skippedFiles.put(file.getName(), file.lastModified());
+            } else if (delta.getToVersion() <= gallery.getVersion()) {
+                skippedFiles.put(file.getName(), file.lastModified());
+            } else {
+                pending.add(delta);
+            }
+        }
+        int applied = 0;
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (GalleryDelta delta : pending) {
+                if (delta.getFromVersion() != gallery.getVersion()) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                gallery.apply(delta);
+                Log.i(TAG, "Applied gallery delta v" + delta.getFromVersion() + " to v"
+                        + delta.getToVersion() + ", " + delta.size() + " changes in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+                applied++;
+                progress = true;
+            }
+        }
+        if (applied == 0) {
+            if (!pending.isEmpty()) {
+                Log.d(TAG, pending.size() + " gallery deltas wait for their predecessors, at v"
+                        + gallery.getVersion());
+            }
+            return;
+        }
+        try {
+            gallery.writeCheckpoint(checkpointFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot checkpoint the gallery to " + checkpointFile, e);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Shares the active model between several camera streams. Every stream submits its faces to its
+ * own queue; a single inference thread, the only user of the interpreter, picks faces from the
+ * queues by smooth weighted round-robin on the stream weights and recognizes up to
+ * {@value #MAX_BATCH} of them in one batched call.
+ *
+ * <p>A stream keeps at most {@value #MAX_PENDING_PER_STREAM} faces waiting; beyond, its oldest face
+ * is dropped. A stream that submits faster than its share therefore only delays its own, stale
+ * faces and cannot starve the others. Frame rate, recognition rate, latency from submission to
+ * result and dropped faces are measured per stream, logged and available as {@link Stats} every
+ * {@value #STATS_INTERVAL_MS} ms.
+ *
+ * <p>Faces may carry a deadline. A face that cannot be recognized before its deadline, given the
+ * recent duration of a batch, is skipped rather than delaying fresher faces, and its callback is
+ * told so through {@link Callback#onExpired()}.
+ *
+ * <p>Faces recognized with less than {@link Recognition#MIN_KNOWN_CONFIDENCE} are handed
+ * to the {@link UnknownFaceClusterer} with their model output once it is open.
+ */
+public final class InferenceScheduler {
+
+    private static final String TAG = "InferenceScheduler";
+
+    /**
+     * Weight of a stream of normal priority.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * Deadline of faces that are recognized however late.
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int MAX_BATCH = 4;
+    private static final int MAX_PENDING_PER_STREAM = 4;
+    private static final long STATS_INTERVAL_MS = 10000;
+
+    /**
+     * Smoothing factor of the estimated batch duration.
+     */
+    private static final float BATCH_DURATION_SMOOTHING = 0.2f;
+
+    private static final InferenceScheduler INSTANCE =
+            new InferenceScheduler(ModelManager.getInstance(), UnknownFaceClusterer.getInstance());
+
+    /**
+     * Receives the result of a face, on the executor of its stream.
+     */
+    public interface Callback {
+        /**
+         * @param recognition the best identity, {@code null} if the face could not be recognized
+         */
+        void onRecognized(Recognition recognition);
+
+        /**
+         * Called instead of {@link #onRecognized(Recognition)} when the face was skipped because it
+         * could not be recognized before its deadline.
+         */
+        default void onExpired() {
+        }
+    }
+
+    /**
+     * Metrics of a stream over one interval.
+     */
+    public static class Stats {
+        public final float framesPerSecond;
+        public final float recognitionsPerSecond;
+        public final float meanLatencyMs;
+        public final float maxLatencyMs;
+        public final int droppedFaces;
+        public final int expiredFaces;
+
+        Stats(float framesPerSecond, float recognitionsPerSecond, float meanLatencyMs,
+              float maxLatencyMs, int droppedFaces, int expiredFaces) {
+            this.framesPerSecond = framesPerSecond;
+            this.recognitionsPerSecond = recognitionsPerSecond;
+            this.meanLatencyMs = meanLatencyMs;
+            this.maxLatencyMs = maxLatencyMs;
+            this.droppedFaces = droppedFaces;
+            this.expiredFaces = expiredFaces;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f fps, %.1f recognitions/s, latency mean %.0f ms max %.0f ms, %d dropped, %d expired",
+                    framesPerSecond, recognitionsPerSecond, meanLatencyMs, maxLatencyMs, droppedFaces, expiredFaces);
+        }
+    }
+
+    /**
+     * A face waiting for or going through inference. Reused, the pixels are owned by the job.
+     */
+    private static class Job {
+        final FaceInput input = new FaceInput();
+        final TopK result = new TopK(1);
+        final float[] landmarks = new float[FaceAligner.LANDMARK_ARRAY_SIZE];
+        int[] pixels = new int[0];
+        float[] descriptor = new float[0];
+        int rotation;
+        float quality;
+        Callback callback;
+        long submitNs;
+        long deadlineMs;
+    }
+
+    /**
+     * Faces of one camera.
+     */
+    public final class Stream {
+
+        private final String name;
+        private final int weight;
+        private final Executor callbackExecutor;
+
+        // @GuardedBy("lock")
+        private final ArrayDeque<Job> pending = new ArrayDeque<>();
+        // @GuardedBy("lock")
+        private final ArrayDeque<Job> free = new ArrayDeque<>();
+        // @GuardedBy("lock")
+        private int currentWeight;
+        // @GuardedBy("lock")
+        private boolean closed;
+
+        // @GuardedBy("lock"), reset every interval
+        private int frames;
+        private int recognitions;
+        private int dropped;
+        private int expired;
+        private long latencyNsTotal;
+        private long latencyNsMax;
+
+        private volatile Stats stats;
+
+        private Stream(String name, int weight, Executor callbackExecutor) {
+            this.name = name;
+            this.weight = weight;
+            this.callbackExecutor = callbackExecutor;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Queues a face for recognition. Never blocks; the oldest waiting face of the stream is
+         * dropped if too many are waiting.
+         *
+         * @param pixels    ARGB pixels of the face, copied
+         * @param landmarks  landmarks in the coordinates of {@code pixels}, copied, may be {@code null}
+         * @param rotation   quarter turns clockwise that turn the face upright, kept with unknown faces
+         * @param quality    quality of the face in [0, 1], kept with unknown faces
+         * @param deadlineMs time after which the result is useless, on the
+         *                   {@code SystemClock.elapsedRealtime()} time base, or {@link #NO_DEADLINE}
+         * @param callback   receives the result on the executor of the stream
+         * @return false if the stream is closed
+         */
+        public boolean submit(int[] pixels, int width, int height, float[] landmarks, int rotation,
+                              float quality, long deadlineMs, Callback callback) {
+            Job job;
+            synchronized (lock) {
+                if (closed) {
+                    return false;
+                }
+                job = free.isEmpty() ? new Job() : free.poll();
+            }
+            if (job.pixels.length < width * height) {
+                job.pixels = new int[width * height];
+            }
+            System.arraycopy(pixels, 0, job.pixels, 0, width * height);
+            if (landmarks != null) {
+                System.arraycopy(landmarks, 0, job.landmarks, 0, FaceAligner.LANDMARK_ARRAY_SIZE);
+            }
+            job.input.set(job.pixels, width, height, landmarks != null ? job.landmarks : null);
+            job.callback = callback;
+            job.submitNs = System.nanoTime();
+            job.rotation = rotation;
+            job.quality = quality;
+            job.deadlineMs = deadlineMs;
+            synchronized (lock) {
+                if (closed) {
+                    return false;
+                }
+                if (pending.size() >= MAX_PENDING_PER_STREAM) {
+                    recycle(pending.poll());
+                    dropped++;
+                }
+                pending.add(job);
+                lock.notifyAll();
+            }
+            return true;
+        }
+
+        /**
+         * Counts a processed frame of the stream for its frame rate.
+         */
+        public void reportFrame() {
+            synchronized (lock) {
+                frames++;
+            }
+        }
+
+        /**
+         * @return the metrics of the last complete interval, {@code null} before the first one
+         */
+        public Stats getStats() {
+            return stats;
+        }
+
+        /**
+         * Drops the waiting faces and removes the stream. Results of faces already in inference
+         * are not delivered.
+         */
+        public void close() {
+            synchronized (lock) {
+                closed = true;
+                pending.clear();
+                free.clear();
+                streams.remove(this);
+            }
+        }
+
+        // @GuardedBy("lock")
+        private void recycle(Job job) {
+            job.callback = null;
+            if (!closed) {
+                free.add(job);
+            }
+        }
+
+        // @GuardedBy("lock")
+        private void publishStats(long intervalMs) {
+            float seconds = intervalMs / 1000f;
+            stats = new Stats(frames / seconds, recognitions / seconds,
+                    recognitions > 0 ? latencyNsTotal / 1e6f / recognitions : 0,
+                    latencyNsMax / 1e6f, dropped, expired);
+            frames = 0;
+            recognitions = 0;
+            dropped = 0;
+            expired = 0;
+            latencyNsTotal = 0;
+            latencyNsMax = 0;
+            Log.i(TAG, "Stream " + name + " (weight " + weight + "): " + stats);
+        }
+    }
+
+    private final ModelManager modelManager;
+    private final UnknownFaceClusterer clusterer;
+    private final Object lock = new Object();
+
+    // @GuardedBy("lock")
+    private final List<Stream> streams = new ArrayList<>();
+    // @GuardedBy("lock")
+    private Thread worker;
+    // @GuardedBy("lock")
+    private long statsStartMs;
+
+    // Touched by the worker only
+    private RecognitionEngine engine;
+    private final Job[] batch = new Job[MAX_BATCH];
+    private final Stream[] batchStreams = new Stream[MAX_BATCH];
+    private final FaceInput[] batchInputs = new FaceInput[MAX_BATCH];
+    private final TopK[] batchResults = new TopK[MAX_BATCH];
+    private long batchDurationMs;
+
+    InferenceScheduler(ModelManager modelManager, UnknownFaceClusterer clusterer) {
+        this.modelManager = modelManager;
+        this.clusterer = clusterer;
+    }
+
+    public static InferenceScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a stream, starting the inference thread with the first one.
+     *
+     * @param name             name of the stream in the logs
+     * @param weight           share of the inferences the stream gets when all streams are busy,
+     *                         relative to the other streams
+     * @param callbackExecutor executor the results are delivered on, e.g. the main thread
+     */
+    public Stream openStream(String name, int weight, Executor callbackExecutor) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Stream weight must be at least 1, got " + weight);
+        }
+        Stream stream = new Stream(name, weight, callbackExecutor);
+        synchronized (lock) {
+            streams.add(stream);
+            if (worker == null) {
+                statsStartMs = SystemClock.elapsedRealtime();
+                worker = new Thread(this::run, "InferenceScheduler");
+                worker.start();
+            }
+        }
+        return stream;
+    }
+
+    private void run() {
+        while (true) {
+            int count;
+            synchronized (lock) {
+                while ((count = takeBatch()) == 0) {
+                    try {
+                        lock.wait(STATS_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    publishStatsIfDue();
+                }
+            }
+            recognizeBatch(count);
+            synchronized (lock) {
+                publishStatsIfDue();
+            }
+        }
+    }
+
+    /**
+     * Picks up to {@value #MAX_BATCH} waiting faces by smooth weighted round-robin: every pick, the
+     * streams with waiting faces gain their weight, the stream with the most is picked and pays the
+     * total weight of the contenders. Faces that would miss their deadline are skipped first.
+     */
+    // @GuardedBy("lock")
+    private int takeBatch() {
+        long readyMs = SystemClock.elapsedRealtime() + batchDurationMs;
+        int count = 0;
+        while (count < MAX_BATCH) {
+            Stream picked = null;
+            int totalWeight = 0;
+            for (Stream stream : streams) {
+                skipExpired(stream, readyMs);
+                if (stream.pending.isEmpty()) {
+                    continue;
+                }
+                stream.currentWeight += stream.weight;
+                totalWeight += stream.weight;
+                if (picked == null || stream.currentWeight > picked.currentWeight) {
+                    picked = stream;
+                }
+            }
+            if (picked == null) {
+                break;
+            }
+            picked.currentWeight -= totalWeight;
+            batch[count] = picked.pending.poll();
+            batchStreams[count] = picked;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Drops the waiting faces of a stream whose results would only be ready after their deadline.
+     */
+    // @GuardedBy("lock")
+    private void skipExpired(Stream stream, long readyMs) {
+        Iterator<Job> it = stream.pending.iterator();
+        while (it.hasNext()) {
+            Job job = it.next();
+            if (job.deadlineMs >= readyMs) {
+                continue;
+            }
+            it.remove();
+            Callback callback = job.callback;
+            stream.expired++;
+            stream.recycle(job);
+            stream.callbackExecutor.execute(callback::onExpired);
+        }
+    }
+
+    private void recognizeBatch(int count) {
+        long start = SystemClock.elapsedRealtime();
+        RecognitionModel model = modelManager.acquire();
+        boolean recognized = false;
+        long inferenceNs = 0;
+        boolean clustering = clusterer.isOpen();
+        // The model must not be touched once released, what the results need is kept here
+        LabelStore labels = null;
+        int outputSize = 0;
+        int modelVersion = 0;
+        try {
+            if (model != null) {
+                labels = model.getLabels();
+                outputSize = model.getOutputSize();
+                modelVersion = model.getVersion();
+                if (engine == null || engine.getModel() != model) {
+                    engine = new RecognitionEngine(model);
+                }
+                for (int i = 0; i < count; ++i) {
+                    Job job = batch[i];
+                    if (clustering && job.descriptor.length < outputSize) {
+                        job.descriptor = new float[outputSize];
+                    }
+                    job.input.descriptor = clustering ? job.descriptor : null;
+                    batchInputs[i] = job.input;
+                    batchResults[i] = job.result;
+                }
+                long inferenceStart = System.nanoTime();
+                engine.recognize(batchInputs, count, batchResults);
+                inferenceNs = System.nanoTime() - inferenceStart;
+                recognized = true;
+                modelManager.reportFirstResult();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Inference failed for a batch of " + count, e);
+        } finally {
+            if (model != null) {
+                model.release();
+            }
+        }
+        if (recognized) {
+            batchDurationMs += Math.round(BATCH_DURATION_SMOOTHING
+                    * (SystemClock.elapsedRealtime() - start - batchDurationMs));
+        }
+
+        long now = System.nanoTime();
+        ShadowEvaluator shadow = modelManager.getShadowEvaluator();
+        // The candidate runs one face at a time, so it is compared to the share of one face in the batch
+        long faceInferenceNs = inferenceNs / count;
+        for (int i = 0; i < count; ++i) {
+            Job job = batch[i];
+            Stream stream = batchStreams[i];
+            Recognition result = null;
+            // A failure must neither end the worker, shared by all streams, nor lose the job
+            try {
+                if (recognized && job.result.size() > 0) {
+                    result = new Recognition(labels, job.result.getId(0), job.result.getScore(0));
+                }
+                if (shadow != null && result != null) {
+                    shadow.offer(job.input.pixels, job.input.width, job.input.height, job.input.landmarks,
+                            result.getName(), result.getConfidence(), faceInferenceNs);
+                }
+                if (clustering && result != null
+                        && result.getConfidence() < Recognition.MIN_KNOWN_CONFIDENCE) {
+                    clusterer.offer(job.input.pixels, job.input.width, job.input.height, job.rotation,
+                            job.descriptor, outputSize, job.quality, modelVersion);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Cannot hand out the result of a face of stream " + stream.name, e);
+            }
+            Recognition recognition = result;
+            long latencyNs = now - job.submitNs;
+            Callback callback = job.callback;
+            boolean deliver;
+            synchronized (lock) {
+                if (recognition != null) {
+                    stream.recognitions++;
+                    stream.latencyNsTotal += latencyNs;
+                    stream.latencyNsMax = Math.max(stream.latencyNsMax, latencyNs);
+                } else {
+                    stream.dropped++;
+                }
+                stream.recycle(job);
+                deliver = !stream.closed;
+            }
+            if (deliver) {
+                stream.callbackExecutor.execute(() -> callback.onRecognized(recognition));
+            }
+            batch[i] = null;
+            batchStreams[i] = null;
+            batchInputs[i] = null;
+            batchResults[i] = null;
+        }
+    }
+
+    // @GuardedBy("lock")
+    private void publishStatsIfDue() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - statsStartMs < STATS_INTERVAL_MS) {
+            return;
+        }
+        for (Stream stream : streams) {
+            stream.publishStats(now - statsStartMs);
+        }
+        statsStartMs = now;
+    }
+}
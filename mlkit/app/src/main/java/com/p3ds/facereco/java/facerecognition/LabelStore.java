@@ -0,0 +1,239 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Identities of the outputs of a model, indexed by identity ID (the output index). Holds the name
+ * of every identity and its display name, computed once when the store is compiled.
+ *
+ * <p>The store is a flat little endian buffer, memory-mapped when read from a {@value #EXTENSION}
+ * file, so that opening a list of 100k+ identities costs neither parsing nor one object per
+ * entry:
+ *
+ * <pre>
+ * int    magic "P3LB"
+ * int    format version
+ * int    count
+ * int[]  count + 1 name offsets into the strings
+ * int[]  count + 1 display name offsets into the strings
+ * byte[] UTF-8 strings
+ * </pre>
+ *
+ * Strings are decoded on first use and kept.
+ */
+public class LabelStore {
+
+    /**
+     * Extension of compiled label stores.
+     */
+    public static final String EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x50334C42;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int nameOffsets;
+    private final int displayNameOffsets;
+    private final int strings;
+
+    private final String[] names;
+    private final String[] displayNames;
+
+    // Names of the identities enrolled after the store was compiled, replaced as a whole
+    private volatile Map<Integer, String> enrolledNames = Collections.emptyMap();
+
+    private LabelStore(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a label store");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported label store version " + buffer.getInt(4));
+        }
+        count = buffer.getInt(8);
+        nameOffsets = HEADER_SIZE;
+        displayNameOffsets = nameOffsets + 4 * (count + 1);
+        strings = displayNameOffsets + 4 * (count + 1);
+        if (count < 0 || strings > buffer.capacity()
+                || strings + buffer.getInt(displayNameOffsets + 4 * count) > buffer.capacity()) {
+            throw new IOException("Truncated label store");
+        }
+        names = new String[count];
+        displayNames = new String[count];
+    }
+
+    /**
+     * Memory-maps a compiled label store.
+     */
+    public static LabelStore map(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid once the file is closed
+            return new LabelStore(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length()));
+        }
+    }
+
+    /**
+     * Compiles a text label file, one label per line, into a store on the heap.
+     */
+    public static LabelStore fromText(InputStream in) throws IOException {
+        return new LabelStore(compile(readLines(in)));
+    }
+
+    /**
+     * Reads a label file, compiled if its name ends with {@value #EXTENSION}, text otherwise.
+     */
+    public static LabelStore read(File file) throws IOException {
+        if (file.getName().endsWith(EXTENSION)) {
+            return map(file);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return fromText(in);
+        }
+    }
+
+    /**
+     * Compiles a text label file into a store file that {@link #map(File)} can open.
+     */
+    public static void compile(InputStream text, File out) throws IOException {
+        ByteBuffer compiled = compile(readLines(text));
+        try (OutputStream stream = new FileOutputStream(out)) {
+            stream.write(compiled.array(), 0, compiled.capacity());
+        }
+    }
+
+    private static List<String> readLines(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static ByteBuffer compile(List<String> labels) {
+        int count = labels.size();
+        byte[][] encoded = new byte[2 * count][];
+        int stringsSize = 0;
+        for (int i = 0; i < count; ++i) {
+            String label = labels.get(i);
+            encoded[2 * i] = label.getBytes(StandardCharsets.UTF_8);
+            encoded[2 * i + 1] = toDisplayName(label).getBytes(StandardCharsets.UTF_8);
+            stringsSize += encoded[2 * i].length + encoded[2 * i + 1].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * (count + 1) + stringsSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(count);
+        // Names first, then display names, so that both offset tables are monotonic
+        int offset = 0;
+        for (int kind = 0; kind < 2; ++kind) {
+            for (int i = 0; i < count; ++i) {
+                buffer.putInt(offset);
+                offset += encoded[2 * i + kind].length;
+            }
+            buffer.putInt(offset);
+        }
+        for (int kind = 0; kind < 2; ++kind) {
+            for (int i = 0; i < count; ++i) {
+                buffer.put(encoded[2 * i + kind]);
+            }
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static String toDisplayName(String label) {
+        return label.isEmpty() ? label : label.substring(0, 1).toUpperCase(Locale.getDefault()) + label.substring(1);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Names the identities enrolled after the store was compiled, i.e. with an ID of at least
+     * {@link #size()}. Names of the compiled identities are not changed.
+     *
+     * @param names names by identity ID, not modified afterwards
+     */
+    public void setEnrolledNames(Map<Integer, String> names) {
+        enrolledNames = names;
+    }
+
+    /**
+     * @return the label of the model output {@code id}
+     */
+    public String getName(int id) {
+        if (id >= count) {
+            String enrolled = enrolledNames.get(id);
+            return enrolled != null ? enrolled : "";
+        }
+        String name = names[id];
+        if (name == null) {
+            name = decode(nameOffsets, id);
+            names[id] = name;
+        }
+        return name;
+    }
+
+    /**
+     * @return the capitalized label shown for identity {@code id}
+     */
+    public String getDisplayName(int id) {
+        if (id >= count) {
+            return toDisplayName(getName(id));
+        }
+        String displayName = displayNames[id];
+        if (displayName == null) {
+            displayName = decode(displayNameOffsets, id);
+            displayNames[id] = displayName;
+        }
+        return displayName;
+    }
+
+    private String decode(int offsets, int id) {
+        int start = buffer.getInt(offsets + 4 * id);
+        int end = buffer.getInt(offsets + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        // Absolute reads only, the buffer is shared by threads
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = buffer.get(strings + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,354 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A gallery updated in place by {@link GalleryDelta}s, on top of the gallery shipped with the
+ * model.
+ *
+ * <p>The base gallery is never modified. Changes live in an overlay: the templates enrolled or
+ * updated by the deltas, and the identities whose base templates are hidden because they were
+ * removed or updated. Deltas are applied to a private copy of the overlay, which is then published
+ * as an immutable snapshot, so queries never wait for a delta and always see a whole version.
+ * Applying a delta costs in the size of the overlay, not of the base gallery.
+ *
+ * <p>The overlay can be saved to a checkpoint file and restored from it, so that deltas are not
+ * applied again after a restart. The checkpoint file is little endian:
+ *
+ * <pre>
+ * int  magic "P3GC"
+ * int  format version
+ * int  embedding size
+ * long delta version
+ * int  hidden count
+ * int[hidden count] hidden identity IDs
+ * int  identity count
+ * identity count * (int identity ID, int template count, float[template count * embedding size])
+ * int  name count
+ * name count * (int identity ID, int name length, byte[] UTF-8 name)
+ * </pre>
+ */
+public class LiveGallery implements Gallery {
+
+    private static final int MAGIC = 0x50334743;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Published state of the changes, never modified.
+     */
+    private static final class Overlay {
+        final long version;
+        final int[] hiddenIds;
+        final FaceGallery templates;
+
+        Overlay(long version, int[] hiddenIds, FaceGallery templates) {
+            this.version = version;
+            this.hiddenIds = hiddenIds;
+            this.templates = templates;
+        }
+    }
+
+    private final Gallery base;
+    private final LabelStore labels;
+    private final int embeddingSize;
+
+    private volatile Overlay overlay;
+
+    // @GuardedBy("this"), the changes the overlay is published from
+    private long version;
+    private final Map<Integer, float[]> templatesById = new HashMap<>();
+    private final Set<Integer> hiddenIds = new HashSet<>();
+    private final Map<Integer, String> names = new HashMap<>();
+
+    /**
+     * @param base    gallery shipped with the model
+     * @param labels  labels of the model, receive the names of the enrolled identities
+     * @param version delta version the base gallery is at
+     */
+    public LiveGallery(Gallery base, LabelStore labels, long version) {
+        this.base = base;
+        this.labels = labels;
+        this.embeddingSize = base.getEmbeddingSize();
+        this.version = version;
+        publish();
+    }
+
+    @Override
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    /**
+     * @return the number of templates of the base gallery, hidden ones included, and of the
+     * overlay
+     */
+    @Override
+    public int size() {
+        return base.size() + overlay.templates.size();
+    }
+
+    /**
+     * @return the labels of the model, which name the identities below their size
+     */
+    public LabelStore getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return the delta version of the published gallery
+     */
+    public long getVersion() {
+        return overlay.version;
+    }
+
+    @Override
+    public void offer(float[] embedding, TopK matches, int[] excludedIds) {
+        Overlay current = overlay;
+        current.templates.offer(embedding, matches, excludedIds);
+        base.offer(embedding, matches, union(current.hiddenIds, excludedIds));
+    }
+
+    /**
+     * Adapts the base gallery. Identities changed by deltas are not adapted, as their templates are
+     * replaced by the next delta.
+     */
+    @Override
+    public boolean adapt(float[] embedding, int identityId, float score) {
+        return Arrays.binarySearch(overlay.hiddenIds, identityId) < 0
+                && base.adapt(embedding, identityId, score);
+    }
+
+    private static int[] union(int[] hiddenIds, int[] excludedIds) {
+        if (excludedIds == null) {
+            return hiddenIds.length > 0 ? hiddenIds : null;
+        }
+        int[] union = Arrays.copyOf(hiddenIds, hiddenIds.length + excludedIds.length);
+        System.arraycopy(excludedIds, 0, union, hiddenIds.length, excludedIds.length);
+        Arrays.sort(union);
+        return union;
+    }
+
+    /**
+     * Applies a delta and publishes the result.
+     *
+     * @return false if the delta does not apply to the current version, in which case nothing
+     * changed
+     */
+    public synchronized boolean apply(GalleryDelta delta) {
+        if (delta.getFromVersion() != version) {
+            return false;
+        }
+        for (int i = 0; i < delta.size(); ++i) {
+            int identityId = delta.getIdentityId(i);
+            float[] templates = delta.getTemplates(i);
+            switch (delta.getOp(i)) {
+                case GalleryDelta.ENROLL:
+                    float[] current = templatesById.get(identityId);
+                    if (current == null) {
+                        templatesById.put(identityId, templates);
+                    } else {
+                        float[] merged = Arrays.copyOf(current, current.length + templates.length);
+                        System.arraycopy(templates, 0, merged, current.length, templates.length);
+                        templatesById.put(identityId, merged);
+                    }
+                    if (!delta.getName(i).isEmpty()) {
+                        names.put(identityId, delta.getName(i));
+                    }
+                    break;
+                case GalleryDelta.REMOVE:
+                    hiddenIds.add(identityId);
+                    templatesById.remove(identityId);
+                    names.remove(identityId);
+                    break;
+                case GalleryDelta.UPDATE:
+                    hiddenIds.add(identityId);
+                    templatesById.put(identityId, templates);
+                    break;
+            }
+        }
+        version = delta.getToVersion();
+        publish();
+        return true;
+    }
+
+    // @GuardedBy("this")
+    private void publish() {
+        int[] hidden = new int[hiddenIds.size()];
+        int i = 0;
+        for (int identityId : hiddenIds) {
+            hidden[i++] = identityId;
+        }
+        Arrays.sort(hidden);
+        int count = 0;
+        for (float[] templates : templatesById.values()) {
+            count += templates.length / embeddingSize;
+        }
+        int[] identityIds = new int[count];
+        float[] embeddings = new float[count * embeddingSize];
+        int template = 0;
+        for (Map.Entry<Integer, float[]> entry : templatesById.entrySet()) {
+            float[] templates = entry.getValue();
+            System.arraycopy(templates, 0, embeddings, template * embeddingSize, templates.length);
+            int end = template + templates.length / embeddingSize;
+            Arrays.fill(identityIds, template, end, entry.getKey());
+            template = end;
+        }
+        overlay = new Overlay(version, hidden, new FaceGallery(embeddingSize, identityIds, embeddings));
+        labels.setEnrolledNames(new HashMap<>(names));
+    }
+
+    /**
+     * Saves the changes, through a temporary file synced to disk before it replaces the
+     * checkpoint, so that a crash leaves either the previous checkpoint or the new one.
+     */
+    public synchronized void writeCheckpoint(File file) throws IOException {
+        long size = 32;
+        size += 4L * hiddenIds.size();
+        for (float[] templates : templatesById.values()) {
+            size += 8 + 4L * templates.length;
+        }
+        Map<Integer, byte[]> encodedNames = new HashMap<>();
+        for (Map.Entry<Integer, String> entry : names.entrySet()) {
+            byte[] name = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            encodedNames.put(entry.getKey(), name);
+            size += 8 + name.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Gallery changes too large to checkpoint");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(embeddingSize).putLong(version);
+        buffer.putInt(hiddenIds.size());
+        for (int identityId : hiddenIds) {
+            buffer.putInt(identityId);
+        }
+        buffer.putInt(templatesById.size());
+        for (Map.Entry<Integer, float[]> entry : templatesById.entrySet()) {
+            float[] templates = entry.getValue();
+            buffer.putInt(entry.getKey()).putInt(templates.length / embeddingSize);
+            buffer.asFloatBuffer().put(templates);
+            buffer.position(buffer.position() + 4 * templates.length);
+        }
+        buffer.putInt(encodedNames.size());
+        for (Map.Entry<Integer, byte[]> entry : encodedNames.entrySet()) {
+            buffer.putInt(entry.getKey()).putInt(entry.getValue().length).put(entry.getValue());
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array());
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Replaces the changes with those of a checkpoint, unless it is older than the current version.
+     *
+     * @return true if the checkpoint was restored
+     * @throws IOException if the checkpoint cannot be read or does not fit the gallery
+     */
+    public synchronized boolean readCheckpoint(File file) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException(file + " is not a gallery checkpoint");
+            }
+            if (buffer.getInt() != embeddingSize) {
+                throw new IOException("Gallery checkpoint " + file + " does not fit the embedding size "
+                        + embeddingSize);
+            }
+            long checkpointVersion = buffer.getLong();
+            if (checkpointVersion < version) {
+                return false;
+            }
+            Set<Integer> hidden = new HashSet<>();
+            for (int i = buffer.getInt(); i > 0; --i) {
+                hidden.add(readIdentityId(buffer, file));
+            }
+            Map<Integer, float[]> templates = new HashMap<>();
+            for (int i = buffer.getInt(); i > 0; --i) {
+                int identityId = readIdentityId(buffer, file);
+                int count = buffer.getInt();
+                if (count < 0 || (long) count * embeddingSize * 4 > buffer.remaining()) {
+                    throw new IOException("Truncated gallery checkpoint " + file);
+                }
+                float[] values = new float[count * embeddingSize];
+                buffer.asFloatBuffer().get(values);
+                buffer.position(buffer.position() + 4 * values.length);
+                templates.put(identityId, values);
+            }
+            Map<Integer, String> restoredNames = new HashMap<>();
+            for (int i = buffer.getInt(); i > 0; --i) {
+                int identityId = readIdentityId(buffer, file);
+                if (identityId < labels.size()) {
+                    throw new IOException("Gallery checkpoint " + file + " renames identity " + identityId
+                            + " of the label store");
+                }
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("Truncated gallery checkpoint " + file);
+                }
+                byte[] name = new byte[length];
+                buffer.get(name);
+                restoredNames.put(identityId, new String(name, StandardCharsets.UTF_8));
+            }
+            hiddenIds.clear();
+            hiddenIds.addAll(hidden);
+            templatesById.clear();
+            templatesById.putAll(templates);
+            names.clear();
+            names.putAll(restoredNames);
+            version = checkpointVersion;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated gallery checkpoint " + file, e);
+        }
+        publish();
+        return true;
+    }
+
+    private static int readIdentityId(ByteBuffer buffer, File file) throws IOException {
+        int identityId = buffer.getInt();
+        if (identityId < 0) {
+            throw new IOException("Negative identity ID " + identityId + " in gallery checkpoint " + file);
+        }
+        return identityId;
+    }
+}
@@ -0,0 +1,440 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the recognition model off the UI thread and keeps it for the lifetime of the process.
+ *
+ * <p>{@link #preload(Context)} is meant to be called at application start. It memory-maps the
+ * model, parses the labels, builds the interpreter and warms it up on a background thread, so that
+ * neither the activity nor the first face pay for it. {@link FaceRecognitionProcessor} picks the
+ * model up once it is ready. The time from {@link #preload(Context)} to the first recognition
+ * result is reported as the cold start latency.
+ *
+ * <p>The newest model of the {@link ModelRegistry} in {@value #MODELS_DIRECTORY} of the files
+ * directory is preferred over the one bundled in the assets. {@link #checkForUpdate()} loads and
+ * warms up a newer installed model in the background and then swaps it in atomically; inferences
+ * running on the previous model finish on it and the previous model is closed after the last one.
+ *
+ * <p>An installed shadow model is loaded next to the active one and handed to a
+ * {@link ShadowEvaluator}, which writes its stats next to the installed models.
+ *
+ * <p>The gallery of an active embedding model is kept up to date by a {@link GallerySync} with the
+ * deltas dropped in {@value #GALLERY_DELTAS_DIRECTORY}, provided the key they are signed with has
+ * been provisioned to {@value #GALLERY_KEY_FILE} in the files directory.
+ */
+public final class ModelManager {
+
+    private static final String TAG = "ModelManager";
+
+    /**
+     * Number of warm-up inferences run when none is given.
+     */
+    public static final int DEFAULT_WARM_UP_RUNS = 2;
+
+    /**
+     * Directory of the installed models, relative to the files directory of the app.
+     */
+    public static final String MODELS_DIRECTORY = "models";
+
+    /**
+     * Directory of the gallery delta files, relative to the external files directory of the app,
+     * or to the files directory when there is no external storage.
+     */
+    public static final String GALLERY_DELTAS_DIRECTORY = "gallery_deltas";
+
+    /**
+     * Key the gallery deltas are signed with, relative to the files directory of the app.
+     */
+    public static final String GALLERY_KEY_FILE = "gallery.key";
+
+    /**
+     * Directory of the gallery checkpoints, one per model version, relative to the files directory.
+     */
+    private static final String GALLERY_CHECKPOINTS_DIRECTORY = "gallery_checkpoints";
+
+    /**
+     * Version of the model bundled in the assets, installed models must have a higher one.
+     */
+    public static final int ASSETS_VERSION = 0;
+
+    /**
+     * Name of the model file stored in Assets.
+     */
+    private static final String MODEL_PATH = "emp.tflite";
+
+    /**
+     * Name of the label file stored in Assets.
+     */
+    private static final String LABEL_PATH = "retrained_labels.txt";
+
+    private static final int DIM_IMG_SIZE_X = 224;
+    private static final int DIM_IMG_SIZE_Y = 224;
+
+    private static final int IMAGE_MEAN = 128;
+    private static final float IMAGE_STD = 128.0f;
+
+    private static final ModelManager INSTANCE = new ModelManager();
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "ModelLoader"));
+
+    private volatile RecognitionModel model;
+    private volatile ShadowEvaluator shadowEvaluator;
+
+    // @GuardedBy("this")
+    private GallerySync gallerySync;
+
+    // @GuardedBy("this")
+    private boolean loading;
+    // @GuardedBy("this")
+    private Context context;
+    // @GuardedBy("this")
+    private ModelRegistry registry;
+    // @GuardedBy("this")
+    private int warmUpRuns = DEFAULT_WARM_UP_RUNS;
+
+    private volatile int numThreads;
+
+    private volatile long preloadStartMs = -1;
+    private volatile long readyMs = -1;
+    private volatile long firstResultMs = -1;
+
+    private ModelManager() {
+    }
+
+    public static ModelManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts loading the model with {@link #DEFAULT_WARM_UP_RUNS} warm-up inferences. Does nothing
+     * if the model is loaded or loading.
+     */
+    public void preload(Context context) {
+        preload(context, DEFAULT_WARM_UP_RUNS);
+    }
+
+    /**
+     * Starts loading the model. Does nothing if the model is loaded or loading.
+     *
+     * @param warmUpRuns number of inferences run on a synthetic input before a model is handed
+     *                   out, also used for models loaded later by {@link #checkForUpdate()}
+     */
+    public synchronized void preload(Context context, int warmUpRuns) {
+        if (loading || model != null) {
+            return;
+        }
+        loading = true;
+        if (preloadStartMs < 0) {
+            preloadStartMs = SystemClock.elapsedRealtime();
+        }
+        this.context = context.getApplicationContext();
+        this.registry = new ModelRegistry(new File(this.context.getFilesDir(), MODELS_DIRECTORY));
+        this.warmUpRuns = warmUpRuns;
+        loader.execute(this::loadLatest);
+    }
+
+    /**
+     * Looks for an installed model newer than the active one and, if there is one, loads it in
+     * the background and swaps it in. Recognition keeps running on the active model meanwhile.
+     * Does nothing before {@link #preload(Context)} or while a model is loading.
+     */
+    public synchronized void checkForUpdate() {
+        if (loading || registry == null) {
+            return;
+        }
+        loading = true;
+        loader.execute(this::loadLatest);
+    }
+
+    private void loadLatest() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        RecognitionModel current = model;
+        Context context;
+        ModelRegistry registry;
+        int warmUpRuns;
+        synchronized (this) {
+            context = this.context;
+            registry = this.registry;
+            warmUpRuns = this.warmUpRuns;
+        }
+        ModelManifest manifest = registry.findLatest();
+        RecognitionModel loaded = null;
+        try {
+            if (manifest != null && (current == null || manifest.getVersion() > current.getVersion())) {
+                loaded = load(manifest, warmUpRuns);
+            } else if (current == null) {
+                loaded = load(null, warmUpRuns);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot load " + (manifest != null ? manifest : "the bundled model") + ".", e);
+            if (current == null && manifest != null) {
+                try {
+                    loaded = load(null, warmUpRuns);
+                } catch (IOException e2) {
+                    Log.e(TAG, "Cannot load the bundled model.", e2);
+                }
+            }
+        }
+        // Restored before the swap, so that the gallery is never used without the applied deltas
+        GallerySync sync = loaded != null ? openGallerySync(loaded, context) : null;
+        RecognitionModel previous = null;
+        synchronized (this) {
+            if (loaded != null) {
+                previous = model;
+                // The thread count may have changed while loading
+                loaded.setNumThreads(numThreads);
+                model = loaded;
+                if (gallerySync != null) {
+                    gallerySync.close();
+                }
+                gallerySync = sync;
+                if (sync != null) {
+                    sync.start();
+                }
+                if (readyMs < 0) {
+                    readyMs = SystemClock.elapsedRealtime();
+                }
+            }
+            loading = false;
+        }
+        if (previous != null) {
+            Log.i(TAG, "Swapped model v" + previous.getVersion() + " for v" + loaded.getVersion());
+            // Drops the reference of the manager, in-flight inferences hold their own
+            previous.release();
+        }
+        updateShadow(registry.findShadowCandidate(), registry.getRoot(), warmUpRuns);
+    }
+
+    /**
+     * Prepares the sync of the gallery of an embedding model and restores the gallery from its
+     * last checkpoint.
+     *
+     * @return the sync, not started, or {@code null} if the model has no gallery or no key has
+     * been provisioned
+     */
+    private static GallerySync openGallerySync(RecognitionModel model, Context context) {
+        if (!(model.getGallery() instanceof LiveGallery)) {
+            return null;
+        }
+        File keyFile = new File(context.getFilesDir(), GALLERY_KEY_FILE);
+        if (!keyFile.isFile()) {
+            Log.i(TAG, "No " + keyFile + ", gallery deltas are ignored");
+            return null;
+        }
+        byte[] key;
+        try (RandomAccessFile in = new RandomAccessFile(keyFile, "r")) {
+            key = new byte[(int) in.length()];
+            in.readFully(key);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + keyFile + ", gallery deltas are ignored", e);
+            return null;
+        }
+        if (key.length == 0) {
+            Log.e(TAG, "Empty " + keyFile + ", gallery deltas are ignored");
+            return null;
+        }
+        File directory = context.getExternalFilesDir(GALLERY_DELTAS_DIRECTORY);
+        if (directory == null) {
+            directory = new File(context.getFilesDir(), GALLERY_DELTAS_DIRECTORY);
+        }
+        File checkpoint = new File(new File(context.getFilesDir(), GALLERY_CHECKPOINTS_DIRECTORY),
+                "v" + model.getVersion());
+        GallerySync sync = new GallerySync(directory, checkpoint, key, model.getVersion(),
+                (LiveGallery) model.getGallery());
+        sync.restore();
+        return sync;
+    }
+
+    /**
+     * Replaces the shadow evaluator when the shadow model or the active model changed, so that
+     * stats are always about a single pair of models.
+     */
+    private void updateShadow(ModelManifest manifest, File statsDirectory, int warmUpRuns) {
+        RecognitionModel active = model;
+        ShadowEvaluator current = shadowEvaluator;
+        if (active == null || manifest == null || manifest.getVersion() == active.getVersion()) {
+            if (current != null) {
+                shadowEvaluator = null;
+                current.close();
+            }
+            return;
+        }
+        if (current != null && current.getCandidateVersion() == manifest.getVersion()
+                && current.getPrimaryVersion() == active.getVersion()) {
+            return;
+        }
+        ShadowEvaluator evaluator;
+        try {
+            evaluator = new ShadowEvaluator(load(manifest, warmUpRuns), active.getVersion(),
+                    manifest.getShadowSampleRate(), new File(statsDirectory,
+                    "shadow_v" + active.getVersion() + "_v" + manifest.getVersion() + ".stats"));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot load " + manifest + ".", e);
+            return;
+        }
+        shadowEvaluator = evaluator;
+        if (current != null) {
+            current.close();
+        }
+        Log.i(TAG, "Evaluating " + manifest + " in shadow of model v" + active.getVersion());
+    }
+
+    /**
+     * Sets the number of interpreter threads of the active model and of the models loaded later.
+     *
+     * @param numThreads number of threads, 0 for the interpreter default
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+        RecognitionModel active = model;
+        if (active != null) {
+            active.setNumThreads(numThreads);
+        }
+    }
+
+    /**
+     * Loads and warms up a model.
+     *
+     * @param manifest installed model to load, {@code null} for the one bundled in the assets
+     */
+    private RecognitionModel load(ModelManifest manifest, int warmUpRuns) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        RecognitionModel loaded = manifest != null
+                ? RecognitionModel.fromManifest(manifest)
+                : loadFromAssets();
+        loaded.setNumThreads(numThreads);
+        long mapped = SystemClock.elapsedRealtime();
+        long warmInferenceNs = loaded.warmUp(warmUpRuns);
+        Log.i(TAG, "Model v" + loaded.getVersion() + " loaded in " + (mapped - start)
+                + " ms, warmed up in " + (SystemClock.elapsedRealtime() - mapped) + " ms with "
+                + warmUpRuns + " runs, last one took " + warmInferenceNs / 1000000 + " ms");
+        return loaded;
+    }
+
+    /**
+     * Loads the classifier bundled in the assets.
+     */
+    private RecognitionModel loadFromAssets() throws IOException {
+        Interpreter interpreter = new Interpreter(loadModelFile(context));
+        return new RecognitionModel(ASSETS_VERSION, interpreter,
+                LabelStore.fromText(context.getAssets().open(LABEL_PATH)),
+                DIM_IMG_SIZE_X, DIM_IMG_SIZE_Y, IMAGE_MEAN, IMAGE_STD);
+    }
+
+    /**
+     * Memory-map the model file in Assets.
+     */
+    private static MappedByteBuffer loadModelFile(Context context) throws IOException {
+        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(MODEL_PATH);
+        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+        FileChannel fileChannel = inputStream.getChannel();
+        long startOffset = fileDescriptor.getStartOffset();
+        long declaredLength = fileDescriptor.getDeclaredLength();
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    }
+
+    /**
+     * @return the warmed up active model, {@code null} while it is still loading or if loading
+     * failed. Only meant to be peeked at; inferences must use {@link #acquire()}.
+     */
+    public RecognitionModel getModelIfReady() {
+        return model;
+    }
+
+    /**
+     * @return the evaluator of the installed shadow model, {@code null} if there is none
+     */
+    public ShadowEvaluator getShadowEvaluator() {
+        return shadowEvaluator;
+    }
+
+    /**
+     * Takes a reference on the active model for an inference. The model stays open until it is
+     * {@link RecognitionModel#release() released}, even if a newer one is swapped in meanwhile.
+     *
+     * @return the model or {@code null} if no model is ready
+     */
+    public RecognitionModel acquire() {
+        while (true) {
+            RecognitionModel active = model;
+            if (active == null) {
+                return null;
+            }
+            if (active.retain()) {
+                return active;
+            }
+            // Swapped out and closed since read, retry with the new one
+        }
+    }
+
+    /**
+     * Records the first recognition result of the process and logs the cold start latency.
+     */
+    public void reportFirstResult() {
+        if (firstResultMs >= 0) {
+            return;
+        }
+        firstResultMs = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Cold start to first result: " + getColdStartLatencyMs() + " ms (model ready after "
+                + (readyMs - preloadStartMs) + " ms)");
+    }
+
+    /**
+     * @return milliseconds from the first {@link #preload(Context)} to the first recognition result,
+     * -1 if there was no result yet
+     */
+    public long getColdStartLatencyMs() {
+        return firstResultMs < 0 ? -1 : firstResultMs - preloadStartMs;
+    }
+
+    /**
+     * Releases the active model, it is closed once in-flight inferences are done. A later
+     * {@link #preload(Context)} loads a model again.
+     */
+    public synchronized void release() {
+        if (gallerySync != null) {
+            gallerySync.close();
+            gallerySync = null;
+        }
+        if (shadowEvaluator != null) {
+            shadowEvaluator.close();
+            shadowEvaluator = null;
+        }
+        if (model != null) {
+            model.release();
+            model = null;
+        }
+    }
+}
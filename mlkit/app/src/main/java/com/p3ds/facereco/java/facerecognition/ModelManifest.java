@@ -0,0 +1,336 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Describes an installed model. Every model directory holds a {@value #FILE_NAME} properties file
+ * next to the model and label files:
+ *
+ * <pre>
+ * version=3
+ * type=classifier
+ * model=emp.tflite
+ * labels=retrained_labels.txt
+ * input.width=224
+ * input.height=224
+ * input.mean=128
+ * input.std=128
+ * </pre>
+ *
+ * <p>An {@code embedding} model outputs a face embedding of {@code embedding.size} floats instead,
+ * matched against the enrolled faces of its {@code gallery} file, see {@link FaceGallery}. Its
+ * labels name the identities of the gallery.
+ *
+ * <p>The gallery may be split into shards, e.g. by site, access group or enrollment time, see
+ * {@link ShardedGallery}. {@code gallery} then lists the hot shards, loaded with the model, and
+ * {@code gallery.cold} the shards loaded on demand, both comma separated. Resident cold shards take
+ * at most {@code gallery.memory_mb} (default {@value #DEFAULT_GALLERY_MEMORY_MB} MiB), and are only
+ * searched when the hot shards give no match scoring {@code gallery.min_score} (default
+ * {@value #DEFAULT_GALLERY_MIN_SCORE}).
+ *
+ * <p>The gallery is updated on the device by {@link GalleryDelta}s, see {@link GallerySync}.
+ * {@code gallery.delta_version} (default 0) is the delta version the shipped gallery already
+ * includes.
+ *
+ * <p>{@code gallery.aggregation} compresses the templates of every identity to at most
+ * {@code gallery.aggregation.max_templates} (default {@value #DEFAULT_GALLERY_AGGREGATION_MAX_TEMPLATES})
+ * when the gallery is loaded, by their {@code mean} or {@code medoid}, see
+ * {@link TemplateAggregator}; {@code none} (default) keeps them as enrolled. With
+ * {@code gallery.adaptation=true} the templates of the hot shards follow the confident matches of
+ * their identity, see {@link FaceGallery#enableAdaptation(float, float, float)}.
+ *
+ * <p>Labels are either a text file, one label per line, or a {@link LabelStore} compiled to a
+ * {@value LabelStore#EXTENSION} file, which is memory-mapped instead of parsed.
+ *
+ * <p>A model with {@code shadow=true} is never made active; it is evaluated against the active one
+ * by a {@link ShadowEvaluator} on the {@code shadow.sample_rate} fraction of the recognized faces
+ * (default {@value #DEFAULT_SHADOW_SAMPLE_RATE}).
+ */
+public class ModelManifest {
+
+    /**
+     * Name of the manifest file in a model directory.
+     */
+    public static final String FILE_NAME = "manifest.properties";
+
+    public static final float DEFAULT_SHADOW_SAMPLE_RATE = 0.2f;
+
+    public static final int DEFAULT_GALLERY_MEMORY_MB = 32;
+
+    public static final float DEFAULT_GALLERY_MIN_SCORE = Recognition.MIN_KNOWN_CONFIDENCE;
+
+    public static final int DEFAULT_GALLERY_AGGREGATION_MAX_TEMPLATES = 1;
+
+    /**
+     * What the output of a model means.
+     */
+    public enum Type {
+        /**
+         * One probability per label.
+         */
+        CLASSIFIER,
+        /**
+         * An embedding of the face, matched against a gallery.
+         */
+        EMBEDDING
+    }
+
+    private final File directory;
+    private final int version;
+    private final Type type;
+    private final String modelFile;
+    private final String labelFile;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final float imageMean;
+    private final float imageStd;
+    private final int embeddingSize;
+    private final List<String> galleryFiles;
+    private final List<String> coldGalleryFiles;
+    private final int galleryMemoryMb;
+    private final float galleryMinScore;
+    private final long galleryDeltaVersion;
+    private final TemplateAggregator.Mode galleryAggregation;
+    private final int galleryAggregationMaxTemplates;
+    private final boolean galleryAdaptation;
+    private final boolean shadow;
+    private final float shadowSampleRate;
+
+    private ModelManifest(File directory, int version, Type type, String modelFile, String labelFile,
+                          int inputWidth, int inputHeight, float imageMean, float imageStd,
+                          int embeddingSize, List<String> galleryFiles, List<String> coldGalleryFiles,
+                          int galleryMemoryMb, float galleryMinScore, long galleryDeltaVersion,
+                          TemplateAggregator.Mode galleryAggregation, int galleryAggregationMaxTemplates,
+                          boolean galleryAdaptation, boolean shadow, float shadowSampleRate) {
+        this.directory = directory;
+        this.version = version;
+        this.type = type;
+        this.modelFile = modelFile;
+        this.labelFile = labelFile;
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.imageMean = imageMean;
+        this.imageStd = imageStd;
+        this.embeddingSize = embeddingSize;
+        this.galleryFiles = galleryFiles;
+        this.coldGalleryFiles = coldGalleryFiles;
+        this.galleryMemoryMb = galleryMemoryMb;
+        this.galleryMinScore = galleryMinScore;
+        this.galleryDeltaVersion = galleryDeltaVersion;
+        this.galleryAggregation = galleryAggregation;
+        this.galleryAggregationMaxTemplates = galleryAggregationMaxTemplates;
+        this.galleryAdaptation = galleryAdaptation;
+        this.shadow = shadow;
+        this.shadowSampleRate = shadowSampleRate;
+    }
+
+    /**
+     * Reads the manifest of a model directory.
+     *
+     * @throws IOException if the manifest is missing or invalid
+     */
+    public static ModelManifest read(File directory) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(new File(directory, FILE_NAME))) {
+            properties.load(in);
+        }
+        try {
+            Type type = Type.valueOf(required(properties, "type").toUpperCase(Locale.US));
+            boolean embedding = type == Type.EMBEDDING;
+            String aggregation = properties.getProperty("gallery.aggregation", "none").trim();
+            return new ModelManifest(
+                    directory,
+                    Integer.parseInt(required(properties, "version")),
+                    type,
+                    required(properties, "model"),
+                    required(properties, "labels"),
+                    Integer.parseInt(required(properties, "input.width")),
+                    Integer.parseInt(required(properties, "input.height")),
+                    Float.parseFloat(required(properties, "input.mean")),
+                    Float.parseFloat(required(properties, "input.std")),
+                    embedding ? Integer.parseInt(required(properties, "embedding.size")) : 0,
+                    embedding ? list(required(properties, "gallery")) : Collections.emptyList(),
+                    list(properties.getProperty("gallery.cold", "")),
+                    Integer.parseInt(properties.getProperty("gallery.memory_mb",
+                            String.valueOf(DEFAULT_GALLERY_MEMORY_MB)).trim()),
+                    Float.parseFloat(properties.getProperty("gallery.min_score",
+                            String.valueOf(DEFAULT_GALLERY_MIN_SCORE)).trim()),
+                    Long.parseLong(properties.getProperty("gallery.delta_version", "0").trim()),
+                    aggregation.equalsIgnoreCase("none") ? null
+                            : TemplateAggregator.Mode.valueOf(aggregation.toUpperCase(Locale.US)),
+                    Integer.parseInt(properties.getProperty("gallery.aggregation.max_templates",
+                            String.valueOf(DEFAULT_GALLERY_AGGREGATION_MAX_TEMPLATES)).trim()),
+                    Boolean.parseBoolean(properties.getProperty("gallery.adaptation", "false").trim()),
+                    Boolean.parseBoolean(properties.getProperty("shadow", "false").trim()),
+                    Float.parseFloat(properties.getProperty("shadow.sample_rate",
+                            String.valueOf(DEFAULT_SHADOW_SAMPLE_RATE)).trim()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid manifest in " + directory + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static String required(Properties properties, String key) throws IOException {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IOException("Manifest is missing \"" + key + "\"");
+        }
+        return value.trim();
+    }
+
+    private static List<String> list(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public File getModelFile() {
+        return new File(directory, modelFile);
+    }
+
+    public File getLabelFile() {
+        return new File(directory, labelFile);
+    }
+
+    public int getInputWidth() {
+        return inputWidth;
+    }
+
+    public int getInputHeight() {
+        return inputHeight;
+    }
+
+    public float getImageMean() {
+        return imageMean;
+    }
+
+    public float getImageStd() {
+        return imageStd;
+    }
+
+    /**
+     * @return the number of floats in the output of an embedding model, 0 for classifiers
+     */
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    /**
+     * @return the gallery shards loaded with an embedding model, empty for classifiers
+     */
+    public List<File> getGalleryFiles() {
+        return files(galleryFiles);
+    }
+
+    /**
+     * @return the gallery shards loaded on demand
+     */
+    public List<File> getColdGalleryFiles() {
+        return files(coldGalleryFiles);
+    }
+
+    private List<File> files(List<String> names) {
+        List<File> files = new ArrayList<>(names.size());
+        for (String name : names) {
+            files.add(new File(directory, name));
+        }
+        return files;
+    }
+
+    /**
+     * @return the memory the resident cold gallery shards may take
+     */
+    public long getGalleryMemoryBytes() {
+        return galleryMemoryMb * 1024L * 1024L;
+    }
+
+    /**
+     * @return the score a match of the hot gallery shards needs for the cold ones not to be searched
+     */
+    public float getGalleryMinScore() {
+        return galleryMinScore;
+    }
+
+    /**
+     * @return the delta version the shipped gallery includes
+     */
+    public long getGalleryDeltaVersion() {
+        return galleryDeltaVersion;
+    }
+
+    /**
+     * @return how the templates of an identity are aggregated, {@code null} to keep them as enrolled
+     */
+    public TemplateAggregator.Mode getGalleryAggregation() {
+        return galleryAggregation;
+    }
+
+    /**
+     * @return the number of templates an identity is aggregated to at most
+     */
+    public int getGalleryAggregationMaxTemplates() {
+        return galleryAggregationMaxTemplates;
+    }
+
+    /**
+     * @return true if the templates of the hot gallery shards adapt to confident matches
+     */
+    public boolean isGalleryAdaptation() {
+        return galleryAdaptation;
+    }
+
+    /**
+     * @return true if the model is only a candidate evaluated in shadow of the active one
+     */
+    public boolean isShadow() {
+        return shadow;
+    }
+
+    public float getShadowSampleRate() {
+        return shadowSampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return (shadow ? "shadow model v" : "model v") + version
+                + " (" + type.name().toLowerCase(Locale.US) + ", " + directory + ")";
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Models installed in a local directory, one sub directory per model, each described by a
+ * {@link ModelManifest}. New models are installed by copying a complete directory (ideally under
+ * a temporary name, then renaming it) into the root; no APK rebuild is needed.
+ */
+public class ModelRegistry {
+
+    private static final String TAG = "ModelRegistry";
+
+    private final File root;
+
+    public ModelRegistry(File root) {
+        this.root = root;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Finds the installed model with the highest version. Directories without a valid manifest or
+     * without their model file are skipped, and so are shadow models.
+     *
+     * @return the manifest of the newest model or {@code null} if none is installed
+     */
+    public ModelManifest findLatest() {
+        return findLatest(false);
+    }
+
+    /**
+     * Finds the shadow model with the highest version.
+     *
+     * @return the manifest of the newest shadow model or {@code null} if none is installed
+     */
+    public ModelManifest findShadowCandidate() {
+        return findLatest(true);
+    }
+
+    private ModelManifest findLatest(boolean shadow) {
+        File[] directories = root.listFiles(File::isDirectory);
+        if (directories == null) {
+            return null;
+        }
+        ModelManifest latest = null;
+        for (File directory : directories) {
+            if (!new File(directory, ModelManifest.FILE_NAME).isFile()) {
+                continue;
+            }
+            try {
+                ModelManifest manifest = ModelManifest.read(directory);
+                if (manifest.isShadow() != shadow) {
+                    continue;
+                }
+                if (!manifest.getModelFile().isFile() || !manifest.getLabelFile().isFile()
+                        || !allFiles(manifest.getGalleryFiles())) {
+                    Log.w(TAG, "Skipping incomplete " + manifest);
+                    continue;
+                }
+                if (latest == null || manifest.getVersion() > latest.getVersion()) {
+                    latest = manifest;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Skipping model directory " + directory, e);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return true if all the files exist. Only the hot gallery shards are checked, the cold ones
+     * may live on a share mounted later.
+     */
+    private static boolean allFiles(List<File> files) {
+        for (File file : files) {
+            if (!file.isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,62 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+/**
+ * Result of recognizing a face: the identity the model is most confident in and its score.
+ * Names are only looked up in the {@link LabelStore} of the model when shown.
+ */
+public class Recognition {
+
+    /**
+     * Faces recognized with a lower confidence are considered unknown.
+     */
+    public static final float MIN_KNOWN_CONFIDENCE = 0.5f;
+
+    private final LabelStore labels;
+    private final int identityId;
+    private final float confidence;
+
+    public Recognition(LabelStore labels, int identityId, float confidence) {
+        this.labels = labels;
+        this.identityId = identityId;
+        this.confidence = confidence;
+    }
+
+    /**
+     * @return the labels of the model that produced the result, the ID is only meaningful in them
+     */
+    public LabelStore getLabels() {
+        return labels;
+    }
+
+    public int getIdentityId() {
+        return identityId;
+    }
+
+    public float getConfidence() {
+        return confidence;
+    }
+
+    public String getName() {
+        return labels.getName(identityId);
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " (" + identityId + "): " + confidence;
+    }
+}
@@ -0,0 +1,162 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Runs a {@link RecognitionModel} on faces given as plain ARGB pixels: alignment or scaling,
+ * normalization, inference, optional smoothing and the top-K of the labels or, for embedding
+ * models, of the gallery. Plain Java, so that the same core runs in the app and in the
+ * {@link com.p3ds.facereco.java.service.RecognitionServer}.
+ *
+ * <p>Faces can be recognized in batches when the model accepts a resized batch dimension;
+ * otherwise batches are run one face after the other. Buffers are reused between calls.
+ *
+ * <p>Not thread safe: an engine must only be used by one thread at a time, and must be the only
+ * user of the interpreter of its model while batching.
+ */
+public class RecognitionEngine {
+
+    private final RecognitionModel model;
+    private final FaceAligner aligner;
+    private final TopK best = new TopK(1);
+
+    private int batchSize;
+    private boolean batching = true;
+    private ByteBuffer input;
+    private float[][] output;
+
+    /**
+     * @param model model to run, the caller keeps it retained while the engine is in use
+     */
+    public RecognitionEngine(RecognitionModel model) {
+        this.model = model;
+        aligner = new FaceAligner(model.getInputWidth(), model.getInputHeight(),
+                model.getImageMean(), model.getImageStd());
+        allocate(1);
+    }
+
+    public RecognitionModel getModel() {
+        return model;
+    }
+
+    /**
+     * Recognizes a single face.
+     *
+     * @return the best identity, {@code null} if the model has no labels or an empty gallery
+     */
+    public Recognition recognize(FaceInput face) {
+        model.applyNumThreads();
+        if (batchSize != 1) {
+            resize(1);
+        }
+        input.rewind();
+        preprocess(face);
+        model.getInterpreter().run(input, output);
+        select(face, output[0], best);
+        return best.size() == 0 ? null
+                : new Recognition(model.getLabels(), best.getId(0), best.getScore(0));
+    }
+
+    /**
+     * Recognizes faces in one inference if the model allows it.
+     *
+     * @param faces   faces to recognize
+     * @param count   number of faces to use from {@code faces}
+     * @param results receive the best identities of every face
+     */
+    public void recognize(FaceInput[] faces, int count, TopK[] results) {
+        model.applyNumThreads();
+        if (count > 1 && batching) {
+            try {
+                if (batchSize != count) {
+                    resize(count);
+                }
+                input.rewind();
+                for (int i = 0; i < count; ++i) {
+                    preprocess(faces[i]);
+                }
+                model.getInterpreter().run(input, output);
+                for (int i = 0; i < count; ++i) {
+                    select(faces[i], output[i], results[i]);
+                }
+                return;
+            } catch (IllegalArgumentException e) {
+                // Fixed batch dimension, fall back to one face per inference from now on
+                batching = false;
+                resize(1);
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            if (batchSize != 1) {
+                resize(1);
+            }
+            input.rewind();
+            preprocess(faces[i]);
+            model.getInterpreter().run(input, output);
+            select(faces[i], output[0], results[i]);
+        }
+    }
+
+    /**
+     * Writes a face into the input tensor at its current position.
+     */
+    private void preprocess(FaceInput face) {
+        if (face.landmarks == null || !aligner.setLandmarks(face.landmarks)) {
+            aligner.setRegion(face.width, face.height);
+        }
+        aligner.warp(face.pixels, face.width, face.height, input);
+    }
+
+    private void select(FaceInput face, float[] values, TopK result) {
+        if (face.smoother != null) {
+            face.smoother.apply(values);
+        }
+        Gallery gallery = model.getGallery();
+        if (gallery != null) {
+            FaceGallery.normalize(values, 0, values.length);
+            gallery.match(values, result);
+            if (result.size() > 0) {
+                gallery.adapt(values, result.getId(0), result.getScore(0));
+            }
+        } else {
+            result.select(values);
+        }
+        if (face.descriptor != null && face.descriptor.length >= values.length) {
+            System.arraycopy(values, 0, face.descriptor, 0, values.length);
+            if (gallery == null) {
+                FaceGallery.normalize(face.descriptor, 0, values.length);
+            }
+        }
+    }
+
+    private void resize(int size) {
+        model.getInterpreter().resizeInput(0, new int[]{
+                size, model.getInputHeight(), model.getInputWidth(), RecognitionModel.DIM_PIXEL_SIZE});
+        allocate(size);
+    }
+
+    private void allocate(int size) {
+        batchSize = size;
+        if (input == null || input.capacity() != size * model.getInputByteSize()) {
+            input = ByteBuffer.allocateDirect(size * model.getInputByteSize()).order(ByteOrder.nativeOrder());
+        }
+        output = new float[size][model.getOutputSize()];
+    }
+}
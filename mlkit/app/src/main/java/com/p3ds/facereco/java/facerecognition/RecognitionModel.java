@@ -0,0 +1,237 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loaded recognition model: the TF Lite interpreter, the labels of its outputs and the geometry
+ * and normalization of its input. Embedding models also carry the gallery their output is matched
+ * against.
+ *
+ * <p>Plain Java, so that it can be loaded outside of Android as well; the assets of the app are
+ * loaded by the {@link ModelManager}.
+ *
+ * <p>Models are reference counted so that they can be swapped while in use. The creator holds
+ * the first reference; every inference {@link #retain()}s the model and {@link #release()}s it
+ * when done. The interpreter is closed once the last reference is released.
+ */
+public class RecognitionModel {
+
+    /**
+     * Dimensions of inputs.
+     */
+    public static final int DIM_PIXEL_SIZE = 3;
+
+    private final int version;
+    private final ModelManifest.Type type;
+    private final Interpreter interpreter;
+    private final LabelStore labels;
+    private final Gallery gallery;
+    private final int outputSize;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final float imageMean;
+    private final float imageStd;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    // Thread count asked for and thread count the interpreter runs with, 0 for its default
+    private volatile int requestedThreads;
+    private int appliedThreads;
+
+    /**
+     * Creates a classifier, with one output per label.
+     */
+    RecognitionModel(int version, Interpreter interpreter, LabelStore labels,
+                     int inputWidth, int inputHeight, float imageMean, float imageStd) {
+        this(version, ModelManifest.Type.CLASSIFIER, interpreter, labels, null, labels.size(),
+                inputWidth, inputHeight, imageMean, imageStd);
+    }
+
+    private RecognitionModel(int version, ModelManifest.Type type, Interpreter interpreter,
+                             LabelStore labels, Gallery gallery, int outputSize,
+                             int inputWidth, int inputHeight, float imageMean, float imageStd) {
+        this.version = version;
+        this.type = type;
+        this.interpreter = interpreter;
+        this.labels = labels;
+        this.gallery = gallery;
+        this.outputSize = outputSize;
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.imageMean = imageMean;
+        this.imageStd = imageStd;
+    }
+
+    /**
+     * Loads an installed model, memory-mapping its model file and its label file if it is a
+     * compiled {@link LabelStore}.
+     */
+    public static RecognitionModel fromManifest(ModelManifest manifest) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(manifest.getModelFile(), "r")) {
+            // The mapping stays valid once the file is closed
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        LabelStore labels = LabelStore.read(manifest.getLabelFile());
+        boolean embedding = manifest.getType() == ModelManifest.Type.EMBEDDING;
+        Gallery gallery = embedding
+                ? new LiveGallery(ShardedGallery.read(manifest), labels, manifest.getGalleryDeltaVersion())
+                : null;
+        return new RecognitionModel(manifest.getVersion(), manifest.getType(),
+                new Interpreter(buffer), labels, gallery,
+                embedding ? manifest.getEmbeddingSize() : labels.size(),
+                manifest.getInputWidth(), manifest.getInputHeight(),
+                manifest.getImageMean(), manifest.getImageStd());
+    }
+
+    /**
+     * Runs inference on a synthetic input so that the one-time initialization costs of the
+     * interpreter are paid before the first real face.
+     *
+     * @param runs number of inferences to run
+     * @return the duration of the last inference in nanoseconds, i.e. the warm inference time
+     */
+    public long warmUp(int runs) {
+        ByteBuffer input = ByteBuffer.allocateDirect(getInputByteSize()).order(ByteOrder.nativeOrder());
+        float[][] output = new float[1][outputSize];
+        applyNumThreads();
+        long duration = 0;
+        for (int i = 0; i < runs; ++i) {
+            // Mid gray, i.e. all zeros once normalized
+            input.rewind();
+            long start = System.nanoTime();
+            interpreter.run(input, output);
+            duration = System.nanoTime() - start;
+        }
+        return duration;
+    }
+
+    /**
+     * Sets the number of threads of the interpreter. Takes effect before the next inference, on
+     * the thread running it, as the interpreter cannot be reconfigured while it runs.
+     *
+     * @param numThreads number of threads, 0 for the interpreter default
+     */
+    public void setNumThreads(int numThreads) {
+        requestedThreads = numThreads;
+    }
+
+    public int getNumThreads() {
+        return requestedThreads;
+    }
+
+    /**
+     * Applies the thread count of {@link #setNumThreads(int)}, from the thread about to run the
+     * interpreter.
+     */
+    void applyNumThreads() {
+        int numThreads = requestedThreads;
+        if (numThreads > 0 && numThreads != appliedThreads) {
+            interpreter.setNumThreads(numThreads);
+            appliedThreads = numThreads;
+        }
+    }
+
+    /**
+     * Takes a reference on the model for an inference.
+     *
+     * @return false if the model has already been closed and must not be used
+     */
+    public boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference, closing the interpreter when it was the last one.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            interpreter.close();
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public ModelManifest.Type getType() {
+        return type;
+    }
+
+    public Interpreter getInterpreter() {
+        return interpreter;
+    }
+
+    public LabelStore getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return the gallery of an embedding model, {@code null} for classifiers
+     */
+    public Gallery getGallery() {
+        return gallery;
+    }
+
+    /**
+     * @return the number of floats output per face: one per label for classifiers, the embedding
+     * size for embedding models
+     */
+    public int getOutputSize() {
+        return outputSize;
+    }
+
+    public int getInputWidth() {
+        return inputWidth;
+    }
+
+    public int getInputHeight() {
+        return inputHeight;
+    }
+
+    public float getImageMean() {
+        return imageMean;
+    }
+
+    public float getImageStd() {
+        return imageStd;
+    }
+
+    /**
+     * Size in bytes of a float input tensor holding one image.
+     */
+    public int getInputByteSize() {
+        return 4 * inputWidth * inputHeight * DIM_PIXEL_SIZE;
+    }
+}
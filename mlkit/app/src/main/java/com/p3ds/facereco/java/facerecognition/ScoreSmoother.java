@@ -0,0 +1,69 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+/**
+ * Smooths the successive model outputs of one tracked face with a cascade of first order low-pass
+ * filters, so that a single bad frame does not flip the result. The first output passes through
+ * unchanged.
+ */
+public class ScoreSmoother {
+
+    public static final int DEFAULT_STAGES = 3;
+    public static final float DEFAULT_FACTOR = 0.4f;
+
+    private final float factor;
+    private final float[][] stages;
+    private boolean primed;
+
+    public ScoreSmoother(int size) {
+        this(size, DEFAULT_STAGES, DEFAULT_FACTOR);
+    }
+
+    /**
+     * @param size   number of values of an output
+     * @param stages number of filters in the cascade
+     * @param factor weight of a new output in every filter, in (0, 1]
+     */
+    public ScoreSmoother(int size, int stages, float factor) {
+        this.factor = factor;
+        this.stages = new float[stages][size];
+    }
+
+    /**
+     * Feeds an output and replaces it with the smoothed values.
+     */
+    public void apply(float[] values) {
+        if (!primed) {
+            for (float[] stage : stages) {
+                System.arraycopy(values, 0, stage, 0, stage.length);
+            }
+            primed = true;
+            return;
+        }
+        float[] input = values;
+        for (float[] stage : stages) {
+            for (int j = 0; j < stage.length; ++j) {
+                stage[j] += factor * (input[j] - stage[j]);
+            }
+            input = stage;
+        }
+        System.arraycopy(input, 0, values, 0, values.length);
+    }
+
+    public void reset() {
+        primed = false;
+    }
+}
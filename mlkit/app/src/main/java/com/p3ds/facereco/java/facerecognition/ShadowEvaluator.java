@@ -0,0 +1,287 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a candidate model on a sample of the faces the primary model classifies, to compare both on
+ * live traffic before rolling the candidate out.
+ *
+ * <p>The primary path only copies the face pixels into a free slot and hands them to a lowest
+ * priority worker; it never waits. When no slot is free the sample is dropped. Agreement of the
+ * top labels, latency and confidence distribution of both models are written to a stats file
+ * every {@link #STATS_WRITE_INTERVAL} samples.
+ *
+ * <p>Shadowing is suspended while the pipeline drops too many frames, and resumed with hysteresis
+ * once it keeps up again.
+ */
+public class ShadowEvaluator {
+
+    private static final String TAG = "ShadowEvaluator";
+
+    /**
+     * Number of samples that can be queued or running at once.
+     */
+    private static final int SLOTS = 2;
+
+    /**
+     * Shadowing is suspended above this ratio of dropped frames, and resumed below half of it.
+     */
+    private static final float MAX_DROP_RATIO = 0.3f;
+
+    /**
+     * Smoothing factor of the dropped frame ratio.
+     */
+    private static final float DROP_RATIO_SMOOTHING = 0.1f;
+
+    private static final int STATS_WRITE_INTERVAL = 20;
+
+    private static final int CONFIDENCE_BINS = 10;
+
+    /**
+     * Face pixels waiting for or being classified by the candidate.
+     */
+    private static class Sample {
+        int[] pixels = new int[0];
+        int width;
+        int height;
+        final float[] landmarks = new float[FaceAligner.LANDMARK_ARRAY_SIZE];
+        boolean hasLandmarks;
+        String primaryLabel;
+        float primaryConfidence;
+        long primaryLatencyNs;
+    }
+
+    private final RecognitionModel candidate;
+    private final int primaryVersion;
+    private final float sampleRate;
+    private final File statsFile;
+
+    private final BlockingQueue<Sample> freeSlots = new ArrayBlockingQueue<>(SLOTS);
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                runnable.run();
+            }, "ShadowEvaluator"));
+
+    // Touched by the thread reporting the frame load only
+    private float dropRatio;
+    private volatile boolean suspended;
+
+    // Touched by the primary inference thread only
+    private float sampleCredit;
+
+    // Counted by the primary inference thread, read by the worker
+    private final AtomicInteger droppedSamples = new AtomicInteger();
+
+    // Touched by the worker only
+    private final RecognitionEngine engine;
+    private final FaceInput face = new FaceInput();
+    private int samples;
+    private int agreements;
+    private long primaryLatencyNsTotal;
+    private long shadowLatencyNsTotal;
+    private final int[] primaryConfidences = new int[CONFIDENCE_BINS];
+    private final int[] shadowConfidences = new int[CONFIDENCE_BINS];
+
+    private volatile boolean closed;
+
+    /**
+     * @param candidate      model to evaluate, owned by the evaluator from now on
+     * @param primaryVersion version of the model it is compared to
+     * @param sampleRate     fraction of the classified faces also given to the candidate
+     * @param statsFile      file the stats are written to
+     */
+    public ShadowEvaluator(RecognitionModel candidate, int primaryVersion, float sampleRate, File statsFile) {
+        this.candidate = candidate;
+        this.primaryVersion = primaryVersion;
+        this.sampleRate = Math.max(0.0f, Math.min(1.0f, sampleRate));
+        this.statsFile = statsFile;
+        for (int i = 0; i < SLOTS; ++i) {
+            freeSlots.add(new Sample());
+        }
+        engine = new RecognitionEngine(candidate);
+    }
+
+    public int getCandidateVersion() {
+        return candidate.getVersion();
+    }
+
+    public int getPrimaryVersion() {
+        return primaryVersion;
+    }
+
+    /**
+     * Feeds the frame load of the pipeline, which decides whether shadowing is suspended.
+     *
+     * @param droppedFrames frames dropped since the previous processed frame
+     */
+    public void reportFrameLoad(int droppedFrames) {
+        float frameDropRatio = (float) droppedFrames / (droppedFrames + 1);
+        dropRatio += DROP_RATIO_SMOOTHING * (frameDropRatio - dropRatio);
+        if (!suspended && dropRatio > MAX_DROP_RATIO) {
+            suspended = true;
+            Log.i(TAG, String.format(Locale.US, "Suspending shadow evaluation, %.0f%% frames dropped", dropRatio * 100));
+        } else if (suspended && dropRatio < MAX_DROP_RATIO / 2) {
+            suspended = false;
+            Log.i(TAG, "Resuming shadow evaluation");
+        }
+    }
+
+    /**
+     * Hands a face to the candidate if it is part of the sample. Never blocks.
+     *
+     * @param pixels            face pixels the primary model was fed from, copied
+     * @param landmarks         alignment landmarks in the coordinates of {@code pixels}, may be
+     *                          {@code null}
+     * @param primaryLabel      top label of the primary model
+     * @param primaryConfidence confidence of the primary model in its top label
+     * @param primaryLatencyNs  time the primary inference of the face took, its share of the batch
+     */
+    public void offer(int[] pixels, int width, int height, float[] landmarks,
+                      String primaryLabel, float primaryConfidence, long primaryLatencyNs) {
+        if (closed || suspended) {
+            return;
+        }
+        sampleCredit += sampleRate;
+        if (sampleCredit < 1.0f) {
+            return;
+        }
+        sampleCredit -= 1.0f;
+        Sample sample = freeSlots.poll();
+        if (sample == null) {
+            droppedSamples.incrementAndGet();
+            return;
+        }
+        if (sample.pixels.length < width * height) {
+            sample.pixels = new int[width * height];
+        }
+        System.arraycopy(pixels, 0, sample.pixels, 0, width * height);
+        sample.hasLandmarks = landmarks != null;
+        if (landmarks != null) {
+            System.arraycopy(landmarks, 0, sample.landmarks, 0, FaceAligner.LANDMARK_ARRAY_SIZE);
+        }
+        sample.width = width;
+        sample.height = height;
+        sample.primaryLabel = primaryLabel;
+        sample.primaryConfidence = primaryConfidence;
+        sample.primaryLatencyNs = primaryLatencyNs;
+        try {
+            worker.execute(() -> evaluate(sample));
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+            freeSlots.add(sample);
+        }
+    }
+
+    private void evaluate(Sample sample) {
+        try {
+            if (closed) {
+                return;
+            }
+            long start = System.nanoTime();
+            Recognition recognition = engine.recognize(face.set(sample.pixels, sample.width, sample.height,
+                    sample.hasLandmarks ? sample.landmarks : null));
+            long latencyNs = System.nanoTime() - start;
+            if (recognition == null) {
+                return;
+            }
+            samples++;
+            // Identity IDs of different models are unrelated, names are compared
+            if (recognition.getName().equals(sample.primaryLabel)) {
+                agreements++;
+            }
+            primaryLatencyNsTotal += sample.primaryLatencyNs;
+            shadowLatencyNsTotal += latencyNs;
+            primaryConfidences[bin(sample.primaryConfidence)]++;
+            shadowConfidences[bin(recognition.getConfidence())]++;
+            if (samples % STATS_WRITE_INTERVAL == 0) {
+                writeStats();
+            }
+        } finally {
+            freeSlots.add(sample);
+        }
+    }
+
+    private static int bin(float confidence) {
+        return Math.max(0, Math.min(CONFIDENCE_BINS - 1, (int) (confidence * CONFIDENCE_BINS)));
+    }
+
+    /**
+     * Replaces the stats file, through a temporary file so that readers never see a partial one.
+     */
+    private void writeStats() {
+        File temp = new File(statsFile.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            out.write("primary_version=" + primaryVersion + "\n");
+            out.write("candidate_version=" + candidate.getVersion() + "\n");
+            out.write("samples=" + samples + "\n");
+            out.write("dropped_samples=" + droppedSamples.get() + "\n");
+            out.write(String.format(Locale.US, "agreement_rate=%.4f%n", (float) agreements / samples));
+            out.write(String.format(Locale.US, "primary_mean_latency_ms=%.2f%n", primaryLatencyNsTotal / 1e6 / samples));
+            out.write(String.format(Locale.US, "candidate_mean_latency_ms=%.2f%n", shadowLatencyNsTotal / 1e6 / samples));
+            out.write("primary_confidence_histogram=" + join(primaryConfidences) + "\n");
+            out.write("candidate_confidence_histogram=" + join(shadowConfidences) + "\n");
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write shadow stats to " + statsFile, e);
+            return;
+        }
+        if (!temp.renameTo(statsFile)) {
+            Log.w(TAG, "Cannot replace " + statsFile);
+        }
+    }
+
+    private static String join(int[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Stops evaluating and releases the candidate once the running sample is done.
+     */
+    public void close() {
+        closed = true;
+        worker.execute(() -> {
+            if (samples > 0) {
+                writeStats();
+            }
+            candidate.release();
+        });
+        worker.shutdown();
+    }
+}
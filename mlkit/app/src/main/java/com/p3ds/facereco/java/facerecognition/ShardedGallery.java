@@ -0,0 +1,331 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A gallery split into shards, e.g. by site, access group or enrollment time, so that a device does
+ * not keep every identity of a deployment resident.
+ *
+ * <p>Hot shards are loaded up front and always searched first. Cold shards are only searched when
+ * the hot ones give no match scoring at least the minimum score, and only once they are resident,
+ * most recently used first, until one gives a confident match. Reading a shard never blocks a
+ * search: the cold shards a search could not reach are loaded in the background, a few at a time,
+ * in the order they are listed in, and later searches, e.g. of the next frames of the same face,
+ * find them resident. Resident cold shards are evicted least recently used first to stay within
+ * the memory budget; a shard larger than the budget stays resident alone until the next load.
+ *
+ * <p>Faces that no cold shard matched are remembered for a while, with the shards already searched
+ * for them, so that a visitor who is not enrolled anywhere does not have every cold shard searched
+ * and loaded again on every frame.
+ *
+ * <p>Shards may be aggregated as they are read, see {@link TemplateAggregator}.
+ *
+ * <p>Searching the hot shards takes no lock. Searches reaching the cold shards are serialized.
+ */
+public class ShardedGallery implements Gallery {
+
+    private static final Logger LOG = Logger.getLogger(ShardedGallery.class.getName());
+
+    /**
+     * Cold shards read at the same time at most, searches finding more missing wait for later frames.
+     */
+    private static final int MAX_PENDING_LOADS = 2;
+
+    /**
+     * Faces that missed the cold shards are remembered for this long, at most this many of them.
+     */
+    private static final long MISS_TTL_MS = 10000;
+    private static final int MAX_MISSES = 32;
+
+    /**
+     * Cosine similarity from which a face is taken for a remembered miss, high enough to hold for
+     * the frames of one face only.
+     */
+    private static final float MISS_SIMILARITY = 0.9f;
+
+    /**
+     * Reads the cold shards of all galleries, off the inference threads.
+     */
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "GalleryShardLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A face no cold shard matched, with the shards searched for it, by index.
+     */
+    private static class Miss {
+        private final float[] embedding;
+        private final boolean[] searched;
+        private long timeMs;
+
+        Miss(float[] embedding, int shardCount) {
+            this.embedding = embedding.clone();
+            this.searched = new boolean[shardCount];
+        }
+    }
+
+    private final int embeddingSize;
+    private final List<FaceGallery> hotShards;
+    private final List<File> coldShards;
+    private final Map<File, Integer> coldShardIndices = new HashMap<>();
+    private final long memoryBudgetBytes;
+    private final float minScore;
+    private final int hotSize;
+    private final TemplateAggregator aggregator;
+
+    // @GuardedBy("this"), in access order, i.e. least recently used first
+    private final LinkedHashMap<File, FaceGallery> residentShards = new LinkedHashMap<>(16, 0.75f, true);
+    // @GuardedBy("this")
+    private final Set<File> failedShards = new HashSet<>();
+    // @GuardedBy("this"), queued or being read by the loader
+    private final Set<File> pendingShards = new HashSet<>();
+    // @GuardedBy("this"), oldest first
+    private final ArrayDeque<Miss> misses = new ArrayDeque<>();
+    // @GuardedBy("this")
+    private final List<Map.Entry<File, FaceGallery>> searchOrder = new ArrayList<>();
+    // @GuardedBy("this")
+    private long residentBytes;
+
+    /**
+     * @param hotShards         shards searched first, resident for the life of the gallery
+     * @param coldShards        gallery files loaded on demand, in the order they are searched in
+     * @param memoryBudgetBytes memory the resident cold shards may take
+     * @param minScore          score of the best hot match below which the cold shards are searched
+     * @param aggregator        aggregates the cold shards as they are loaded, may be {@code null}
+     */
+    public ShardedGallery(int embeddingSize, List<FaceGallery> hotShards, List<File> coldShards,
+                          long memoryBudgetBytes, float minScore, TemplateAggregator aggregator) {
+        this.embeddingSize = embeddingSize;
+        this.hotShards = new ArrayList<>(hotShards);
+        this.coldShards = new ArrayList<>(coldShards);
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.minScore = minScore;
+        this.aggregator = aggregator;
+        for (int i = 0; i < this.coldShards.size(); ++i) {
+            coldShardIndices.put(this.coldShards.get(i), i);
+        }
+        int size = 0;
+        for (FaceGallery shard : hotShards) {
+            size += shard.size();
+        }
+        hotSize = size;
+    }
+
+    /**
+     * Reads the gallery of an embedding model, aggregated and adaptive as configured. Only the hot
+     * shards are read; a gallery of a single hot shard is returned as is.
+     */
+    public static Gallery read(ModelManifest manifest) throws IOException {
+        List<File> hotFiles = manifest.getGalleryFiles();
+        List<File> coldFiles = manifest.getColdGalleryFiles();
+        TemplateAggregator aggregator = manifest.getGalleryAggregation() == null ? null
+                : new TemplateAggregator(manifest.getGalleryAggregation(),
+                manifest.getGalleryAggregationMaxTemplates(), TemplateAggregator.DEFAULT_COVER_SIMILARITY);
+        List<FaceGallery> hotShards = new ArrayList<>(hotFiles.size());
+        for (File file : hotFiles) {
+            FaceGallery shard = read(file, manifest.getEmbeddingSize(), aggregator);
+            if (manifest.isGalleryAdaptation()) {
+                shard.enableAdaptation(FaceGallery.DEFAULT_ADAPTATION_MIN_SCORE,
+                        FaceGallery.DEFAULT_ADAPTATION_RATE, FaceGallery.DEFAULT_ADAPTATION_MIN_ANCHOR_SIMILARITY);
+            }
+            hotShards.add(shard);
+        }
+        if (hotShards.size() == 1 && coldFiles.isEmpty()) {
+            return hotShards.get(0);
+        }
+        return new ShardedGallery(manifest.getEmbeddingSize(), hotShards, coldFiles,
+                manifest.getGalleryMemoryBytes(), manifest.getGalleryMinScore(), aggregator);
+    }
+
+    private static FaceGallery read(File file, int embeddingSize, TemplateAggregator aggregator)
+            throws IOException {
+        FaceGallery gallery = FaceGallery.read(file, embeddingSize);
+        if (aggregator == null) {
+            return gallery;
+        }
+        FaceGallery aggregated = aggregator.aggregate(gallery, null);
+        LOG.info("Aggregated gallery " + file + " from " + gallery.size() + " to "
+                + aggregated.size() + " templates");
+        return aggregated;
+    }
+
+    @Override
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    /**
+     * @return the number of templates of the hot shards
+     */
+    @Override
+    public int size() {
+        return hotSize;
+    }
+
+    /**
+     * @return the number of cold shards currently resident
+     */
+    public synchronized int getResidentShardCount() {
+        return residentShards.size();
+    }
+
+    @Override
+    public void offer(float[] embedding, TopK matches, int[] excludedIds) {
+        for (FaceGallery shard : hotShards) {
+            shard.offer(embedding, matches, excludedIds);
+        }
+        if (!coldShards.isEmpty() && !isConfident(matches)) {
+            offerCold(embedding, matches, excludedIds);
+        }
+    }
+
+    /**
+     * Adapts the hot shards only, cold shards are dropped and read again as they come and go.
+     */
+    @Override
+    public boolean adapt(float[] embedding, int identityId, float score) {
+        for (FaceGallery shard : hotShards) {
+            if (shard.adapt(embedding, identityId, score)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isConfident(TopK matches) {
+        return matches.size() > 0 && matches.getScore(0) >= minScore;
+    }
+
+    private synchronized void offerCold(float[] embedding, TopK matches, int[] excludedIds) {
+        long nowMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        // A search skipping identities may miss what a full one would find, so it is not remembered
+        Miss miss = excludedIds == null || excludedIds.length == 0 ? findMiss(embedding, nowMs) : null;
+        // Resident shards first, most recently used first, as they cost nothing to search
+        searchOrder.clear();
+        searchOrder.addAll(residentShards.entrySet());
+        for (int i = searchOrder.size() - 1; i >= 0; --i) {
+            Map.Entry<File, FaceGallery> entry = searchOrder.get(i);
+            int index = coldShardIndices.get(entry.getKey());
+            if (miss != null && miss.searched[index]) {
+                continue;
+            }
+            entry.getValue().offer(embedding, matches, excludedIds);
+            if (isConfident(matches)) {
+                // Marks the shard as used
+                residentShards.get(entry.getKey());
+                searchOrder.clear();
+                misses.remove(miss);
+                return;
+            }
+            if (miss != null) {
+                miss.searched[index] = true;
+            }
+        }
+        searchOrder.clear();
+        for (int i = 0; i < coldShards.size() && pendingShards.size() < MAX_PENDING_LOADS; ++i) {
+            File file = coldShards.get(i);
+            if ((miss != null && miss.searched[i]) || residentShards.containsKey(file)
+                    || failedShards.contains(file) || pendingShards.contains(file)) {
+                continue;
+            }
+            pendingShards.add(file);
+            LOADER.execute(() -> load(file));
+        }
+    }
+
+    /**
+     * Finds the remembered miss of a face, remembering a new one if there is none. Misses older than
+     * {@link #MISS_TTL_MS} are forgotten.
+     */
+    private Miss findMiss(float[] embedding, long nowMs) {
+        while (!misses.isEmpty() && nowMs - misses.peekFirst().timeMs > MISS_TTL_MS) {
+            misses.removeFirst();
+        }
+        for (Miss miss : misses) {
+            float similarity = 0;
+            for (int j = 0; j < embeddingSize; ++j) {
+                similarity += embedding[j] * miss.embedding[j];
+            }
+            if (similarity >= MISS_SIMILARITY) {
+                return miss;
+            }
+        }
+        if (misses.size() == MAX_MISSES) {
+            misses.removeFirst();
+        }
+        Miss miss = new Miss(embedding, coldShards.size());
+        miss.timeMs = nowMs;
+        misses.addLast(miss);
+        return miss;
+    }
+
+    /**
+     * Reads a cold shard on the loader and makes it resident, evicting the least recently used
+     * shards beyond the memory budget. A shard that cannot be read is not tried again.
+     */
+    private void load(File file) {
+        long start = System.nanoTime();
+        FaceGallery shard;
+        try {
+            shard = read(file, embeddingSize, aggregator);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot load gallery shard " + file, e);
+            synchronized (this) {
+                pendingShards.remove(file);
+                failedShards.add(file);
+            }
+            return;
+        }
+        synchronized (this) {
+            pendingShards.remove(file);
+            residentShards.put(file, shard);
+            residentBytes += shard.getByteSize();
+            int evicted = 0;
+            Iterator<Map.Entry<File, FaceGallery>> it = residentShards.entrySet().iterator();
+            while (residentBytes > memoryBudgetBytes && it.hasNext()) {
+                Map.Entry<File, FaceGallery> entry = it.next();
+                if (entry.getKey().equals(file)) {
+                    // Only the new shard is left, it stays until the next load
+                    break;
+                }
+                residentBytes -= entry.getValue().getByteSize();
+                it.remove();
+                evicted++;
+            }
+            LOG.info("Loaded gallery shard " + file + " (" + shard.size() + " templates) in "
+                    + (System.nanoTime() - start) / 1000000 + " ms, evicted " + evicted + " shards, "
+                    + residentShards.size() + " resident");
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import java.util.Arrays;
+
+/**
+ * Compresses the templates of every identity of a gallery into one or a few representative
+ * templates, so that search cost grows with the number of identities rather than of enrollment
+ * photos.
+ *
+ * <p>Templates are weighted by their quality when known, otherwise by their agreement with the
+ * other templates of the identity (mean similarity), which discounts outliers such as a blurred
+ * or mislabeled photo. The first representative is the weighted medoid of the identity. While
+ * fewer than the maximum have been chosen, the template least similar to all chosen ones becomes
+ * a representative too, unless it is already similar enough to one of them; this keeps distinct
+ * looks (glasses, beard) apart instead of averaging them. Every template is then assigned to its
+ * closest representative, and each group is summarized by its {@link Mode}.
+ */
+public class TemplateAggregator {
+
+    /**
+     * How a group of templates is summarized.
+     */
+    public enum Mode {
+        /**
+         * Normalized weighted mean, which also averages out noise.
+         */
+        MEAN,
+        /**
+         * Weighted medoid, an actual enrolled template.
+         */
+        MEDOID
+    }
+
+    /**
+     * Similarity to a representative above which a template needs no representative of its own.
+     */
+    public static final float DEFAULT_COVER_SIMILARITY = 0.8f;
+
+    private final Mode mode;
+    private final int maxTemplates;
+    private final float coverSimilarity;
+
+    /**
+     * @param maxTemplates    representatives kept per identity at most
+     * @param coverSimilarity similarity to a representative above which a template needs no
+     *                        representative of its own
+     */
+    public TemplateAggregator(Mode mode, int maxTemplates, float coverSimilarity) {
+        if (maxTemplates < 1) {
+            throw new IllegalArgumentException("maxTemplates must be at least 1, got " + maxTemplates);
+        }
+        this.mode = mode;
+        this.maxTemplates = maxTemplates;
+        this.coverSimilarity = coverSimilarity;
+    }
+
+    /**
+     * Aggregates a gallery. The templates of an identity are contiguous in the result.
+     *
+     * @param qualities quality of every template in [0, 1], {@code null} to weight templates by
+     *                  their agreement
+     */
+    public FaceGallery aggregate(FaceGallery gallery, float[] qualities) {
+        int count = gallery.size();
+        int size = gallery.getEmbeddingSize();
+        // Templates sorted by identity, then by index
+        long[] order = new long[count];
+        for (int i = 0; i < count; ++i) {
+            order[i] = ((long) gallery.getIdentityId(i) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int[] identityIds = new int[count];
+        float[] embeddings = new float[count * size];
+        int written = 0;
+        float[] group = new float[0];
+        float[] weights = new float[0];
+        for (int start = 0; start < count; ) {
+            int identityId = (int) (order[start] >> 32);
+            int end = start + 1;
+            while (end < count && (int) (order[end] >> 32) == identityId) {
+                end++;
+            }
+            int members = end - start;
+            if (group.length < members * size) {
+                group = new float[members * size];
+                weights = new float[members];
+            }
+            for (int i = 0; i < members; ++i) {
+                int template = (int) order[start + i];
+                gallery.getTemplate(template, group, i * size);
+                weights[i] = qualities != null ? qualities[template] : Float.NaN;
+            }
+            int kept = summarize(group, weights, members, size, embeddings, written * size);
+            Arrays.fill(identityIds, written, written + kept, identityId);
+            written += kept;
+            start = end;
+        }
+        return new FaceGallery(size, Arrays.copyOf(identityIds, written),
+                Arrays.copyOf(embeddings, written * size));
+    }
+
+    /**
+     * Summarizes the templates of one identity.
+     *
+     * @param weights weights of the templates, NaN to use their agreement
+     * @return the number of representatives written to {@code out}
+     */
+    private int summarize(float[] group, float[] weights, int members, int size, float[] out, int offset) {
+        if (members == 1) {
+            System.arraycopy(group, 0, out, offset, size);
+            return 1;
+        }
+        float[] similarities = new float[members * members];
+        for (int i = 0; i < members; ++i) {
+            for (int j = i; j < members; ++j) {
+                float similarity = dot(group, i * size, group, j * size, size);
+                similarities[i * members + j] = similarity;
+                similarities[j * members + i] = similarity;
+            }
+        }
+        if (Float.isNaN(weights[0])) {
+            for (int i = 0; i < members; ++i) {
+                float agreement = 0;
+                for (int j = 0; j < members; ++j) {
+                    if (j != i) {
+                        agreement += similarities[i * members + j];
+                    }
+                }
+                // Some weight even for outliers, so that an identity of outliers keeps a template
+                weights[i] = Math.max(agreement / (members - 1), 0.0f) + 1e-3f;
+            }
+        }
+
+        int[] representatives = new int[Math.min(maxTemplates, members)];
+        representatives[0] = medoid(similarities, weights, members, null, 0);
+        int chosen = 1;
+        while (chosen < representatives.length) {
+            int farthest = -1;
+            float farthestSimilarity = coverSimilarity;
+            for (int i = 0; i < members; ++i) {
+                float closest = closestSimilarity(similarities, members, i, representatives, chosen);
+                if (closest < farthestSimilarity) {
+                    farthestSimilarity = closest;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                break;
+            }
+            representatives[chosen++] = farthest;
+        }
+
+        int[] assignment = new int[members];
+        for (int i = 0; i < members; ++i) {
+            assignment[i] = closest(similarities, members, i, representatives, chosen);
+        }
+        for (int r = 0; r < chosen; ++r) {
+            int target = offset + r * size;
+            if (mode == Mode.MEDOID) {
+                int medoid = medoid(similarities, weights, members, assignment, r);
+                System.arraycopy(group, medoid * size, out, target, size);
+            } else {
+                Arrays.fill(out, target, target + size, 0.0f);
+                for (int i = 0; i < members; ++i) {
+                    if (assignment[i] == r) {
+                        for (int j = 0; j < size; ++j) {
+                            out[target + j] += weights[i] * group[i * size + j];
+                        }
+                    }
+                }
+                FaceGallery.normalize(out, target, size);
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @param assignment group of every template, {@code null} to consider all templates
+     * @return the template with the highest weighted similarity to the others of its group
+     */
+    private static int medoid(float[] similarities, float[] weights, int members, int[] assignment, int group) {
+        int medoid = -1;
+        float best = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < members; ++i) {
+            if (assignment != null && assignment[i] != group) {
+                continue;
+            }
+            float score = 0;
+            for (int j = 0; j < members; ++j) {
+                if (assignment == null || assignment[j] == group) {
+                    score += weights[j] * similarities[i * members + j];
+                }
+            }
+            if (score > best) {
+                best = score;
+                medoid = i;
+            }
+        }
+        return medoid;
+    }
+
+    private static float closestSimilarity(float[] similarities, int members, int template,
+                                           int[] representatives, int chosen) {
+        return similarities[template * members
+                + representatives[closest(similarities, members, template, representatives, chosen)]];
+    }
+
+    /**
+     * @return the index in {@code representatives} of the one closest to {@code template}
+     */
+    private static int closest(float[] similarities, int members, int template,
+                               int[] representatives, int chosen) {
+        int closest = 0;
+        for (int r = 1; r < chosen; ++r) {
+            if (similarities[template * members + representatives[r]]
+                    > similarities[template * members + representatives[closest]]) {
+                closest = r;
+            }
+        }
+        return closest;
+    }
+
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset, int size) {
+        float dot = 0;
+        for (int j = 0; j < size; ++j) {
+            dot += a[aOffset + j] * b[bOffset + j];
+        }
+        return dot;
+    }
+}
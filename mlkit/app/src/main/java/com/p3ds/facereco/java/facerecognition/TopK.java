@@ -0,0 +1,106 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+/**
+ * The {@code k} best scored identities, each at most once, sorted by decreasing score. Reused
+ * between selections; nothing is allocated after construction.
+ */
+public class TopK {
+
+    private final int[] ids;
+    private final float[] scores;
+    private int size;
+
+    public TopK(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1, got " + k);
+        }
+        ids = new int[k];
+        scores = new float[k];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Selects the best of {@code scores}, the identity ID being the index of the score.
+     */
+    public void select(float[] scores) {
+        clear();
+        for (int i = 0; i < scores.length; ++i) {
+            offer(i, scores[i]);
+        }
+    }
+
+    /**
+     * Keeps the identity if it is among the best so far. An identity offered again only keeps its
+     * best score.
+     */
+    public void offer(int id, float score) {
+        int k = ids.length;
+        if (size == k && !(score > scores[k - 1])) {
+            return;
+        }
+        int existing = indexOf(id);
+        if (existing >= 0) {
+            if (!(score > scores[existing])) {
+                return;
+            }
+            // Removed here, inserted again below at its new rank
+            System.arraycopy(ids, existing + 1, ids, existing, size - existing - 1);
+            System.arraycopy(scores, existing + 1, scores, existing, size - existing - 1);
+            size--;
+        }
+        int position = size < k ? size : k - 1;
+        while (position > 0 && score > scores[position - 1]) {
+            if (position < k) {
+                ids[position] = ids[position - 1];
+                scores[position] = scores[position - 1];
+            }
+            position--;
+        }
+        ids[position] = id;
+        scores[position] = score;
+        if (size < k) {
+            size++;
+        }
+    }
+
+    private int indexOf(int id) {
+        for (int i = 0; i < size; ++i) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the identity ID of rank {@code i}, 0 being the best
+     */
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public float getScore(int i) {
+        return scores[i];
+    }
+}
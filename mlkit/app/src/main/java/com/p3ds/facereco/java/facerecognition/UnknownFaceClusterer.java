@@ -0,0 +1,380 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+package com.p3ds.facereco.java.facerecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Groups the faces no identity was recognized for, i.e. with less than
+ * {@link Recognition#MIN_KNOWN_CONFIDENCE}, so that recurring unknown visitors can be enrolled
+ * later.
+ *
+ * <p>Leader-follower clustering on the normalized model output of the faces (see
+ * {@link FaceInput#descriptor}): a face joins the cluster whose centroid is the most similar if
+ * the cosine similarity reaches {@value #JOIN_SIMILARITY}, and leads a new cluster otherwise. At most
+ * {@value #MAX_CLUSTERS} clusters are kept; beyond, the cluster with the fewest members, the least
+ * recently seen first, is forgotten and its directory deleted. Descriptors of different models
+ * are not comparable, so the clusters start over when the model changes; directories of earlier
+ * clusters are left alone.
+ *
+ * <p>Every cluster lives in {@code cluster-<id>} of the directory given to {@link #open(File)}:
+ *
+ * <pre>
+ * cluster.txt      model version, member count, first and last seen times
+ * centroid.bin     centroid, big endian floats, e.g. to add to a gallery
+ * face-<n>.jpg     the {@value #REPRESENTATIVES} best quality faces of the cluster
+ * </pre>
+ *
+ * <p>Callers only copy the face into a free slot and never wait; faces are dropped when no slot
+ * is free. Clustering runs on a lowest priority thread that pauses between faces so that it uses
+ * at most {@value #MAX_CPU_SHARE} of a core.
+ */
+public final class UnknownFaceClusterer {
+
+    private static final String TAG = "UnknownFaceClusterer";
+
+    private static final float JOIN_SIMILARITY = 0.75f;
+    private static final int MAX_CLUSTERS = 64;
+    private static final int REPRESENTATIVES = 3;
+    private static final int SLOTS = 4;
+    private static final float MAX_CPU_SHARE = 0.1f;
+    private static final int JPEG_QUALITY = 90;
+
+    private static final UnknownFaceClusterer INSTANCE = new UnknownFaceClusterer();
+
+    /**
+     * An unknown face waiting for or being clustered.
+     */
+    private static class Sample {
+        int[] pixels = new int[0];
+        int width;
+        int height;
+        int rotation;
+        float[] descriptor = new float[0];
+        int descriptorSize;
+        float quality;
+        int modelVersion;
+        long timeMs;
+    }
+
+    private static class Cluster {
+        final int id;
+        final File directory;
+        final float[] sum;
+        final float[] centroid;
+        final float[] representativeQualities = new float[REPRESENTATIVES];
+        int members;
+        long firstSeenMs;
+        long lastSeenMs;
+
+        Cluster(int id, File directory, int descriptorSize) {
+            this.id = id;
+            this.directory = directory;
+            sum = new float[descriptorSize];
+            centroid = new float[descriptorSize];
+            Arrays.fill(representativeQualities, -1.0f);
+        }
+    }
+
+    private final BlockingQueue<Sample> freeSlots = new ArrayBlockingQueue<>(SLOTS);
+
+    // @GuardedBy("this")
+    private ExecutorService worker;
+
+    // Touched by the worker only
+    private File directory;
+    private final List<Cluster> clusters = new ArrayList<>();
+    private int modelVersion = -1;
+    private int nextId;
+
+    private UnknownFaceClusterer() {
+        for (int i = 0; i < SLOTS; ++i) {
+            freeSlots.add(new Sample());
+        }
+    }
+
+    public static UnknownFaceClusterer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts clustering into {@code directory}. Does nothing if already open.
+     */
+    public synchronized void open(File directory) {
+        if (worker != null) {
+            return;
+        }
+        worker = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            runnable.run();
+        }, "UnknownFaceClusterer"));
+        worker.execute(() -> {
+            this.directory = directory;
+            findNextId();
+        });
+    }
+
+    /**
+     * @return whether faces offered now are clustered
+     */
+    public synchronized boolean isOpen() {
+        return worker != null;
+    }
+
+    /**
+     * Hands an unknown face to the clustering thread. Never blocks.
+     *
+     * @param pixels         ARGB pixels of the face, copied
+     * @param rotation       quarter turns clockwise that turn the face upright
+     * @param descriptor     normalized model output of the face, copied
+     * @param descriptorSize number of values used in {@code descriptor}
+     * @param quality        quality of the face, the best faces of a cluster are kept
+     * @param modelVersion   version of the model that computed {@code descriptor}
+     */
+    public void offer(int[] pixels, int width, int height, int rotation, float[] descriptor, int descriptorSize,
+                      float quality, int modelVersion) {
+        ExecutorService worker;
+        synchronized (this) {
+            worker = this.worker;
+        }
+        if (worker == null) {
+            return;
+        }
+        Sample sample = freeSlots.poll();
+        if (sample == null) {
+            return;
+        }
+        if (sample.pixels.length < width * height) {
+            sample.pixels = new int[width * height];
+        }
+        System.arraycopy(pixels, 0, sample.pixels, 0, width * height);
+        if (sample.descriptor.length < descriptorSize) {
+            sample.descriptor = new float[descriptorSize];
+        }
+        System.arraycopy(descriptor, 0, sample.descriptor, 0, descriptorSize);
+        sample.width = width;
+        sample.height = height;
+        sample.rotation = rotation & 3;
+        sample.descriptorSize = descriptorSize;
+        sample.quality = quality;
+        sample.modelVersion = modelVersion;
+        sample.timeMs = System.currentTimeMillis();
+        try {
+            worker.execute(() -> cluster(sample));
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+            freeSlots.add(sample);
+        }
+    }
+
+    /**
+     * Numbers new clusters after the ones already on disk.
+     */
+    private void findNextId() {
+        File[] existing = directory.listFiles();
+        if (existing == null) {
+            return;
+        }
+        for (File file : existing) {
+            String name = file.getName();
+            if (name.startsWith("cluster-")) {
+                try {
+                    nextId = Math.max(nextId, Integer.parseInt(name.substring("cluster-".length())) + 1);
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+    }
+
+    private void cluster(Sample sample) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            if (sample.modelVersion != modelVersion || (!clusters.isEmpty()
+                    && clusters.get(0).sum.length != sample.descriptorSize)) {
+                clusters.clear();
+                modelVersion = sample.modelVersion;
+            }
+            Cluster cluster = findNearest(sample.descriptor, sample.descriptorSize);
+            if (cluster == null) {
+                if (clusters.size() >= MAX_CLUSTERS) {
+                    evict();
+                }
+                cluster = new Cluster(nextId, new File(directory, "cluster-" + nextId), sample.descriptorSize);
+                nextId++;
+                cluster.firstSeenMs = sample.timeMs;
+                clusters.add(cluster);
+            }
+            join(cluster, sample);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot store unknown face", e);
+        } finally {
+            freeSlots.add(sample);
+        }
+        pause(SystemClock.elapsedRealtime() - start);
+    }
+
+    private Cluster findNearest(float[] descriptor, int size) {
+        Cluster nearest = null;
+        float bestSimilarity = JOIN_SIMILARITY;
+        for (Cluster cluster : clusters) {
+            float similarity = 0;
+            for (int i = 0; i < size; ++i) {
+                similarity += descriptor[i] * cluster.centroid[i];
+            }
+            if (similarity >= bestSimilarity) {
+                bestSimilarity = similarity;
+                nearest = cluster;
+            }
+        }
+        return nearest;
+    }
+
+    private void join(Cluster cluster, Sample sample) throws IOException {
+        for (int i = 0; i < cluster.sum.length; ++i) {
+            cluster.sum[i] += sample.descriptor[i];
+        }
+        System.arraycopy(cluster.sum, 0, cluster.centroid, 0, cluster.sum.length);
+        FaceGallery.normalize(cluster.centroid, 0, cluster.centroid.length);
+        cluster.members++;
+        cluster.lastSeenMs = sample.timeMs;
+
+        // Replaces the worst representative if the face beats it
+        int worst = 0;
+        for (int i = 1; i < REPRESENTATIVES; ++i) {
+            if (cluster.representativeQualities[i] < cluster.representativeQualities[worst]) {
+                worst = i;
+            }
+        }
+        boolean representative = sample.quality > cluster.representativeQualities[worst];
+        if (!cluster.directory.isDirectory() && !cluster.directory.mkdirs()) {
+            throw new IOException("Cannot create " + cluster.directory);
+        }
+        if (representative) {
+            writeFace(sample, new File(cluster.directory, "face-" + worst + ".jpg"));
+            cluster.representativeQualities[worst] = sample.quality;
+        }
+        // Metadata of established clusters is only refreshed now and then
+        if (representative || Integer.bitCount(cluster.members) == 1) {
+            writeMetadata(cluster);
+        }
+    }
+
+    /**
+     * Writes a face upright, as operators enroll from it.
+     */
+    private static void writeFace(Sample sample, File file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(sample.pixels, sample.width, sample.height, Bitmap.Config.ARGB_8888);
+        if (sample.rotation != 0) {
+            Matrix matrix = new Matrix();
+            matrix.postRotate(90 * sample.rotation);
+            Bitmap upright = Bitmap.createBitmap(bitmap, 0, 0, sample.width, sample.height, matrix, true);
+            bitmap.recycle();
+            bitmap = upright;
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private void writeMetadata(Cluster cluster) throws IOException {
+        try (Writer out = new OutputStreamWriter(
+                new FileOutputStream(new File(cluster.directory, "cluster.txt")), StandardCharsets.UTF_8)) {
+            out.write("model_version=" + modelVersion + "\n");
+            out.write("members=" + cluster.members + "\n");
+            out.write("first_seen_ms=" + cluster.firstSeenMs + "\n");
+            out.write("last_seen_ms=" + cluster.lastSeenMs + "\n");
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(cluster.directory, "centroid.bin")))) {
+            for (float value : cluster.centroid) {
+                out.writeFloat(value);
+            }
+        }
+    }
+
+    /**
+     * Forgets the cluster with the fewest members, the least recently seen among them.
+     */
+    private void evict() {
+        Cluster evicted = clusters.get(0);
+        for (Cluster cluster : clusters) {
+            if (cluster.members < evicted.members
+                    || (cluster.members == evicted.members && cluster.lastSeenMs < evicted.lastSeenMs)) {
+                evicted = cluster;
+            }
+        }
+        clusters.remove(evicted);
+        File[] files = evicted.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Cannot delete " + file);
+                }
+            }
+        }
+        if (evicted.directory.exists() && !evicted.directory.delete()) {
+            Log.w(TAG, "Cannot delete " + evicted.directory);
+        }
+    }
+
+    /**
+     * Sleeps long enough after {@code busyMs} of work to stay within {@link #MAX_CPU_SHARE}.
+     */
+    private static void pause(long busyMs) {
+        long idleMs = (long) (busyMs * (1 - MAX_CPU_SHARE) / MAX_CPU_SHARE);
+        if (idleMs > 0) {
+            SystemClock.sleep(idleMs);
+        }
+    }
+
+    /**
+     * Stops clustering once the current face is done. Clusters on disk are kept.
+     */
+    public synchronized void close() {
+        if (worker == null) {
+            return;
+        }
+        worker.execute(() -> {
+            clusters.clear();
+            modelVersion = -1;
+        });
+        worker.shutdown();
+        worker = null;
+    }
+}
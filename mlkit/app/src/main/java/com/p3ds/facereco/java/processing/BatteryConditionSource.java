@@ -0,0 +1,71 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+/**
+ * Reads the device conditions from the sticky battery broadcast and the power manager.
+ *
+ * <p>The platform thermal status needs API 29, so the thermal state is estimated from the battery
+ * temperature, which follows the temperature of the case closely enough on tablets running
+ * inference continuously.
+ */
+public class BatteryConditionSource implements DeviceConditionSource {
+
+  /**
+   * Battery temperatures, in tenths of a degree Celsius, from which the device runs {@link
+   * DeviceConditions.Thermal#LIGHT}, {@code MODERATE}, {@code SEVERE} and {@code CRITICAL}.
+   */
+  private static final int[] THERMAL_THRESHOLDS = {380, 410, 440, 470};
+
+  private final Context context;
+  private final PowerManager powerManager;
+
+  public BatteryConditionSource(Context context) {
+    this.context = context.getApplicationContext();
+    powerManager = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+  }
+
+  @Override
+  public DeviceConditions read() {
+    Intent battery =
+        context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    boolean powerSaveMode = powerManager != null && powerManager.isPowerSaveMode();
+    if (battery == null) {
+      return new DeviceConditions(
+          DeviceConditions.Thermal.NONE, DeviceConditions.UNKNOWN_BATTERY, true, powerSaveMode);
+    }
+    int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+    int batteryPercent =
+        level >= 0 && scale > 0 ? level * 100 / scale : DeviceConditions.UNKNOWN_BATTERY;
+    boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+    return new DeviceConditions(thermal(temperature), batteryPercent, charging, powerSaveMode);
+  }
+
+  private static DeviceConditions.Thermal thermal(int temperature) {
+    DeviceConditions.Thermal[] values = DeviceConditions.Thermal.values();
+    int step = 0;
+    while (step < THERMAL_THRESHOLDS.length && temperature >= THERMAL_THRESHOLDS[step]) {
+      step++;
+    }
+    return values[step];
+  }
+}
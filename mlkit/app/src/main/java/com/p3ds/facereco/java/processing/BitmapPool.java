@@ -0,0 +1,156 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Locale;
+
+/**
+ * Pool of mutable ARGB bitmaps for the frames and face crops of the recognition path, so that
+ * their native memory is reused instead of allocated and collected for every frame.
+ *
+ * <p>Bitmaps are bucketed by allocation size, in classes a quarter of a power of two apart, and
+ * {@link Bitmap#reconfigure(int, int, Bitmap.Config) reconfigured} to the requested dimensions,
+ * so a pooled bitmap serves any request of its size class. They can also be used as {@code
+ * inBitmap} when decoding. Idle bitmaps are kept up to a byte budget; beyond, the least recently
+ * released ones are recycled.
+ *
+ * <p>Ownership: {@link #acquire(int, int)} leases a bitmap to the caller, whose content is
+ * undefined. The lease ends with exactly one {@link #release(Bitmap)}, after which the caller must
+ * neither use nor recycle the bitmap. A leased bitmap may be handed over to another owner, who
+ * then releases it. Thread safe.
+ */
+public final class BitmapPool {
+
+  private static final String TAG = "BitmapPool";
+
+  /** Budget of the idle bitmaps of the shared pool. */
+  public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+  private static final int STATS_LOG_INTERVAL = 1000;
+
+  private static final BitmapPool INSTANCE = new BitmapPool(DEFAULT_MAX_BYTES);
+
+  private final long maxBytes;
+
+  // @GuardedBy("this"), idle bitmaps by size class and in release order
+  private final Map<Integer, ArrayDeque<Bitmap>> buckets = new HashMap<>();
+  private final ArrayDeque<Bitmap> idle = new ArrayDeque<>();
+  private long idleBytes;
+
+  // @GuardedBy("this")
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /** @param maxBytes budget of the idle bitmaps */
+  public BitmapPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** The pool shared by the frames and crops of all cameras. */
+  public static BitmapPool getInstance() {
+    return INSTANCE;
+  }
+
+  /** Leases a mutable ARGB_8888 bitmap of the given size with undefined content. */
+  public Bitmap acquire(int width, int height) {
+    int sizeClass = sizeClass(4L * width * height);
+    Bitmap bitmap = null;
+    synchronized (this) {
+      ArrayDeque<Bitmap> bucket = buckets.get(sizeClass);
+      if (bucket != null && !bucket.isEmpty()) {
+        bitmap = bucket.poll();
+        idle.remove(bitmap);
+        idleBytes -= bitmap.getAllocationByteCount();
+        hits++;
+      } else {
+        misses++;
+      }
+      if ((hits + misses) % STATS_LOG_INTERVAL == 0) {
+        Log.i(TAG, String.format(Locale.US, "%.0f%% hits over %d leases, %d evictions, %d KiB idle",
+            getHitRate() * 100, hits + misses, evictions, idleBytes / 1024));
+      }
+    }
+    if (bitmap == null) {
+      // Allocated for the whole size class so that it can serve any request of it later
+      bitmap = Bitmap.createBitmap(sizeClass / 4, 1, Bitmap.Config.ARGB_8888);
+    }
+    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+    return bitmap;
+  }
+
+  /**
+   * Ends the lease of a bitmap. Bitmaps that were not allocated by a pool are adopted if they are
+   * mutable, recycled otherwise.
+   */
+  public void release(Bitmap bitmap) {
+    if (bitmap.isRecycled()) {
+      return;
+    }
+    int bytes = bitmap.getAllocationByteCount();
+    if (!bitmap.isMutable() || bytes > maxBytes || bytes != sizeClass(bytes)) {
+      bitmap.recycle();
+      return;
+    }
+    synchronized (this) {
+      while (idleBytes + bytes > maxBytes) {
+        Bitmap evicted = idle.poll();
+        buckets.get(evicted.getAllocationByteCount()).remove(evicted);
+        idleBytes -= evicted.getAllocationByteCount();
+        evicted.recycle();
+        evictions++;
+      }
+      ArrayDeque<Bitmap> bucket = buckets.get(bytes);
+      if (bucket == null) {
+        bucket = new ArrayDeque<>();
+        buckets.put(bytes, bucket);
+      }
+      bucket.add(bitmap);
+      idle.add(bitmap);
+      idleBytes += bytes;
+    }
+  }
+
+  /** Fraction of the leases served from the pool. */
+  public synchronized float getHitRate() {
+    return hits + misses == 0 ? 0.0f : (float) hits / (hits + misses);
+  }
+
+  /** Recycles all idle bitmaps. */
+  public synchronized void clear() {
+    for (Bitmap bitmap : idle) {
+      bitmap.recycle();
+    }
+    idle.clear();
+    buckets.clear();
+    idleBytes = 0;
+  }
+
+  /**
+   * Smallest size class of at least {@code bytes}: 4, 5, 6 or 7 times a power of two, times 4 so
+   * that classes are whole pixels.
+   */
+  static int sizeClass(long bytes) {
+    long pixels = Math.max(1, (bytes + 3) / 4);
+    int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(pixels) - 2);
+    long quarters = (pixels + (1L << shift) - 1) >> shift;
+    return (int) (4 * (quarters << shift));
+  }
+}
@@ -26,6 +26,7 @@ import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -40,6 +41,7 @@ import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Manages the camera and allows UI updates on top of it (e.g. overlaying extra Graphics or
@@ -86,8 +88,53 @@ public class CameraSource {
   // These values may be requested by the caller.  Due to hardware limitations, we may need to
   // select close, but not exactly the same values for these.
   private final float requestedFps = 5.0f;
-  private final int requestedPreviewWidth = 1280;
-  private final int requestedPreviewHeight = 960;
+
+  /**
+   * Default end-to-end latency budget of a frame: work on the frame is abandoned, and its results
+   * are no longer shown, once it is older than this.
+   */
+  public static final long DEFAULT_FRAME_BUDGET_MS = 1500;
+
+  private volatile long frameBudgetMs = DEFAULT_FRAME_BUDGET_MS;
+
+  /**
+   * How long the smoothed frame cost must exceed the camera frame interval before the preview size
+   * is limited.
+   */
+  private static final long SUSTAINED_OVERLOAD_MS = 5000;
+
+  /**
+   * How long the smoothed frame cost must stay below {@link #RELAX_COST_RATIO} of the camera frame
+   * interval before a limited preview size is lifted again.
+   */
+  private static final long RELAX_COOL_DOWN_MS = 60000;
+
+  private static final float RELAX_COST_RATIO = 0.5f;
+
+  /** Smoothing factor of the frame cost, per processed frame. */
+  private static final float OVERLOAD_SMOOTHING = 0.1f;
+
+  private final PreviewSizeSelector previewSizeSelector = new PreviewSizeSelector();
+
+  /**
+   * Time a frame may take when selecting the preview size, {@link
+   * PreviewSizeSelector#NO_COST_LIMIT} unless the pipeline has been overloaded recently.
+   */
+  private volatile long maxFrameCostMs = PreviewSizeSelector.NO_COST_LIMIT;
+
+  // Surface of the preview, to restart the camera with another preview size
+  private SurfaceHolder surfaceHolder;
+
+  // Aspect ratio the next preview size must keep, 0 for any
+  private float keptAspectRatio;
+
+  private final Object overloadLock = new Object();
+  // @GuardedBy("overloadLock"), negative until measured
+  private float frameCostMs = -1;
+  // @GuardedBy("overloadLock"), negative while not overloaded
+  private long overloadSinceMs = -1;
+  // @GuardedBy("overloadLock"), negative unless the size is limited and frames are cheap
+  private long relaxSinceMs = -1;
   private final boolean requestedAutoFocus = true;
 
   // These instances need to be held onto to avoid GC of their underlying resources.  Even though
@@ -164,6 +211,7 @@ public class CameraSource {
     }
 
     camera = createCamera();
+    surfaceHolder = null;
     dummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
     camera.setPreviewTexture(dummySurfaceTexture);
     usingSurfaceTexture = true;
@@ -189,6 +237,7 @@ public class CameraSource {
     }
 
     camera = createCamera();
+    this.surfaceHolder = surfaceHolder;
     camera.setPreviewDisplay(surfaceHolder);
     camera.startPreview();
 
@@ -251,6 +300,14 @@ public class CameraSource {
     this.facing = facing;
   }
 
+  /**
+   * Returns the selector of the preview size, whose face size and subject distance apply from the
+   * next start on.
+   */
+  public PreviewSizeSelector getPreviewSizeSelector() {
+    return previewSizeSelector;
+  }
+
   /** Returns the preview size that is currently in use by the underlying camera. */
   public Size getPreviewSize() {
     return previewSize;
@@ -277,13 +334,6 @@ public class CameraSource {
     }
     Camera camera = Camera.open(requestedCameraId);
 
-    SizePair sizePair = selectSizePair(camera, requestedPreviewWidth, requestedPreviewHeight);
-    if (sizePair == null) {
-      throw new IOException("Could not find suitable preview size.");
-    }
-    Size pictureSize = sizePair.pictureSize();
-    previewSize = sizePair.previewSize();
-
     int[] previewFpsRange = selectPreviewFpsRange(camera, requestedFps);
     if (previewFpsRange == null) {
       throw new IOException("Could not find suitable preview frames per second range.");
@@ -291,6 +341,17 @@ public class CameraSource {
 
     Camera.Parameters parameters = camera.getParameters();
 
+    // The rotation decides along which side of the sensor faces are measured
+    setRotation(camera, parameters, requestedCameraId);
+
+    SizePair sizePair = selectSizePair(camera, keptAspectRatio);
+    keptAspectRatio = 0;
+    if (sizePair == null) {
+      throw new IOException("Could not find suitable preview size.");
+    }
+    Size pictureSize = sizePair.pictureSize();
+    previewSize = sizePair.previewSize();
+
     if (pictureSize != null) {
       parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
     }
@@ -300,8 +361,6 @@ public class CameraSource {
         previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
     parameters.setPreviewFormat(ImageFormat.NV21);
 
-    setRotation(camera, parameters, requestedCameraId);
-
     if (requestedAutoFocus) {
       if (parameters
           .getSupportedFocusModes()
@@ -314,9 +373,10 @@ public class CameraSource {
 
     camera.setParameters(parameters);
 
-    // Four frame buffers are needed for working with the camera:
+    // Five frame buffers are needed for working with the camera:
     //
     //   one for the frame that is currently being executed upon in doing detection
+    //   one for the frame held by the processor until its detection results are consumed
     //   one for the next pending frame to process immediately upon completing detection
     //   two for the frames that the camera uses to populate future preview images
     //
@@ -330,6 +390,7 @@ public class CameraSource {
     camera.addCallbackBuffer(createPreviewBuffer(previewSize));
     camera.addCallbackBuffer(createPreviewBuffer(previewSize));
     camera.addCallbackBuffer(createPreviewBuffer(previewSize));
+    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
 
     return camera;
   }
@@ -352,7 +413,7 @@ public class CameraSource {
   }
 
   /**
-   * Selects the most suitable preview and picture size, given the desired width and height.
+   * Selects the most suitable preview and picture size with the {@link PreviewSizeSelector}.
    *
    * <p>Even though we only need to find the preview size, it's necessary to find both the preview
    * size and the picture size of the camera together, because these need to have the same aspect
@@ -360,30 +421,34 @@ public class CameraSource {
    * image.
    *
    * @param camera the camera to select a preview size from
-   * @param desiredWidth the desired width of the camera preview frames
-   * @param desiredHeight the desired height of the camera preview frames
+   * @param aspectRatio aspect ratio the preview size must keep, 0 for any
    * @return the selected preview and picture size pair
    */
-  private static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
+  private SizePair selectSizePair(Camera camera, float aspectRatio) {
     List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
-
-    // The method for selecting the best size is to minimize the sum of the differences between
-    // the desired values and the actual values for width and height.  This is certainly not the
-    // only way to select the best size, but it provides a decent tradeoff between using the
-    // closest aspect ratio vs. using the closest pixel area.
-    SizePair selectedPair = null;
-    int minDiff = Integer.MAX_VALUE;
+    List<Size> previewSizes = new ArrayList<>();
     for (SizePair sizePair : validPreviewSizes) {
       Size size = sizePair.previewSize();
-      int diff =
-          Math.abs(size.getWidth() - desiredWidth) + Math.abs(size.getHeight() - desiredHeight);
-      if (diff < minDiff) {
-        selectedPair = sizePair;
-        minDiff = diff;
+      if (aspectRatio == 0
+          || Math.abs((float) size.getWidth() / size.getHeight() - aspectRatio)
+              < ASPECT_RATIO_TOLERANCE) {
+        previewSizes.add(size);
       }
     }
-
-    return selectedPair;
+    Camera.Parameters parameters = camera.getParameters();
+    Size selected =
+        previewSizeSelector.select(
+            previewSizes,
+            parameters.getHorizontalViewAngle(),
+            parameters.getVerticalViewAngle(),
+            (rotation & 1) != 0,
+            maxFrameCostMs);
+    for (SizePair sizePair : validPreviewSizes) {
+      if (sizePair.previewSize() == selected) {
+        return sizePair;
+      }
+    }
+    return null;
   }
 
   /**
@@ -579,6 +644,18 @@ public class CameraSource {
     }
   }
 
+  /**
+   * Sets the end-to-end latency budget of the frames, from capture to shown result. Frames are
+   * stamped with their deadline when they are received from the camera.
+   */
+  public void setFrameBudgetMs(long frameBudgetMs) {
+    this.frameBudgetMs = frameBudgetMs;
+  }
+
+  public long getFrameBudgetMs() {
+    return frameBudgetMs;
+  }
+
   public void setMachineLearningFrameProcessor(VisionImageProcessor processor) {
     synchronized (processorLock) {
       cleanScreen();
@@ -607,6 +684,11 @@ public class CameraSource {
 
     // These pending variables hold the state associated with the new frame awaiting processing.
     private ByteBuffer pendingFrameData;
+    private long pendingCaptureTimeMs;
+    private long pendingSequence;
+
+    // Sequence number of the last frame received from the camera.
+    private long sequence = -1;
 
     FrameProcessingRunnable() {}
 
@@ -632,7 +714,9 @@ public class CameraSource {
      * present) back to the camera, and keeps a pending reference to the frame data for future use.
      */
     void setNextFrame(byte[] data, Camera camera) {
+      long captureTimeMs = SystemClock.elapsedRealtime();
       synchronized (lock) {
+        sequence++;
         if (pendingFrameData != null) {
           camera.addCallbackBuffer(pendingFrameData.array());
           pendingFrameData = null;
@@ -647,6 +731,8 @@ public class CameraSource {
         }
 
         pendingFrameData = bytesToByteBuffer.get(data);
+        pendingCaptureTimeMs = captureTimeMs;
+        pendingSequence = sequence;
 
         // Notify the processor thread if it is waiting on the next frame (see below).
         lock.notifyAll();
@@ -671,6 +757,8 @@ public class CameraSource {
     @Override
     public void run() {
       ByteBuffer data;
+      long captureTimeMs;
+      long frameSequence;
 
       while (true) {
         synchronized (lock) {
@@ -698,12 +786,30 @@ public class CameraSource {
           // recycled back to the camera before we are done using that data.
           data = pendingFrameData;
           pendingFrameData = null;
+          captureTimeMs = pendingCaptureTimeMs;
+          frameSequence = pendingSequence;
         }
 
         // The code below needs to run outside of synchronization, because this will allow
         // the camera to add pending frame(s) while we are running detection on the current
         // frame.
 
+        // The processor may hold on to the buffer past process(), until it runs the release
+        final byte[] frameData = data.array();
+        final AtomicBoolean released = new AtomicBoolean();
+        // Frames released before process() returns were dropped or processed synchronously and
+        // tell nothing about the cost of detection
+        final AtomicBoolean returned = new AtomicBoolean();
+        final long processStartNs = SystemClock.elapsedRealtimeNanos();
+        final int pixels = previewSize.getWidth() * previewSize.getHeight();
+        Runnable release = () -> {
+          if (released.compareAndSet(false, true)) {
+            releaseBuffer(frameData);
+            if (returned.get()) {
+              onFrameCost(pixels, SystemClock.elapsedRealtimeNanos() - processStartNs);
+            }
+          }
+        };
         try {
           synchronized (processorLock) {
             //Log.d(TAG, "Process an image");
@@ -714,18 +820,128 @@ public class CameraSource {
                     .setHeight(previewSize.getHeight())
                     .setRotation(rotation)
                     .setCameraFacing(facing)
+                    .setSequence(frameSequence)
+                    .setCaptureTimeMs(captureTimeMs)
+                    .setDeadlineMs(captureTimeMs + frameBudgetMs)
                     .build(),
-                graphicOverlay);
+                graphicOverlay,
+                release);
           }
+          returned.set(true);
         } catch (Throwable t) {
           Log.e(TAG, "Exception thrown from receiver.", t);
-        } finally {
-          camera.addCallbackBuffer(data.array());
+          release.run();
+        }
+      }
+    }
+
+    /**
+     * Hands a frame buffer back to the camera once the processor is done with it. Buffers of a
+     * stopped camera are dropped, the next start allocates new ones.
+     */
+    private void releaseBuffer(byte[] data) {
+      synchronized (lock) {
+        Camera camera = CameraSource.this.camera;
+        if (active && camera != null && bytesToByteBuffer.containsKey(data)) {
+          camera.addCallbackBuffer(data);
         }
       }
     }
   }
 
+  /**
+   * Records the time a frame took from detection to consumed results. Limits the preview size once
+   * frames have taken longer than the camera frame interval for {@link #SUSTAINED_OVERLOAD_MS}, and
+   * lifts the limit once they have taken less than {@link #RELAX_COST_RATIO} of it for {@link
+   * #RELAX_COOL_DOWN_MS}, e.g. after a burst of faces or heat.
+   */
+  private void onFrameCost(int pixels, long durationNs) {
+    previewSizeSelector.reportFrameCost(pixels, durationNs);
+    long nowMs = SystemClock.elapsedRealtime();
+    float sampleMs = durationNs / 1e6f;
+    float intervalMs = 1000 / requestedFps;
+    long costLimitMs;
+    synchronized (overloadLock) {
+      frameCostMs =
+          frameCostMs < 0 ? sampleMs : frameCostMs + OVERLOAD_SMOOTHING * (sampleMs - frameCostMs);
+      if (frameCostMs <= intervalMs) {
+        overloadSinceMs = -1;
+        if (maxFrameCostMs == PreviewSizeSelector.NO_COST_LIMIT
+            || frameCostMs > RELAX_COST_RATIO * intervalMs) {
+          relaxSinceMs = -1;
+          return;
+        }
+        if (relaxSinceMs < 0) {
+          relaxSinceMs = nowMs;
+          return;
+        }
+        if (nowMs - relaxSinceMs < RELAX_COOL_DOWN_MS) {
+          return;
+        }
+        costLimitMs = PreviewSizeSelector.NO_COST_LIMIT;
+      } else {
+        relaxSinceMs = -1;
+        if (overloadSinceMs < 0) {
+          overloadSinceMs = nowMs;
+          return;
+        }
+        if (nowMs - overloadSinceMs < SUSTAINED_OVERLOAD_MS) {
+          return;
+        }
+        costLimitMs = (long) intervalMs;
+      }
+      overloadSinceMs = -1;
+      relaxSinceMs = -1;
+      frameCostMs = -1;
+    }
+    activity.runOnUiThread(() -> reconsiderPreviewSize(costLimitMs));
+  }
+
+  /**
+   * Selects the preview size again with a new limit of the frame cost and restarts the camera if
+   * that changes the size. The aspect ratio is kept so that the layout of the preview stays valid.
+   *
+   * @param costLimitMs time a frame may take, {@link PreviewSizeSelector#NO_COST_LIMIT} to lift
+   *     the limit
+   */
+  @SuppressLint("MissingPermission")
+  private synchronized void reconsiderPreviewSize(long costLimitMs) {
+    if (camera == null) {
+      return;
+    }
+    maxFrameCostMs = costLimitMs;
+    Size current = previewSize;
+    float aspectRatio = (float) current.getWidth() / current.getHeight();
+    SizePair selected = selectSizePair(camera, aspectRatio);
+    if (selected == null || selected.previewSize().equals(current)) {
+      return;
+    }
+    Log.i(TAG, (costLimitMs == PreviewSizeSelector.NO_COST_LIMIT
+        ? "Pipeline keeps up again" : "Pipeline overloaded")
+        + ", restarting the camera with " + selected.previewSize() + " instead of " + current);
+    SurfaceHolder holder = surfaceHolder;
+    stop();
+    keptAspectRatio = aspectRatio;
+    try {
+      if (holder != null) {
+        start(holder);
+      } else {
+        start();
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Could not restart the camera.", e);
+      return;
+    }
+    // Same orientation as set up by the preview, only the size changed
+    if ((rotation & 1) != 0) {
+      graphicOverlay.setCameraInfo(
+          previewSize.getHeight(), previewSize.getWidth(), facing);
+    } else {
+      graphicOverlay.setCameraInfo(
+          previewSize.getWidth(), previewSize.getHeight(), facing);
+    }
+  }
+
   /** Cleans up graphicOverlay and child classes can do their cleanups as well . */
   private void cleanScreen() {
     graphicOverlay.clear();
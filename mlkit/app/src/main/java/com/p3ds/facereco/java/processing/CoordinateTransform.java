@@ -0,0 +1,161 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+/**
+ * Immutable affine mapping between two 2D coordinate spaces of the pipeline, together with its
+ * inverse.
+ *
+ * <p>Three spaces are involved:
+ *
+ * <ul>
+ *   <li><b>buffer</b>: pixels of the camera frame as delivered by the camera, not rotated.
+ *   <li><b>image</b>: the upright frame, i.e. the buffer rotated by {@link
+ *       FrameMetadata#getRotation()}. ML Kit reports faces and landmarks in this space.
+ *   <li><b>view</b>: pixels of the {@link GraphicOverlay}, scaled and mirrored for the front
+ *       camera.
+ * </ul>
+ *
+ * Use {@link #forFrame(int, int, int)} to go from image to buffer space when cropping and {@link
+ * #forView(int, int, int, int, boolean)} to go from image to view space when drawing.
+ */
+public final class CoordinateTransform {
+
+  /** Identity mapping. */
+  public static final CoordinateTransform IDENTITY =
+      new CoordinateTransform(new float[] {1, 0, 0, 0, 1, 0});
+
+  // x' = m[0] * x + m[1] * y + m[2], y' = m[3] * x + m[4] * y + m[5]
+  private final float[] matrix;
+  private final float[] inverse;
+
+  private CoordinateTransform(float[] matrix) {
+    this.matrix = matrix;
+    this.inverse = invert(matrix);
+  }
+
+  /**
+   * Creates the mapping from image to buffer space of a frame.
+   *
+   * @param bufferWidth width of the frame as delivered by the camera
+   * @param bufferHeight height of the frame as delivered by the camera
+   * @param rotation rotation of the frame in quarter turns, see {@link FrameMetadata#getRotation()}
+   */
+  public static CoordinateTransform forFrame(int bufferWidth, int bufferHeight, int rotation) {
+    switch (rotation & 3) {
+      case 1:
+        return new CoordinateTransform(new float[] {0, 1, 0, -1, 0, bufferHeight});
+      case 2:
+        return new CoordinateTransform(new float[] {-1, 0, bufferWidth, 0, -1, bufferHeight});
+      case 3:
+        return new CoordinateTransform(new float[] {0, -1, bufferWidth, 1, 0, 0});
+      default:
+        return IDENTITY;
+    }
+  }
+
+  /**
+   * Creates the mapping from image to view space.
+   *
+   * @param imageWidth width of the upright image
+   * @param imageHeight height of the upright image
+   * @param viewWidth width of the overlay
+   * @param viewHeight height of the overlay
+   * @param mirror whether the view mirrors the image horizontally, as for the front camera
+   */
+  public static CoordinateTransform forView(
+      int imageWidth, int imageHeight, int viewWidth, int viewHeight, boolean mirror) {
+    float scaleX = imageWidth > 0 && viewWidth > 0 ? (float) viewWidth / imageWidth : 1.0f;
+    float scaleY = imageHeight > 0 && viewHeight > 0 ? (float) viewHeight / imageHeight : 1.0f;
+    if (mirror) {
+      return new CoordinateTransform(new float[] {-scaleX, 0, viewWidth, 0, scaleY, 0});
+    }
+    return new CoordinateTransform(new float[] {scaleX, 0, 0, 0, scaleY, 0});
+  }
+
+  /** Maps x, y pairs in place. */
+  public void mapPoints(float[] points) {
+    map(matrix, points);
+  }
+
+  /** Maps x, y pairs in place with the inverse mapping. */
+  public void inverseMapPoints(float[] points) {
+    map(inverse, points);
+  }
+
+  /** Maps a single x coordinate; only valid for mappings without rotation. */
+  public float mapX(float x) {
+    return matrix[0] * x + matrix[2];
+  }
+
+  /** Maps a single y coordinate; only valid for mappings without rotation. */
+  public float mapY(float y) {
+    return matrix[4] * y + matrix[5];
+  }
+
+  /** Length of a horizontal distance once mapped; only valid for mappings without rotation. */
+  public float scaleX(float horizontal) {
+    return Math.abs(matrix[0]) * horizontal;
+  }
+
+  /** Length of a vertical distance once mapped; only valid for mappings without rotation. */
+  public float scaleY(float vertical) {
+    return Math.abs(matrix[4]) * vertical;
+  }
+
+  /**
+   * Maps the rectangle {@code left, top, right, bottom} stored in {@code rect} in place, and
+   * returns the axis aligned bounds of the result in the same layout.
+   */
+  public void mapRect(float[] rect) {
+    float x0 = rect[0];
+    float y0 = rect[1];
+    float x1 = rect[2];
+    float y1 = rect[3];
+    float ax = matrix[0] * x0 + matrix[1] * y0 + matrix[2];
+    float ay = matrix[3] * x0 + matrix[4] * y0 + matrix[5];
+    float bx = matrix[0] * x1 + matrix[1] * y1 + matrix[2];
+    float by = matrix[3] * x1 + matrix[4] * y1 + matrix[5];
+    rect[0] = Math.min(ax, bx);
+    rect[1] = Math.min(ay, by);
+    rect[2] = Math.max(ax, bx);
+    rect[3] = Math.max(ay, by);
+  }
+
+  /** Returns the inverse mapping. */
+  public CoordinateTransform invert() {
+    return new CoordinateTransform(inverse);
+  }
+
+  private static void map(float[] m, float[] points) {
+    for (int i = 0; i + 1 < points.length; i += 2) {
+      float x = points[i];
+      float y = points[i + 1];
+      points[i] = m[0] * x + m[1] * y + m[2];
+      points[i + 1] = m[3] * x + m[4] * y + m[5];
+    }
+  }
+
+  private static float[] invert(float[] m) {
+    float det = m[0] * m[4] - m[1] * m[3];
+    if (det == 0) {
+      throw new IllegalArgumentException("Transform is not invertible");
+    }
+    float a = m[4] / det;
+    float b = -m[1] / det;
+    float d = -m[3] / det;
+    float e = m[0] / det;
+    return new float[] {a, b, -(a * m[2] + b * m[5]), d, e, -(d * m[2] + e * m[5])};
+  }
+}
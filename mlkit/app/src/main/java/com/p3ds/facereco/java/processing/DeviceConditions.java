@@ -0,0 +1,81 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import java.util.Locale;
+
+/** Thermal and power state of the device, as read by a {@link DeviceConditionSource}. */
+public final class DeviceConditions {
+
+  /** How hot the device runs, in the steps of the platform thermal status. */
+  public enum Thermal {
+    NONE,
+    LIGHT,
+    MODERATE,
+    SEVERE,
+    CRITICAL
+  }
+
+  /** Battery level when it cannot be read. */
+  public static final int UNKNOWN_BATTERY = -1;
+
+  /** Conditions of a device that reports nothing, e.g. a plugged device without battery. */
+  public static final DeviceConditions UNKNOWN =
+      new DeviceConditions(Thermal.NONE, UNKNOWN_BATTERY, true, false);
+
+  private final Thermal thermal;
+  private final int batteryPercent;
+  private final boolean charging;
+  private final boolean powerSaveMode;
+
+  /**
+   * @param batteryPercent battery level in [0, 100], {@link #UNKNOWN_BATTERY} if unknown
+   * @param charging whether the device is plugged in
+   * @param powerSaveMode whether the user or the system turned the battery saver on
+   */
+  public DeviceConditions(
+      Thermal thermal, int batteryPercent, boolean charging, boolean powerSaveMode) {
+    this.thermal = thermal;
+    this.batteryPercent = batteryPercent;
+    this.charging = charging;
+    this.powerSaveMode = powerSaveMode;
+  }
+
+  public Thermal getThermal() {
+    return thermal;
+  }
+
+  public int getBatteryPercent() {
+    return batteryPercent;
+  }
+
+  public boolean isCharging() {
+    return charging;
+  }
+
+  public boolean isPowerSaveMode() {
+    return powerSaveMode;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "thermal %s, battery %d%%%s%s",
+        thermal,
+        batteryPercent,
+        charging ? " charging" : "",
+        powerSaveMode ? ", power save" : "");
+  }
+}
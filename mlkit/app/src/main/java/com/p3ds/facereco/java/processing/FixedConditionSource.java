@@ -0,0 +1,36 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+/**
+ * Reports conditions set by hand, to drive a {@link ThrottlingPolicy} in JVM tests or to pin it
+ * while benchmarking.
+ */
+public class FixedConditionSource implements DeviceConditionSource {
+
+  private volatile DeviceConditions conditions;
+
+  public FixedConditionSource(DeviceConditions conditions) {
+    this.conditions = conditions;
+  }
+
+  public void set(DeviceConditions conditions) {
+    this.conditions = conditions;
+  }
+
+  @Override
+  public DeviceConditions read() {
+    return conditions;
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the camera frames, faces and results dropped by the pipeline, by the stage that dropped
+ * them, and logs the counts periodically. Thread safe.
+ */
+public class FrameDropStats {
+
+  private static final String TAG = "FrameDropStats";
+
+  private static final long LOG_INTERVAL_MS = 10000;
+
+  /** Where and why work was dropped. */
+  public enum Stage {
+    /** Frame replaced by a newer one before the processor took it. */
+    CAPTURE,
+    /** Frame arrived while the detector was still busy with a previous one. */
+    THROTTLE,
+    /** Frame already past its deadline when detection would have started. */
+    DETECTION_QUEUE,
+    /** Detection finished after the deadline of its frame; the faces were discarded. */
+    DETECTION,
+    /** Face could not be recognized before the deadline of its frame. */
+    RECOGNITION,
+    /** Recognition result arrived after the deadline of its frame and was not shown. */
+    RESULT
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(STAGES.length);
+  private final AtomicLongArray loggedCounts = new AtomicLongArray(STAGES.length);
+  private volatile long lastLogMs = -1;
+
+  /** @param name name of the camera or pipeline in the logs */
+  public FrameDropStats(String name) {
+    this.name = name;
+  }
+
+  public void record(Stage stage) {
+    record(stage, 1);
+  }
+
+  public void record(Stage stage, long count) {
+    counts.addAndGet(stage.ordinal(), count);
+  }
+
+  /** Total drops at a stage since creation. */
+  public long getCount(Stage stage) {
+    return counts.get(stage.ordinal());
+  }
+
+  /** Logs the drops of the last interval if it elapsed. */
+  public void logIfDue(long nowMs) {
+    long last = lastLogMs;
+    if (last < 0) {
+      lastLogMs = nowMs;
+      return;
+    }
+    if (nowMs - last < LOG_INTERVAL_MS) {
+      return;
+    }
+    lastLogMs = nowMs;
+    StringBuilder message = new StringBuilder(name).append(" drops in the last ")
+        .append((nowMs - last) / 1000).append(" s:");
+    for (Stage stage : STAGES) {
+      long count = counts.get(stage.ordinal());
+      message.append(' ').append(stage.name().toLowerCase()).append('=')
+          .append(count - loggedCounts.getAndSet(stage.ordinal(), count));
+    }
+    Log.i(TAG, message.toString());
+  }
+}
@@ -13,13 +13,23 @@
 // limitations under the License.
 package com.p3ds.facereco.java.processing;
 
-/** Describing a frame info. */
+/**
+ * Describing a frame info. Camera frames also carry their sequence number, the time they were
+ * captured and the deadline after which any work on them or result from them is stale, both on
+ * the {@code SystemClock.elapsedRealtime()} time base.
+ */
 public class FrameMetadata {
 
+  /** Deadline of frames without latency budget. */
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
   private final int width;
   private final int height;
   private final int rotation;
   private final int cameraFacing;
+  private final long sequence;
+  private final long captureTimeMs;
+  private final long deadlineMs;
 
   public int getWidth() {
     return width;
@@ -37,11 +47,38 @@ public class FrameMetadata {
     return cameraFacing;
   }
 
-  private FrameMetadata(int width, int height, int rotation, int facing) {
+  /** Number of the frame in the camera session, -1 if unknown. */
+  public long getSequence() {
+    return sequence;
+  }
+
+  public long getCaptureTimeMs() {
+    return captureTimeMs;
+  }
+
+  public long getDeadlineMs() {
+    return deadlineMs;
+  }
+
+  /** Time left before the deadline, negative once it passed. */
+  public long getRemainingBudgetMs(long nowMs) {
+    return deadlineMs == NO_DEADLINE ? Long.MAX_VALUE : deadlineMs - nowMs;
+  }
+
+  public boolean isExpired(long nowMs) {
+    return nowMs > deadlineMs;
+  }
+
+  private FrameMetadata(
+      int width, int height, int rotation, int facing, long sequence, long captureTimeMs,
+      long deadlineMs) {
     this.width = width;
     this.height = height;
     this.rotation = rotation;
     cameraFacing = facing;
+    this.sequence = sequence;
+    this.captureTimeMs = captureTimeMs;
+    this.deadlineMs = deadlineMs;
   }
 
   /** Builder of {@link FrameMetadata}. */
@@ -51,6 +88,9 @@ public class FrameMetadata {
     private int height;
     private int rotation;
     private int cameraFacing;
+    private long sequence = -1;
+    private long captureTimeMs;
+    private long deadlineMs = NO_DEADLINE;
 
     public Builder setWidth(int width) {
       this.width = width;
@@ -72,8 +112,24 @@ public class FrameMetadata {
       return this;
     }
 
+    public Builder setSequence(long sequence) {
+      this.sequence = sequence;
+      return this;
+    }
+
+    public Builder setCaptureTimeMs(long captureTimeMs) {
+      this.captureTimeMs = captureTimeMs;
+      return this;
+    }
+
+    public Builder setDeadlineMs(long deadlineMs) {
+      this.deadlineMs = deadlineMs;
+      return this;
+    }
+
     public FrameMetadata build() {
-      return new FrameMetadata(width, height, rotation, cameraFacing);
+      return new FrameMetadata(
+          width, height, rotation, cameraFacing, sequence, captureTimeMs, deadlineMs);
     }
   }
 }
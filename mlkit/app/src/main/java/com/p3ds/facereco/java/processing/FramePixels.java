@@ -0,0 +1,165 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The pixels of one camera frame, held from the time the frame is handed to detection until its
+ * results have been consumed, so that results are always paired with the pixels they were
+ * detected in. Frames are either NV21 arrays, {@link YuvPlanes}, e.g. of an {@code ImageReader}, or
+ * bitmaps. The bitmap of an NV21 frame is only decoded when first asked for, into a bitmap of the
+ * {@link BitmapPool}; regions of plane frames are converted on their own instead.
+ *
+ * <p>Not thread safe: the frame is handed from the processing thread to the thread consuming the
+ * results, which must {@link #release()} it.
+ */
+public class FramePixels {
+
+  private static final int JPEG_QUALITY = 50;
+
+  private final ByteBuffer data;
+  private final YuvPlanes planes;
+  private final FrameMetadata metadata;
+  private final Runnable release;
+
+  private Bitmap bitmap;
+  private final boolean ownsBitmap;
+  private boolean released;
+
+  /**
+   * @param data NV21 pixels of the frame, not copied
+   * @param release hands {@code data} back to its owner
+   */
+  public FramePixels(ByteBuffer data, FrameMetadata metadata, Runnable release) {
+    this.data = data;
+    this.planes = null;
+    this.metadata = metadata;
+    this.release = release;
+    this.ownsBitmap = true;
+  }
+
+  /**
+   * @param planes planes of the frame, not copied, {@code null} if it has none
+   * @param release hands the planes back to their owner, e.g. closes their image
+   */
+  public FramePixels(YuvPlanes planes, FrameMetadata metadata, Runnable release) {
+    this.data = null;
+    this.planes = planes;
+    this.metadata = metadata;
+    this.release = release;
+    this.ownsBitmap = true;
+  }
+
+  /**
+   * @param bitmap pixels of the frame, upright, still owned by the caller and neither recycled nor
+   *     pooled by the frame
+   * @param release hands the bitmap back to its owner
+   */
+  public FramePixels(Bitmap bitmap, FrameMetadata metadata, Runnable release) {
+    this.data = null;
+    this.planes = null;
+    this.bitmap = bitmap;
+    this.metadata = metadata;
+    this.release = release;
+    this.ownsBitmap = false;
+  }
+
+  public FrameMetadata getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * @return NV21 bytes of the frame, the luma plane first with a row stride of the frame width, or
+   *     {@code null} for plane frames
+   */
+  public byte[] getNv21() {
+    checkNotReleased();
+    return data != null ? data.array() : null;
+  }
+
+  /** @return the planes of the frame, {@code null} for NV21 frames and frames without planes */
+  public YuvPlanes getPlanes() {
+    checkNotReleased();
+    return planes;
+  }
+
+  /** @return true if {@link #getBitmap()} can be called, i.e. for NV21 and bitmap frames */
+  public boolean hasBitmap() {
+    return data != null || bitmap != null;
+  }
+
+  /**
+   * The frame decoded in buffer orientation. Owned by the frame and returned to the pool on
+   * release, so it must neither be recycled nor used afterwards.
+   *
+   * @throws IllegalStateException for plane frames, whose regions are converted with {@link
+   *     YuvPlanes#toArgb(int, int, int, int, int, int[])}
+   */
+  public Bitmap getBitmap() {
+    checkNotReleased();
+    if (bitmap == null && data == null) {
+      throw new IllegalStateException("Only NV21 and bitmap frames are decoded as a whole");
+    }
+    if (bitmap == null) {
+      YuvImage image =
+          new YuvImage(data.array(), ImageFormat.NV21, metadata.getWidth(), metadata.getHeight(), null);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      image.compressToJpeg(new Rect(0, 0, image.getWidth(), image.getHeight()), JPEG_QUALITY, out);
+      byte[] imageBytes = out.toByteArray();
+      BitmapPool pool = BitmapPool.getInstance();
+      Bitmap target = pool.acquire(metadata.getWidth(), metadata.getHeight());
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inMutable = true;
+      options.inBitmap = target;
+      try {
+        bitmap = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length, options);
+      } catch (IllegalArgumentException e) {
+        // The decoder refused the pooled bitmap, decode into a new one
+        options.inBitmap = null;
+        bitmap = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length, options);
+      }
+      if (bitmap != target) {
+        pool.release(target);
+      }
+    }
+    return bitmap;
+  }
+
+  /** Returns the bitmap to the pool and hands the frame buffer back. Later calls do nothing. */
+  public void release() {
+    if (released) {
+      return;
+    }
+    released = true;
+    if (bitmap != null && ownsBitmap) {
+      BitmapPool.getInstance().release(bitmap);
+    }
+    bitmap = null;
+    release.run();
+  }
+
+  private void checkNotReleased() {
+    if (released) {
+      throw new IllegalStateException("Frame " + metadata.getSequence() + " already released");
+    }
+  }
+}
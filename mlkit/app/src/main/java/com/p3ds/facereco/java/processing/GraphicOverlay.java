@@ -15,23 +15,40 @@ package com.p3ds.facereco.java.processing;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
 import android.util.AttributeSet;
-import android.view.View;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 
 import com.google.android.gms.vision.CameraSource;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
  * (i.e., the camera preview). The creator can add graphics objects, update the objects, and remove
- * them, triggering the appropriate drawing and invalidation within the view.
+ * them, triggering the appropriate drawing within the view.
  *
  * <p>Supports scaling and mirroring of the graphics relative the camera's preview properties. The
  * idea is that detection items are expressed in terms of a preview size, but need to be scaled up
  * to the full view size, and also mirrored in the case of the front-facing camera.
  *
+ * <p>Graphics are drawn on a dedicated render thread into the surface of the view, never on the UI
+ * thread. Every update publishes a frame of immutable {@link Graphic#snapshot() snapshots} of the
+ * graphics into a single slot, replacing a frame that was not rendered yet, and wakes the render
+ * thread up; nothing is drawn while no new frame arrives. Publishing never waits on the UI or on
+ * rendering. Graphics are meant to be retained and updated in place across frames.
+ *
  * <p>Associated {@link Graphic} items should use the following methods to convert to view
  * coordinates for the graphics that are drawn:
  *
@@ -42,14 +59,39 @@ import java.util.Set;
  *       coordinate from the preview's coordinate system to the view coordinate system.
  * </ol>
  */
-public class GraphicOverlay extends View {
+public class GraphicOverlay extends SurfaceView implements SurfaceHolder.Callback {
+  private static final String TAG = "GraphicOverlay";
+
+  private static final long STATS_LOG_INTERVAL_NS = 10_000_000_000L;
+
+  /** Smoothing factor of the render time and latency means. */
+  private static final float STATS_SMOOTHING = 0.1f;
+
+  // Serializes the writers so that frames are published in the order of the updates. Neither the
+  // UI thread nor the render thread ever take it.
   private final Object lock = new Object();
   private int previewWidth;
-  private float widthScaleFactor = 1.0f;
   private int previewHeight;
-  private float heightScaleFactor = 1.0f;
   private int facing = CameraSource.CAMERA_FACING_BACK;
-  private Set<Graphic> graphics = new HashSet<>();
+
+  // @GuardedBy("lock")
+  private List<Graphic> graphics = Collections.emptyList();
+
+  // The frame waiting to be rendered, if any
+  private final AtomicReference<Frame> pendingFrame = new AtomicReference<>();
+
+  private volatile RenderThread renderThread;
+
+  // Rebuilt whenever the camera info or the view size changes, read without the lock.
+  private volatile CoordinateTransform previewToView = CoordinateTransform.IDENTITY;
+  private volatile CoordinateTransform viewToPreview = CoordinateTransform.IDENTITY;
+
+  // Render metrics, written by the render thread only
+  private volatile long renderedFrames;
+  private volatile float meanRenderTimeMs;
+  private volatile float maxRenderTimeMs;
+  private volatile float meanLatencyMs;
+  private final AtomicLong supersededFrames = new AtomicLong();
 
   /**
    * Base class for a custom graphics object to be rendered within the graphic overlay. Subclass
@@ -64,8 +106,8 @@ public class GraphicOverlay extends View {
     }
 
     /**
-     * Draw the graphic on the supplied canvas. Drawing should use the following methods to convert
-     * to view coordinates for the graphics that are drawn:
+     * Draw the graphic on the supplied canvas, on the render thread. Drawing should use the
+     * following methods to convert to view coordinates for the graphics that are drawn:
      *
      * <ol>
      *   <li>{@link Graphic#scaleX(float)} and {@link Graphic#scaleY(float)} adjust the size of the
@@ -78,16 +120,25 @@ public class GraphicOverlay extends View {
      */
     public abstract void draw(Canvas canvas);
 
+    /**
+     * Returns a graphic drawing the current state of this one that never changes, to be handed to
+     * the render thread. Graphics that are updated after being added must override this; the
+     * default returns the graphic itself.
+     */
+    public Graphic snapshot() {
+      return this;
+    }
+
     /**
      * Adjusts a horizontal value of the supplied value from the preview scale to the view scale.
      */
     public float scaleX(float horizontal) {
-      return horizontal * overlay.widthScaleFactor;
+      return overlay.previewToView.scaleX(horizontal);
     }
 
     /** Adjusts a vertical value of the supplied value from the preview scale to the view scale. */
     public float scaleY(float vertical) {
-      return vertical * overlay.heightScaleFactor;
+      return overlay.previewToView.scaleY(vertical);
     }
 
     /** Returns the application context of the app. */
@@ -99,51 +150,107 @@ public class GraphicOverlay extends View {
      * Adjusts the x coordinate from the preview's coordinate system to the view coordinate system.
      */
     public float translateX(float x) {
-      if (overlay.facing == CameraSource.CAMERA_FACING_FRONT) {
-        return overlay.getWidth() - scaleX(x);
-      } else {
-        return scaleX(x);
-      }
+      return overlay.previewToView.mapX(x);
     }
 
     /**
      * Adjusts the y coordinate from the preview's coordinate system to the view coordinate system.
      */
     public float translateY(float y) {
-      return scaleY(y);
+      return overlay.previewToView.mapY(y);
     }
 
+    /** Publishes a new frame of the overlay, replacing one that was not rendered yet. */
     public void postInvalidate() {
-      overlay.postInvalidate();
+      overlay.requestRedraw();
+    }
+  }
+
+  /** Snapshots of the graphics at one point in time. */
+  private static final class Frame {
+    final List<Graphic> graphics;
+    final long publishedNs;
+
+    Frame(List<Graphic> graphics, long publishedNs) {
+      this.graphics = graphics;
+      this.publishedNs = publishedNs;
     }
   }
 
   public GraphicOverlay(Context context, AttributeSet attrs) {
     super(context, attrs);
+    // Above the camera preview surface, transparent where nothing is drawn
+    setZOrderMediaOverlay(true);
+    getHolder().setFormat(PixelFormat.TRANSLUCENT);
+    getHolder().addCallback(this);
   }
 
   /** Removes all graphics from the overlay. */
   public void clear() {
     synchronized (lock) {
-      graphics.clear();
+      graphics = Collections.emptyList();
+      publish();
     }
-    postInvalidate();
   }
 
   /** Adds a graphic to the overlay. */
   public void add(Graphic graphic) {
     synchronized (lock) {
-      graphics.add(graphic);
+      List<Graphic> updated = new ArrayList<>(graphics.size() + 1);
+      updated.addAll(graphics);
+      updated.add(graphic);
+      graphics = Collections.unmodifiableList(updated);
+      publish();
     }
-    postInvalidate();
   }
 
   /** Removes a graphic from the overlay. */
   public void remove(Graphic graphic) {
     synchronized (lock) {
-      graphics.remove(graphic);
+      List<Graphic> updated = new ArrayList<>(graphics);
+      updated.remove(graphic);
+      graphics = Collections.unmodifiableList(updated);
+      publish();
+    }
+  }
+
+  /**
+   * Replaces all graphics of the overlay at once, typically with the graphics of the faces of the
+   * last frame, and publishes a single frame.
+   */
+  public void setGraphics(Collection<? extends Graphic> newGraphics) {
+    List<Graphic> updated = Collections.unmodifiableList(new ArrayList<Graphic>(newGraphics));
+    synchronized (lock) {
+      graphics = updated;
+      publish();
+    }
+  }
+
+  /**
+   * Publishes a frame with the current state of the graphics, e.g. after one of them has been
+   * updated. A frame not rendered yet is replaced, so any number of updates between two renders
+   * cost a single render.
+   */
+  public void requestRedraw() {
+    synchronized (lock) {
+      publish();
+    }
+  }
+
+  // @GuardedBy("lock")
+  private void publish() {
+    List<Graphic> snapshots = new ArrayList<>(graphics.size());
+    for (Graphic graphic : graphics) {
+      snapshots.add(graphic.snapshot());
+    }
+    Frame frame = new Frame(Collections.unmodifiableList(snapshots), System.nanoTime());
+    if (pendingFrame.getAndSet(frame) != null) {
+      supersededFrames.incrementAndGet();
+    }
+    RenderThread thread = renderThread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
     }
-    postInvalidate();
   }
 
   /**
@@ -155,23 +262,163 @@ public class GraphicOverlay extends View {
       this.previewWidth = previewWidth;
       this.previewHeight = previewHeight;
       this.facing = facing;
+      updateTransforms(getWidth(), getHeight());
+      publish();
     }
-    postInvalidate();
   }
 
-  /** Draws the overlay with its associated graphic objects. */
-  @Override
-  protected void onDraw(Canvas canvas) {
-    super.onDraw(canvas);
+  /**
+   * Returns the mapping from the upright preview image, in which detections are reported, to the
+   * coordinates of this view.
+   */
+  public CoordinateTransform getPreviewToViewTransform() {
+    return previewToView;
+  }
+
+  /** Returns the mapping from the coordinates of this view to the upright preview image. */
+  public CoordinateTransform getViewToPreviewTransform() {
+    return viewToPreview;
+  }
+
+  /** Returns the number of frames rendered so far. */
+  public long getRenderedFrames() {
+    return renderedFrames;
+  }
 
+  /** Returns the number of frames replaced by a newer one before they were rendered. */
+  public long getSupersededFrames() {
+    return supersededFrames.get();
+  }
+
+  /** Returns the smoothed time it takes to render a frame. */
+  public float getMeanRenderTimeMs() {
+    return meanRenderTimeMs;
+  }
+
+  /** Returns the smoothed time from publishing a frame to posting it to the display. */
+  public float getMeanLatencyMs() {
+    return meanLatencyMs;
+  }
+
+  @Override
+  protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+    super.onSizeChanged(width, height, oldWidth, oldHeight);
     synchronized (lock) {
-      if ((previewWidth != 0) && (previewHeight != 0)) {
-        widthScaleFactor = (float) canvas.getWidth() / (float) previewWidth;
-        heightScaleFactor = (float) canvas.getHeight() / (float) previewHeight;
+      updateTransforms(width, height);
+      publish();
+    }
+  }
+
+  // @GuardedBy("lock")
+  private void updateTransforms(int viewWidth, int viewHeight) {
+    CoordinateTransform transform =
+        CoordinateTransform.forView(
+            previewWidth,
+            previewHeight,
+            viewWidth,
+            viewHeight,
+            facing == CameraSource.CAMERA_FACING_FRONT);
+    viewToPreview = transform.invert();
+    previewToView = transform;
+  }
+
+  @Override
+  public void surfaceCreated(SurfaceHolder holder) {
+    RenderThread thread = new RenderThread(holder);
+    renderThread = thread;
+    thread.start();
+    // The new surface is empty, render the current graphics on it
+    requestRedraw();
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    requestRedraw();
+  }
+
+  /** Stops rendering before the surface goes away, as the surface must not be used afterwards. */
+  @Override
+  public void surfaceDestroyed(SurfaceHolder holder) {
+    RenderThread thread = renderThread;
+    renderThread = null;
+    if (thread == null) {
+      return;
+    }
+    thread.running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Interrupted while stopping the render thread.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Renders the frames published into the slot, sleeping while there is none. */
+  private final class RenderThread extends Thread {
+    private final SurfaceHolder holder;
+    volatile boolean running = true;
+    private long lastLogNs = System.nanoTime();
+
+    RenderThread(SurfaceHolder holder) {
+      super("GraphicOverlayRender");
+      this.holder = holder;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        Frame frame = pendingFrame.getAndSet(null);
+        if (frame == null) {
+          LockSupport.park(this);
+          continue;
+        }
+        render(frame);
       }
+    }
 
-      for (Graphic graphic : graphics) {
-        graphic.draw(canvas);
+    private void render(Frame frame) {
+      long start = System.nanoTime();
+      Canvas canvas = holder.lockCanvas();
+      if (canvas == null) {
+        // The surface is not ready (anymore), surfaceCreated publishes again
+        return;
+      }
+      try {
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        for (Graphic graphic : frame.graphics) {
+          graphic.draw(canvas);
+        }
+      } finally {
+        holder.unlockCanvasAndPost(canvas);
+      }
+      long end = System.nanoTime();
+      record((end - start) / 1e6f, (end - frame.publishedNs) / 1e6f, end);
+    }
+
+    private void record(float renderTimeMs, float latencyMs, long nowNs) {
+      long count = renderedFrames;
+      if (count == 0) {
+        meanRenderTimeMs = renderTimeMs;
+        meanLatencyMs = latencyMs;
+      } else {
+        meanRenderTimeMs += STATS_SMOOTHING * (renderTimeMs - meanRenderTimeMs);
+        meanLatencyMs += STATS_SMOOTHING * (latencyMs - meanLatencyMs);
+      }
+      maxRenderTimeMs = Math.max(maxRenderTimeMs, renderTimeMs);
+      renderedFrames = count + 1;
+      if (nowNs - lastLogNs >= STATS_LOG_INTERVAL_NS) {
+        lastLogNs = nowNs;
+        Log.i(
+            TAG,
+            String.format(
+                Locale.US,
+                "%d frames rendered, %d superseded, render %.1f ms (max %.1f), latency %.1f ms",
+                renderedFrames,
+                supersededFrames.get(),
+                meanRenderTimeMs,
+                maxRenderTimeMs,
+                meanLatencyMs));
       }
     }
   }
@@ -0,0 +1,174 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import android.util.Log;
+
+import com.google.android.gms.common.images.Size;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the camera preview size from what recognition needs rather than from a fixed resolution.
+ *
+ * <p>Faces must span at least {@link #getMinFacePixels()} pixels to be recognized. With a pinhole
+ * model of the camera, a face of {@value #FACE_WIDTH_M} m at the expected subject distance spans
+ * {@code side / 2 / tan(fov / 2) * faceWidth / distance} pixels across a frame side covering the
+ * view angle {@code fov}. The smallest preview size meeting the requirement is chosen, since
+ * detection cost grows with the pixel count.
+ *
+ * <p>The cost of a frame is measured at runtime, per preview pixel. When the pipeline cannot keep
+ * up, {@link #select(List, float, float, boolean, long)} is given the time a frame may take, and
+ * trades face size (i.e. distance) for throughput if the required size is too expensive.
+ */
+public class PreviewSizeSelector {
+
+  private static final String TAG = "PreviewSizeSelector";
+
+  /** Face width in pixels below which recognition degrades. */
+  public static final int DEFAULT_MIN_FACE_PIXELS = 100;
+
+  /** Distance of the farthest subjects that should still be recognized. */
+  public static final float DEFAULT_SUBJECT_DISTANCE_M = 1.5f;
+
+  /** Width of an adult face, ear to ear excluded. */
+  public static final float FACE_WIDTH_M = 0.16f;
+
+  /** Smoothing factor of the measured cost per pixel. */
+  private static final float COST_SMOOTHING = 0.1f;
+
+  /** Cost to select without a cost limit. */
+  public static final long NO_COST_LIMIT = 0;
+
+  private volatile int minFacePixels = DEFAULT_MIN_FACE_PIXELS;
+  private volatile float subjectDistanceM = DEFAULT_SUBJECT_DISTANCE_M;
+
+  // @GuardedBy("this"), negative until measured
+  private double nsPerPixel = -1;
+
+  public int getMinFacePixels() {
+    return minFacePixels;
+  }
+
+  public void setMinFacePixels(int minFacePixels) {
+    this.minFacePixels = minFacePixels;
+  }
+
+  public float getSubjectDistanceM() {
+    return subjectDistanceM;
+  }
+
+  public void setSubjectDistanceM(float subjectDistanceM) {
+    this.subjectDistanceM = subjectDistanceM;
+  }
+
+  /**
+   * Feeds the time a frame took from detection to consumed results.
+   *
+   * @param pixels pixels of the frame
+   */
+  public synchronized void reportFrameCost(int pixels, long durationNs) {
+    double sample = (double) durationNs / pixels;
+    nsPerPixel = nsPerPixel < 0 ? sample : nsPerPixel + COST_SMOOTHING * (sample - nsPerPixel);
+  }
+
+  /** @return the estimated cost of a frame of {@code size}, -1 until a frame has been measured */
+  public synchronized long estimateCostMs(Size size) {
+    if (nsPerPixel < 0) {
+      return -1;
+    }
+    return (long) (nsPerPixel * size.getWidth() * size.getHeight() / 1000000);
+  }
+
+  /**
+   * @param side frame side in pixels
+   * @param viewAngleDeg view angle covered by the side
+   * @return how many pixels a face at the subject distance spans along the side
+   */
+  public float facePixels(int side, float viewAngleDeg) {
+    double focalPixels = side / 2.0 / Math.tan(Math.toRadians(viewAngleDeg) / 2);
+    return (float) (focalPixels * FACE_WIDTH_M / subjectDistanceM);
+  }
+
+  /**
+   * Selects a preview size.
+   *
+   * @param sizes candidate preview sizes, in sensor orientation
+   * @param horizontalViewAngle view angle along the width of the sensor, in degrees
+   * @param verticalViewAngle view angle along its height
+   * @param sideways whether the sensor is rotated by a quarter turn against the upright image, in
+   *     which case faces span its height
+   * @param maxCostMs time a frame may take, {@link #NO_COST_LIMIT} to only consider face size
+   * @return the smallest size meeting the face size, the largest one if none does. With a cost
+   *     limit and a measured cost, the largest size within the limit if the former exceeds it.
+   */
+  public Size select(
+      List<Size> sizes,
+      float horizontalViewAngle,
+      float verticalViewAngle,
+      boolean sideways,
+      long maxCostMs) {
+    Size required = null;
+    Size largest = null;
+    for (Size size : sizes) {
+      if (largest == null || pixels(size) > pixels(largest)) {
+        largest = size;
+      }
+      float facePixels =
+          sideways
+              ? facePixels(size.getHeight(), verticalViewAngle)
+              : facePixels(size.getWidth(), horizontalViewAngle);
+      if (facePixels >= minFacePixels && (required == null || pixels(size) < pixels(required))) {
+        required = size;
+      }
+    }
+    Size selected = required != null ? required : largest;
+    if (selected == null || maxCostMs == NO_COST_LIMIT || estimateCostMs(selected) <= maxCostMs) {
+      return selected;
+    }
+    // Too expensive: the largest affordable size, the cheapest one if none is
+    Size affordable = null;
+    Size smallest = selected;
+    for (Size size : sizes) {
+      if (pixels(size) < pixels(smallest)) {
+        smallest = size;
+      }
+      if (pixels(size) < pixels(selected)
+          && estimateCostMs(size) <= maxCostMs
+          && (affordable == null || pixels(size) > pixels(affordable))) {
+        affordable = size;
+      }
+    }
+    Size fallback = affordable != null ? affordable : smallest;
+    Log.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "%s would take %d ms per frame, over %d ms; using %s, faces span %.0f pixels at %.1f m",
+            selected,
+            estimateCostMs(selected),
+            maxCostMs,
+            fallback,
+            sideways
+                ? facePixels(fallback.getHeight(), verticalViewAngle)
+                : facePixels(fallback.getWidth(), horizontalViewAngle),
+            subjectDistanceM));
+    return fallback;
+  }
+
+  private static long pixels(Size size) {
+    return (long) size.getWidth() * size.getHeight();
+  }
+}
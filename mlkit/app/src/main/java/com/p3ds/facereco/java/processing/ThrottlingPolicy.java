@@ -0,0 +1,230 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throttles the pipeline as the device heats up or runs out of battery, before the system
+ * throttles the CPU itself and throughput collapses.
+ *
+ * <p>{@link DeviceConditions} are polled from a {@link DeviceConditionSource} and mapped to a
+ * {@link Level}, which sets the processed frame rate, the interpreter thread count, the interval
+ * between recognitions of a track and whether identified tracks are recognized again. Heavier
+ * levels are taken as soon as the conditions call for them. Lighter ones only one step at a time,
+ * after the conditions allowed them for the whole cool-down, so that the pipeline does not
+ * oscillate around a threshold. Every transition is logged with the conditions that caused it.
+ */
+public class ThrottlingPolicy {
+
+  private static final String TAG = "ThrottlingPolicy";
+
+  public static final long DEFAULT_POLL_INTERVAL_MS = 10000;
+
+  /** How long the conditions must allow a lighter level before stepping down to it. */
+  public static final long DEFAULT_COOL_DOWN_MS = 60000;
+
+  /** Battery levels, when not charging, from which the pipeline is throttled. */
+  private static final int LOW_BATTERY_PERCENT = 20;
+  private static final int CRITICAL_BATTERY_PERCENT = 10;
+
+  /** Frame rate of a level that processes every camera frame. */
+  public static final float NO_FRAME_RATE_LIMIT = 0;
+
+  /** Pipeline settings, from the lightest to the heaviest throttling. */
+  public enum Level {
+    NORMAL(NO_FRAME_RATE_LIMIT, 4, 500, false),
+    REDUCED(3, 2, 1000, true),
+    LOW(2, 1, 2000, true),
+    MINIMAL(1, 1, 4000, true);
+
+    private final float maxFrameRate;
+    private final int numThreads;
+    private final long recognitionIntervalMs;
+    private final boolean skipIdentifiedTracks;
+
+    Level(
+        float maxFrameRate,
+        int numThreads,
+        long recognitionIntervalMs,
+        boolean skipIdentifiedTracks) {
+      this.maxFrameRate = maxFrameRate;
+      this.numThreads = numThreads;
+      this.recognitionIntervalMs = recognitionIntervalMs;
+      this.skipIdentifiedTracks = skipIdentifiedTracks;
+    }
+
+    /** Camera frames detected per second, {@link #NO_FRAME_RATE_LIMIT} for all of them. */
+    public float getMaxFrameRate() {
+      return maxFrameRate;
+    }
+
+    /** Threads of the recognition interpreter. */
+    public int getNumThreads() {
+      return numThreads;
+    }
+
+    /** Time between two recognitions of the same track. */
+    public long getRecognitionIntervalMs() {
+      return recognitionIntervalMs;
+    }
+
+    /** Whether tracks already recognized as a known identity are left alone. */
+    public boolean isSkipIdentifiedTracks() {
+      return skipIdentifiedTracks;
+    }
+  }
+
+  /** Applies the settings of a level to the pipeline. */
+  public interface Listener {
+
+    /** Called on the thread of the policy, once at start and on every transition. */
+    void onLevelChanged(Level level);
+  }
+
+  private final DeviceConditionSource source;
+  private final Listener listener;
+  private final long coolDownMs;
+
+  // @GuardedBy("this"), null until the first evaluation
+  private Level level;
+  // @GuardedBy("this"), since when the conditions allow a lighter level, negative if they do not
+  private long lighterSinceMs = -1;
+  // @GuardedBy("this")
+  private ScheduledExecutorService poller;
+
+  public ThrottlingPolicy(DeviceConditionSource source, Listener listener) {
+    this(source, listener, DEFAULT_COOL_DOWN_MS);
+  }
+
+  /** @param coolDownMs how long the conditions must allow a lighter level to step down to it */
+  public ThrottlingPolicy(DeviceConditionSource source, Listener listener, long coolDownMs) {
+    this.source = source;
+    this.listener = listener;
+    this.coolDownMs = coolDownMs;
+  }
+
+  /** Evaluates the conditions every {@link #DEFAULT_POLL_INTERVAL_MS}, starting now. */
+  public void start() {
+    start(DEFAULT_POLL_INTERVAL_MS);
+  }
+
+  public synchronized void start(long pollIntervalMs) {
+    if (poller != null) {
+      return;
+    }
+    poller =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "ThrottlingPolicy"));
+    poller.scheduleWithFixedDelay(this::poll, 0, pollIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops polling. The current level stays in effect. */
+  public synchronized void stop() {
+    if (poller != null) {
+      poller.shutdownNow();
+      poller = null;
+    }
+  }
+
+  private void poll() {
+    try {
+      evaluate(SystemClock.elapsedRealtime());
+    } catch (RuntimeException e) {
+      // An uncaught exception would cancel the polling
+      Log.w(TAG, "Cannot evaluate the device conditions", e);
+    }
+  }
+
+  /** @return the current level, {@code null} before the first evaluation */
+  public synchronized Level getLevel() {
+    return level;
+  }
+
+  /**
+   * Reads the conditions and moves to the level they call for, subject to the cool-down.
+   *
+   * @param nowMs current time, on the {@code SystemClock.elapsedRealtime()} time base
+   * @return the level in effect
+   */
+  public synchronized Level evaluate(long nowMs) {
+    DeviceConditions conditions = source.read();
+    Level target = levelFor(conditions);
+    Level next = level;
+    if (level == null || target.compareTo(level) > 0) {
+      next = target;
+      lighterSinceMs = -1;
+    } else if (target.compareTo(level) < 0) {
+      if (lighterSinceMs < 0) {
+        lighterSinceMs = nowMs;
+      } else if (nowMs - lighterSinceMs >= coolDownMs) {
+        next = Level.values()[level.ordinal() - 1];
+        // The next step down needs a cool-down of its own
+        lighterSinceMs = target.compareTo(next) < 0 ? nowMs : -1;
+      }
+    } else {
+      lighterSinceMs = -1;
+    }
+    if (next != level) {
+      if (level == null) {
+        Log.i(TAG, "Starting at " + next + " (" + conditions + ")");
+      } else {
+        Log.i(TAG, "Throttling changed from " + level + " to " + next + " (" + conditions + ")");
+      }
+      level = next;
+      listener.onLevelChanged(next);
+    }
+    return level;
+  }
+
+  /** Level the conditions call for, without hysteresis. */
+  static Level levelFor(DeviceConditions conditions) {
+    Level level;
+    switch (conditions.getThermal()) {
+      case NONE:
+        level = Level.NORMAL;
+        break;
+      case LIGHT:
+        level = Level.REDUCED;
+        break;
+      case MODERATE:
+        level = Level.LOW;
+        break;
+      default:
+        level = Level.MINIMAL;
+        break;
+    }
+    if (conditions.isPowerSaveMode()) {
+      level = max(level, Level.REDUCED);
+    }
+    int battery = conditions.getBatteryPercent();
+    if (!conditions.isCharging() && battery != DeviceConditions.UNKNOWN_BATTERY) {
+      if (battery <= CRITICAL_BATTERY_PERCENT) {
+        level = max(level, Level.LOW);
+      } else if (battery <= LOW_BATTERY_PERCENT) {
+        level = max(level, Level.REDUCED);
+      }
+    }
+    return level;
+  }
+
+  private static Level max(Level a, Level b) {
+    return a.compareTo(b) >= 0 ? a : b;
+  }
+}
@@ -28,12 +28,40 @@ public interface VisionImageProcessor {
   void process(ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
       throws FirebaseMLException;
 
+  /**
+   * Processes a camera frame whose buffer stays valid until {@code release} is run, which the
+   * processor must do exactly once, possibly after returning. By default the frame is processed
+   * synchronously and released right away.
+   */
+  default void process(
+      ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay, Runnable release)
+      throws FirebaseMLException {
+    try {
+      process(data, frameMetadata, graphicOverlay);
+    } finally {
+      release.run();
+    }
+  }
+
   /** Processes the bitmap images. */
   void process(Bitmap bitmap, GraphicOverlay graphicOverlay);
 
   /** Processes the images. */
   void process(Image bitmap, int rotation, GraphicOverlay graphicOverlay);
 
+  /**
+   * Processes an image that stays open until {@code release} is run, which the processor
+   * must do exactly once, possibly after returning. By default the image is processed
+   * synchronously and released right away.
+   */
+  default void process(Image image, int rotation, GraphicOverlay graphicOverlay, Runnable release) {
+    try {
+      process(image, rotation, graphicOverlay);
+    } finally {
+      release.run();
+    }
+  }
+
   /** Stops the underlying machine learning model and release resources. */
   void stop();
 }
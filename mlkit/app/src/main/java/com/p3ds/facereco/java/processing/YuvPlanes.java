@@ -0,0 +1,169 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV 4:2:0 frame as three planes with their own row and pixel strides, the layout of {@link
+ * ImageFormat#YUV_420_888} images. Covers planar (I420), semi-planar (NV12, NV21) and padded
+ * layouts alike, since every sample is addressed through the strides.
+ *
+ * <p>Regions are cropped, rotated and converted to ARGB in a single pass that reads only the
+ * samples of the region, straight from the planes, so a frame never needs to be packed or copied
+ * as a whole. Planes are only read with absolute gets and may be shared by threads.
+ */
+public class YuvPlanes {
+
+  private final int width;
+  private final int height;
+  private final ByteBuffer y;
+  private final ByteBuffer u;
+  private final ByteBuffer v;
+  private final int yRowStride;
+  private final int yPixelStride;
+  private final int uvRowStride;
+  private final int uvPixelStride;
+
+  /**
+   * @param y luma plane, sample (x, y) at {@code y * yRowStride + x * yPixelStride}
+   * @param u Cb plane at half resolution, sample (x, y) at {@code y * uvRowStride + x *
+   *     uvPixelStride}
+   * @param v Cr plane, with the strides of {@code u}
+   */
+  public YuvPlanes(
+      int width,
+      int height,
+      ByteBuffer y,
+      int yRowStride,
+      int yPixelStride,
+      ByteBuffer u,
+      ByteBuffer v,
+      int uvRowStride,
+      int uvPixelStride) {
+    this.width = width;
+    this.height = height;
+    this.y = y;
+    this.u = u;
+    this.v = v;
+    this.yRowStride = yRowStride;
+    this.yPixelStride = yPixelStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+  }
+
+  /**
+   * Wraps the planes of an image without copying them. They stay valid until the image is closed.
+   *
+   * @throws IllegalArgumentException if the image is not {@link ImageFormat#YUV_420_888}
+   */
+  public static YuvPlanes fromImage(Image image) {
+    if (image.getFormat() != ImageFormat.YUV_420_888) {
+      throw new IllegalArgumentException("Unsupported image format " + image.getFormat());
+    }
+    Image.Plane[] planes = image.getPlanes();
+    // U and V always share their strides in YUV_420_888
+    return new YuvPlanes(
+        image.getWidth(),
+        image.getHeight(),
+        planes[0].getBuffer(),
+        planes[0].getRowStride(),
+        planes[0].getPixelStride(),
+        planes[1].getBuffer(),
+        planes[2].getBuffer(),
+        planes[1].getRowStride(),
+        planes[1].getPixelStride());
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Converts a region of the frame to ARGB, rotated clockwise by quarter turns. The conversion
+   * follows the full range BT.601 matrix of JPEG, like the decoded NV21 frames.
+   *
+   * @param left left of the region, in frame pixels
+   * @param top top of the region
+   * @param regionWidth width of the region before rotation
+   * @param regionHeight height of the region before rotation
+   * @param rotation quarter turns clockwise, 0 to 3
+   * @param out receives the rotated region, row stride is its rotated width
+   */
+  public void toArgb(
+      int left, int top, int regionWidth, int regionHeight, int rotation, int[] out) {
+    if (left < 0 || top < 0 || left + regionWidth > width || top + regionHeight > height) {
+      throw new IllegalArgumentException("Region outside of the frame");
+    }
+    // Where the first pixel of every source row goes and how far apart its pixels land
+    int step;
+    int rowStart;
+    int rowStep;
+    switch (rotation & 3) {
+      case 0:
+        rowStart = 0;
+        rowStep = regionWidth;
+        step = 1;
+        break;
+      case 1:
+        rowStart = regionHeight - 1;
+        rowStep = -1;
+        step = regionHeight;
+        break;
+      case 2:
+        rowStart = regionHeight * regionWidth - 1;
+        rowStep = -regionWidth;
+        step = -1;
+        break;
+      default:
+        rowStart = (regionWidth - 1) * regionHeight;
+        rowStep = 1;
+        step = -regionHeight;
+        break;
+    }
+    for (int row = 0; row < regionHeight; ++row) {
+      int sy = top + row;
+      int yIndex = sy * yRowStride + left * yPixelStride;
+      int uvRow = (sy >> 1) * uvRowStride;
+      int index = rowStart + row * rowStep;
+      for (int sx = left; sx < left + regionWidth; ++sx) {
+        int luma = y.get(yIndex) & 0xFF;
+        int uvIndex = uvRow + (sx >> 1) * uvPixelStride;
+        int cb = (u.get(uvIndex) & 0xFF) - 128;
+        int cr = (v.get(uvIndex) & 0xFF) - 128;
+        out[index] = argb(luma, cb, cr);
+        yIndex += yPixelStride;
+        index += step;
+      }
+    }
+  }
+
+  /** Fixed point YCbCr to ARGB, coefficients scaled by 2^16. */
+  private static int argb(int luma, int cb, int cr) {
+    int r = luma + ((91881 * cr + 32768) >> 16);
+    int g = luma - ((22554 * cb + 46802 * cr + 32768) >> 16);
+    int b = luma + ((116130 * cb + 32768) >> 16);
+    r = r < 0 ? 0 : (r > 255 ? 255 : r);
+    g = g < 0 ? 0 : (g > 255 ? 255 : g);
+    b = b < 0 ? 0 : (b > 255 ? 255 : b);
+    return 0xFF000000 | (r << 16) | (g << 8) | b;
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.service;
+
+import com.p3ds.facereco.java.facerecognition.FaceInput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads a local {@link RecognitionServer} with concurrent clients sending random face crops, and
+ * reports throughput and request latency percentiles.
+ *
+ * <pre>
+ * java com.p3ds.facereco.java.service.LoadTest [port] [clients] [requests per client] [faces per request] [crop size]
+ * </pre>
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : RecognitionServer.DEFAULT_PORT;
+        int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int facesPerRequest = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int cropSize = args.length > 4 ? Integer.parseInt(args[4]) : 160;
+
+        long[][] latencies = new long[clientCount][requests];
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Thread[] threads = new Thread[clientCount];
+        for (int c = 0; c < clientCount; ++c) {
+            long[] clientLatencies = latencies[c];
+            List<FaceInput> faces = randomFaces(new Random(c), facesPerRequest, cropSize);
+            int[] trackIds = new int[facesPerRequest];
+            Arrays.fill(trackIds, RecognitionProtocol.NO_TRACK);
+            threads[c] = new Thread(() -> {
+                try (RecognitionClient client = new RecognitionClient(port)) {
+                    for (int r = 0; r < requests; ++r) {
+                        long start = System.nanoTime();
+                        try {
+                            client.recognizeCrops(faces, trackIds, 1);
+                            clientLatencies[r] = System.nanoTime() - start;
+                            completed.incrementAndGet();
+                        } catch (RecognitionClient.ServerBusyException e) {
+                            clientLatencies[r] = -1;
+                            busy.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    System.err.println("Client failed: " + e);
+                }
+            }, "LoadTest-" + c);
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] all = new long[completed.get()];
+        int i = 0;
+        for (long[] clientLatencies : latencies) {
+            for (long latency : clientLatencies) {
+                if (latency > 0 && i < all.length) {
+                    all[i++] = latency;
+                }
+            }
+        }
+        Arrays.sort(all);
+        System.out.println(String.format(Locale.US,
+                "%d requests, %d busy, %d clients failed in %.1f s: %.1f faces/s", completed.get(),
+                busy.get(), failed.get(), seconds, completed.get() * facesPerRequest / seconds));
+        if (all.length > 0) {
+            System.out.println(String.format(Locale.US, "latency p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    percentile(all, 0.50), percentile(all, 0.95), percentile(all, 0.99), all[all.length - 1] / 1e6));
+        }
+    }
+
+    private static List<FaceInput> randomFaces(Random random, int count, int size) {
+        List<FaceInput> faces = new ArrayList<>(count);
+        for (int f = 0; f < count; ++f) {
+            int[] pixels = new int[size * size];
+            for (int p = 0; p < pixels.length; ++p) {
+                pixels[p] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            faces.add(new FaceInput(pixels, size, size, null));
+        }
+        return faces;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))] / 1e6;
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.service;
+
+/**
+ * Converts a rectangle of an NV21 frame to ARGB pixels, with the integer BT.601 video range
+ * coefficients.
+ */
+final class Nv21Crop {
+
+    private Nv21Crop() {
+    }
+
+    /**
+     * @param nv21   frame, full resolution Y plane followed by interleaved V and U at half
+     *               resolution
+     * @param width  width of the frame
+     * @param height height of the frame
+     * @param left   left of the rectangle, inclusive, already clamped to the frame
+     * @param top    top of the rectangle, inclusive, already clamped to the frame
+     * @param right  right of the rectangle, exclusive, already clamped to the frame
+     * @param bottom bottom of the rectangle, exclusive, already clamped to the frame
+     * @return the ARGB pixels of the rectangle, row stride is its width
+     */
+    static int[] toArgb(byte[] nv21, int width, int height, int left, int top, int right, int bottom) {
+        int cropWidth = right - left;
+        int[] argb = new int[cropWidth * (bottom - top)];
+        int frameSize = width * height;
+        int i = 0;
+        for (int y = top; y < bottom; ++y) {
+            int yRow = y * width;
+            int uvRow = frameSize + (y >> 1) * width;
+            for (int x = left; x < right; ++x) {
+                int luma = Math.max(0, (nv21[yRow + x] & 0xFF) - 16) * 298;
+                int uvIndex = uvRow + (x & ~1);
+                int v = (nv21[uvIndex] & 0xFF) - 128;
+                int u = (nv21[uvIndex + 1] & 0xFF) - 128;
+                int r = clamp((luma + 409 * v + 128) >> 8);
+                int g = clamp((luma - 100 * u - 208 * v + 128) >> 8);
+                int b = clamp((luma + 516 * u + 128) >> 8);
+                argb[i++] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return argb;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
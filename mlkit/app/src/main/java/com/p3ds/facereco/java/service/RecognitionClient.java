@@ -0,0 +1,174 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.service;
+
+import com.p3ds.facereco.java.facerecognition.FaceInput;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client of a {@link RecognitionServer} on the same host. Requests on one client are sequential;
+ * use one client per camera or thread.
+ */
+public class RecognitionClient implements Closeable {
+
+    /**
+     * An identity matched to a face.
+     */
+    public static class Match {
+        private final int identityId;
+        private final String name;
+        private final float score;
+
+        Match(int identityId, String name, float score) {
+            this.identityId = identityId;
+            this.name = name;
+            this.score = score;
+        }
+
+        public int getIdentityId() {
+            return identityId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + identityId + "): " + score;
+        }
+    }
+
+    /**
+     * Thrown when the server turned a request down because its admission queue is full.
+     */
+    public static class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ServerBusyException(String message) {
+            super(message);
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public RecognitionClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Recognizes face crops.
+     *
+     * @param faces    crops, with their landmarks if known
+     * @param trackIds track of every face, {@link RecognitionProtocol#NO_TRACK} if untracked;
+     *                 {@code null} if no face is tracked
+     * @param topK     number of matches returned per face
+     * @return the matches of every face, best first
+     * @throws ServerBusyException if the server is overloaded
+     */
+    public List<List<Match>> recognizeCrops(List<FaceInput> faces, int[] trackIds, int topK) throws IOException {
+        out.writeInt(RecognitionProtocol.MAGIC);
+        out.writeInt(RecognitionProtocol.KIND_CROPS);
+        out.writeInt(topK);
+        out.writeInt(faces.size());
+        for (int i = 0; i < faces.size(); ++i) {
+            FaceInput face = faces.get(i);
+            out.writeInt(trackIds != null ? trackIds[i] : RecognitionProtocol.NO_TRACK);
+            out.writeInt(face.width);
+            out.writeInt(face.height);
+            RecognitionProtocol.writeLandmarks(out, face.landmarks);
+            for (int p = 0; p < face.width * face.height; ++p) {
+                out.writeInt(face.pixels[p]);
+            }
+        }
+        out.flush();
+        return readResponse();
+    }
+
+    /**
+     * Recognizes the faces of an NV21 frame.
+     *
+     * @param boxes     left, top, right and bottom of every face, in frame pixels
+     * @param landmarks landmarks of every face in frame coordinates, {@code null} entries or array
+     *                  if unknown
+     * @param trackIds  track of every face, {@code null} if no face is tracked
+     * @throws ServerBusyException if the server is overloaded
+     */
+    public List<List<Match>> recognizeFrame(byte[] nv21, int width, int height, int[][] boxes,
+                                            float[][] landmarks, int[] trackIds, int topK) throws IOException {
+        out.writeInt(RecognitionProtocol.MAGIC);
+        out.writeInt(RecognitionProtocol.KIND_NV21);
+        out.writeInt(topK);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.write(nv21, 0, width * height * 3 / 2);
+        out.writeInt(boxes.length);
+        for (int i = 0; i < boxes.length; ++i) {
+            out.writeInt(trackIds != null ? trackIds[i] : RecognitionProtocol.NO_TRACK);
+            for (int j = 0; j < 4; ++j) {
+                out.writeInt(boxes[i][j]);
+            }
+            RecognitionProtocol.writeLandmarks(out, landmarks != null ? landmarks[i] : null);
+        }
+        out.flush();
+        return readResponse();
+    }
+
+    private List<List<Match>> readResponse() throws IOException {
+        int status = in.readInt();
+        if (status == RecognitionProtocol.STATUS_BUSY) {
+            throw new ServerBusyException(in.readUTF());
+        }
+        if (status != RecognitionProtocol.STATUS_OK) {
+            throw new IOException("Recognition failed: " + in.readUTF());
+        }
+        int count = in.readInt();
+        List<List<Match>> results = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            int matchCount = in.readInt();
+            List<Match> matches = new ArrayList<>(matchCount);
+            for (int j = 0; j < matchCount; ++j) {
+                int identityId = in.readInt();
+                float score = in.readFloat();
+                matches.add(new Match(identityId, in.readUTF(), score));
+            }
+            results.add(matches);
+        }
+        return results;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
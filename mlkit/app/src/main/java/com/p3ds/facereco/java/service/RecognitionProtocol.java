@@ -0,0 +1,238 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.service;
+
+import com.p3ds.facereco.java.facerecognition.FaceAligner;
+import com.p3ds.facereco.java.facerecognition.FaceInput;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Wire format between {@link RecognitionClient} and {@link RecognitionServer}. Big endian, as
+ * written by {@link DataOutputStream}. A connection carries any number of requests, each answered
+ * before the next one is read.
+ *
+ * <pre>
+ * request:  int magic "P3RQ", int kind, int top K, then
+ *   crops:  int count, count * (int track ID, int width, int height, landmarks, int[width * height] ARGB)
+ *   NV21:   int width, int height, byte[width * height * 3 / 2] frame,
+ *           int count, count * (int track ID, int left, int top, int right, int bottom, landmarks)
+ *   landmarks: boolean present, if present float[6] as in {@link FaceAligner}, in crop or frame
+ *           coordinates
+ *
+ * response: int status, then
+ *   OK:     int count, count * (int matches, matches * (int identity ID, float score, UTF name))
+ *   others: UTF message
+ * </pre>
+ *
+ * A track ID of -1 means the face is not tracked; the outputs of a tracked face are smoothed over
+ * the requests of its connection.
+ */
+public final class RecognitionProtocol {
+
+    public static final int MAGIC = 0x50335251;
+
+    public static final int KIND_CROPS = 1;
+    public static final int KIND_NV21 = 2;
+
+    public static final int STATUS_OK = 0;
+    /**
+     * The admission queue of the server is full, the request can be retried later.
+     */
+    public static final int STATUS_BUSY = 1;
+    public static final int STATUS_ERROR = 2;
+
+    public static final int NO_TRACK = -1;
+
+    public static final int MAX_TOP_K = 10;
+    public static final int MAX_FACES_PER_REQUEST = 64;
+    public static final int MAX_DIMENSION = 4096;
+    /**
+     * Pixels of all crops of a request, sent as such or cut out of an NV21 frame.
+     */
+    public static final int MAX_CROP_PIXELS_PER_REQUEST = 8 * 1024 * 1024;
+
+    private RecognitionProtocol() {
+    }
+
+    /**
+     * A face read from a request.
+     */
+    static class Face {
+        final int trackId;
+        final FaceInput input;
+
+        Face(int trackId, FaceInput input) {
+            this.trackId = trackId;
+            this.input = input;
+        }
+    }
+
+    /**
+     * A request read by the server.
+     */
+    static class Request {
+        final int topK;
+        final Face[] faces;
+
+        Request(int topK, Face[] faces) {
+            this.topK = topK;
+            this.faces = faces;
+        }
+    }
+
+    /**
+     * Reads the next request of a connection.
+     *
+     * @throws java.io.EOFException if the client closed the connection between requests
+     * @throws ProtocolException    if the request is malformed or exceeds the limits
+     */
+    static Request readRequest(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new ProtocolException("Not a recognition request");
+        }
+        int kind = in.readInt();
+        int topK = in.readInt();
+        if (topK < 1 || topK > MAX_TOP_K) {
+            throw new ProtocolException("Top K must be within 1 and " + MAX_TOP_K + ", got " + topK);
+        }
+        switch (kind) {
+            case KIND_CROPS:
+                return new Request(topK, readCrops(in));
+            case KIND_NV21:
+                return new Request(topK, readNv21(in));
+            default:
+                throw new ProtocolException("Unknown request kind " + kind);
+        }
+    }
+
+    private static Face[] readCrops(DataInputStream in) throws IOException {
+        Face[] faces = new Face[readCount(in)];
+        int pixelCount = 0;
+        for (int i = 0; i < faces.length; ++i) {
+            int trackId = in.readInt();
+            int width = readDimension(in);
+            int height = readDimension(in);
+            float[] landmarks = readLandmarks(in);
+            pixelCount += width * height;
+            if (pixelCount > MAX_CROP_PIXELS_PER_REQUEST) {
+                throw new ProtocolException("Crops exceed " + MAX_CROP_PIXELS_PER_REQUEST + " pixels");
+            }
+            byte[] bytes = new byte[4 * width * height];
+            in.readFully(bytes);
+            int[] pixels = new int[width * height];
+            ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(pixels);
+            faces[i] = new Face(trackId, new FaceInput(pixels, width, height, landmarks));
+        }
+        return faces;
+    }
+
+    private static Face[] readNv21(DataInputStream in) throws IOException {
+        int width = readDimension(in);
+        int height = readDimension(in);
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            throw new ProtocolException("NV21 frames must have even dimensions");
+        }
+        byte[] frame = new byte[width * height * 3 / 2];
+        in.readFully(frame);
+        int count = readCount(in);
+        int[] trackIds = new int[count];
+        int[] boxes = new int[4 * count];
+        float[][] landmarks = new float[count][];
+        // Boxes are all read and checked first, so that no crop is converted for a request over the limit
+        int pixelCount = 0;
+        for (int i = 0; i < count; ++i) {
+            trackIds[i] = in.readInt();
+            int left = Math.max(0, in.readInt());
+            int top = Math.max(0, in.readInt());
+            int right = Math.min(width, in.readInt());
+            int bottom = Math.min(height, in.readInt());
+            landmarks[i] = readLandmarks(in);
+            if (right <= left || bottom <= top) {
+                throw new ProtocolException("Empty face box " + i);
+            }
+            pixelCount += (right - left) * (bottom - top);
+            if (pixelCount > MAX_CROP_PIXELS_PER_REQUEST) {
+                throw new ProtocolException("Crops exceed " + MAX_CROP_PIXELS_PER_REQUEST + " pixels");
+            }
+            boxes[4 * i] = left;
+            boxes[4 * i + 1] = top;
+            boxes[4 * i + 2] = right;
+            boxes[4 * i + 3] = bottom;
+        }
+        Face[] faces = new Face[count];
+        for (int i = 0; i < count; ++i) {
+            int left = boxes[4 * i];
+            int top = boxes[4 * i + 1];
+            int right = boxes[4 * i + 2];
+            int bottom = boxes[4 * i + 3];
+            if (landmarks[i] != null) {
+                for (int j = 0; j < FaceAligner.LANDMARK_ARRAY_SIZE; j += 2) {
+                    landmarks[i][j] -= left;
+                    landmarks[i][j + 1] -= top;
+                }
+            }
+            int[] pixels = Nv21Crop.toArgb(frame, width, height, left, top, right, bottom);
+            faces[i] = new Face(trackIds[i], new FaceInput(pixels, right - left, bottom - top, landmarks[i]));
+        }
+        return faces;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FACES_PER_REQUEST) {
+            throw new ProtocolException("Face count must be within 0 and " + MAX_FACES_PER_REQUEST + ", got " + count);
+        }
+        return count;
+    }
+
+    private static int readDimension(DataInputStream in) throws IOException {
+        int dimension = in.readInt();
+        if (dimension < 1 || dimension > MAX_DIMENSION) {
+            throw new ProtocolException("Dimension must be within 1 and " + MAX_DIMENSION + ", got " + dimension);
+        }
+        return dimension;
+    }
+
+    private static float[] readLandmarks(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        float[] landmarks = new float[FaceAligner.LANDMARK_ARRAY_SIZE];
+        for (int i = 0; i < landmarks.length; ++i) {
+            landmarks[i] = in.readFloat();
+        }
+        return landmarks;
+    }
+
+    static void writeLandmarks(DataOutputStream out, float[] landmarks) throws IOException {
+        out.writeBoolean(landmarks != null);
+        if (landmarks != null) {
+            for (int i = 0; i < FaceAligner.LANDMARK_ARRAY_SIZE; ++i) {
+                out.writeFloat(landmarks[i]);
+            }
+        }
+    }
+
+    static void writeStatus(DataOutputStream out, int status, String message) throws IOException {
+        out.writeInt(status);
+        out.writeUTF(message);
+        out.flush();
+    }
+}
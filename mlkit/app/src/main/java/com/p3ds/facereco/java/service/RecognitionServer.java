@@ -0,0 +1,313 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.service;
+
+import com.p3ds.facereco.java.facerecognition.FaceInput;
+import com.p3ds.facereco.java.facerecognition.LabelStore;
+import com.p3ds.facereco.java.facerecognition.ModelManifest;
+import com.p3ds.facereco.java.facerecognition.RecognitionEngine;
+import com.p3ds.facereco.java.facerecognition.RecognitionModel;
+import com.p3ds.facereco.java.facerecognition.ScoreSmoother;
+import com.p3ds.facereco.java.facerecognition.TopK;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves face recognition on localhost, for deployments where frames come from IP cameras rather
+ * than from the device camera. Runs the same {@link RecognitionEngine} as the app, on a model
+ * directory described by a {@link ModelManifest}. See {@link RecognitionProtocol} for the wire
+ * format.
+ *
+ * <p>Every connection is served by its own thread, which reads a request, admits its faces and
+ * waits for their results. A single inference thread batches the admitted faces of all clients,
+ * up to {@value #MAX_BATCH} faces or {@value #BATCH_WINDOW_MS} ms after the first one. Admission
+ * is bounded: a request whose faces do not fit in the remaining capacity is answered with
+ * {@link RecognitionProtocol#STATUS_BUSY} right away instead of queueing up latency.
+ *
+ * <pre>
+ * java com.p3ds.facereco.java.service.RecognitionServer &lt;model directory&gt; [port] [admission capacity]
+ * </pre>
+ */
+public class RecognitionServer implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(RecognitionServer.class.getName());
+
+    public static final int DEFAULT_PORT = 8589;
+
+    /**
+     * Default number of faces admitted and not answered yet, over all clients.
+     */
+    public static final int DEFAULT_ADMISSION_CAPACITY = 256;
+
+    private static final int MAX_BATCH = 8;
+    private static final long BATCH_WINDOW_MS = 5;
+    private static final int MAX_CLIENTS = 32;
+
+    /**
+     * Smoothers kept per connection; beyond, the oldest tracks are assumed gone and all are reset.
+     */
+    private static final int MAX_TRACKS_PER_CLIENT = 256;
+
+    private static final int WARM_UP_RUNS = 2;
+
+    /**
+     * An admitted face, waiting for or going through inference.
+     */
+    private static class Job {
+        final FaceInput face;
+        final TopK result;
+        final CountDownLatch done;
+        volatile boolean failed;
+
+        Job(FaceInput face, int topK, CountDownLatch done) {
+            this.face = face;
+            this.result = new TopK(topK);
+            this.done = done;
+        }
+    }
+
+    private final RecognitionModel model;
+    private final RecognitionEngine engine;
+    private final ServerSocket serverSocket;
+    private final Semaphore admission;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService clients = Executors.newFixedThreadPool(MAX_CLIENTS);
+    private final Thread acceptor = new Thread(this::acceptClients, "RecognitionServer-accept");
+    private final Thread batcher = new Thread(this::runBatches, "RecognitionServer-inference");
+
+    private volatile boolean closed;
+
+    /**
+     * Binds the server to the loopback interface. Nothing is served before {@link #start()}.
+     *
+     * @param model             model to serve, owned by the server from now on
+     * @param port              port to listen on, 0 for any free port
+     * @param admissionCapacity number of faces admitted and not answered yet, over all clients
+     */
+    public RecognitionServer(RecognitionModel model, int port, int admissionCapacity) throws IOException {
+        this.model = model;
+        this.engine = new RecognitionEngine(model);
+        this.admission = new Semaphore(admissionCapacity);
+        this.serverSocket = new ServerSocket(port, MAX_CLIENTS, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void start() {
+        batcher.start();
+        acceptor.start();
+        LOG.info("Serving model v" + model.getVersion() + " on port " + getPort());
+    }
+
+    private void acceptClients() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                clients.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.log(Level.WARNING, "Cannot accept a client", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Map<Integer, ScoreSmoother> smoothers = new HashMap<>();
+        try (Socket client = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            while (!closed) {
+                RecognitionProtocol.Request request;
+                try {
+                    request = RecognitionProtocol.readRequest(in);
+                } catch (EOFException e) {
+                    return;
+                } catch (ProtocolException e) {
+                    RecognitionProtocol.writeStatus(out, RecognitionProtocol.STATUS_ERROR, e.getMessage());
+                    return;
+                }
+                int count = request.faces.length;
+                if (!admission.tryAcquire(count)) {
+                    RecognitionProtocol.writeStatus(out, RecognitionProtocol.STATUS_BUSY,
+                            "Admission queue full");
+                    continue;
+                }
+                Job[] jobs = new Job[count];
+                try {
+                    CountDownLatch done = new CountDownLatch(count);
+                    for (int i = 0; i < count; ++i) {
+                        RecognitionProtocol.Face face = request.faces[i];
+                        if (face.trackId != RecognitionProtocol.NO_TRACK) {
+                            face.input.smoother = smoother(smoothers, face.trackId);
+                        }
+                        jobs[i] = new Job(face.input, request.topK, done);
+                        queue.add(jobs[i]);
+                    }
+                    done.await();
+                } finally {
+                    admission.release(count);
+                }
+                writeResults(out, jobs, model.getLabels());
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Client connection lost", e);
+        } catch (InterruptedException e) {
+            // Server closing
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ScoreSmoother smoother(Map<Integer, ScoreSmoother> smoothers, int trackId) {
+        ScoreSmoother smoother = smoothers.get(trackId);
+        if (smoother == null) {
+            if (smoothers.size() >= MAX_TRACKS_PER_CLIENT) {
+                smoothers.clear();
+            }
+            smoother = new ScoreSmoother(model.getOutputSize());
+            smoothers.put(trackId, smoother);
+        }
+        return smoother;
+    }
+
+    private static void writeResults(DataOutputStream out, Job[] jobs, LabelStore labels) throws IOException {
+        for (Job job : jobs) {
+            if (job.failed) {
+                RecognitionProtocol.writeStatus(out, RecognitionProtocol.STATUS_ERROR, "Inference failed");
+                return;
+            }
+        }
+        out.writeInt(RecognitionProtocol.STATUS_OK);
+        out.writeInt(jobs.length);
+        for (Job job : jobs) {
+            out.writeInt(job.result.size());
+            for (int i = 0; i < job.result.size(); ++i) {
+                int id = job.result.getId(i);
+                out.writeInt(id);
+                out.writeFloat(job.result.getScore(i));
+                out.writeUTF(labels.getName(id));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Inference loop: takes the first waiting face, gathers more for up to
+     * {@value #BATCH_WINDOW_MS} ms and recognizes them together.
+     */
+    private void runBatches() {
+        Job[] batch = new Job[MAX_BATCH];
+        FaceInput[] faces = new FaceInput[MAX_BATCH];
+        TopK[] results = new TopK[MAX_BATCH];
+        try {
+            while (!closed) {
+                Job first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch[0] = first;
+                int count = 1;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                while (count < MAX_BATCH) {
+                    Job next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch[count++] = next;
+                }
+                for (int i = 0; i < count; ++i) {
+                    faces[i] = batch[i].face;
+                    results[i] = batch[i].result;
+                }
+                try {
+                    engine.recognize(faces, count, results);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.SEVERE, "Inference failed for a batch of " + count, e);
+                    for (int i = 0; i < count; ++i) {
+                        batch[i].failed = true;
+                    }
+                }
+                for (int i = 0; i < count; ++i) {
+                    batch[i].done.countDown();
+                    batch[i] = null;
+                    faces[i] = null;
+                    results[i] = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closing
+        }
+    }
+
+    /**
+     * Stops serving, drops the connections and releases the model.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        clients.shutdownNow();
+        batcher.interrupt();
+        try {
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        model.release();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: RecognitionServer <model directory> [port] [admission capacity]");
+            System.exit(2);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int admissionCapacity = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ADMISSION_CAPACITY;
+        RecognitionModel model = RecognitionModel.fromManifest(ModelManifest.read(new File(args[0])));
+        model.warmUp(WARM_UP_RUNS);
+        RecognitionServer server = new RecognitionServer(model, port, admissionCapacity);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot close the server", e);
+            }
+        }));
+        server.start();
+    }
+}
@@ -0,0 +1,199 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Checks {@link FaceAligner} against a reference kernel that interpolates the raw channel values
+ * and normalizes afterwards, as the aligner did before its lookup table.
+ */
+public class FaceAlignerTest {
+
+    private static final float TOLERANCE = 1e-6f;
+
+    private static final float MEAN = 128;
+    private static final float STD = 128;
+
+    private static final int[][] SOURCE_SIZES = {{1, 1}, {2, 3}, {37, 53}, {160, 160}, {640, 480}};
+    private static final int[][] TENSOR_SIZES = {{224, 224}, {160, 112}};
+
+    @Test
+    public void regionMatchesReference() {
+        Random random = new Random(1);
+        for (int[] source : SOURCE_SIZES) {
+            for (int[] tensor : TENSOR_SIZES) {
+                int[] argb = randomPixels(random, source[0], source[1]);
+                FaceAligner aligner = new FaceAligner(tensor[0], tensor[1], MEAN, STD);
+                aligner.setRegion(source[0], source[1]);
+                float m00 = (float) source[0] / tensor[0];
+                float m11 = (float) source[1] / tensor[1];
+                float[] transform = {m00, 0, 0.5f * m00 - 0.5f, 0, m11, 0.5f * m11 - 0.5f};
+                assertWarp(aligner, argb, source[0], source[1], tensor[0], tensor[1], transform);
+            }
+        }
+    }
+
+    @Test
+    public void landmarksMatchReference() {
+        Random random = new Random(2);
+        for (int[] tensor : TENSOR_SIZES) {
+            for (int i = 0; i < 20; ++i) {
+                int width = 64 + random.nextInt(600);
+                int height = 64 + random.nextInt(400);
+                int[] argb = randomPixels(random, width, height);
+                float[] landmarks = new float[FaceAligner.LANDMARK_ARRAY_SIZE];
+                for (int j = 0; j < landmarks.length; j += 2) {
+                    landmarks[j] = random.nextFloat() * width;
+                    landmarks[j + 1] = random.nextFloat() * height;
+                }
+                FaceAligner aligner = new FaceAligner(tensor[0], tensor[1], MEAN, STD);
+                assertTrue(aligner.setLandmarks(landmarks));
+                float[] transform = referenceFit(landmarks, tensor[0], tensor[1]);
+                assertWarp(aligner, argb, width, height, tensor[0], tensor[1], transform);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsCollapsedLandmarks() {
+        FaceAligner aligner = new FaceAligner(224, 224, MEAN, STD);
+        assertFalse(aligner.setLandmarks(new float[]{10, 10, 10, 10, 10, 10}));
+        assertFalse(aligner.setLandmarks(new float[]{Float.NaN, 0, 1, 0, 0, 1}));
+    }
+
+    @Test
+    public void writesFromTheTensorPosition() {
+        int[] argb = randomPixels(new Random(3), 50, 40);
+        FaceAligner aligner = new FaceAligner(8, 8, MEAN, STD);
+        aligner.setRegion(50, 40);
+        ByteBuffer out = ByteBuffer.allocateDirect(4 * (2 * 8 * 8 * 3)).order(ByteOrder.nativeOrder());
+        aligner.warp(argb, 50, 40, out);
+        assertEquals(4 * 8 * 8 * 3, out.position());
+        aligner.warp(argb, 50, 40, out);
+        assertEquals(out.capacity(), out.position());
+        for (int i = 0; i < 8 * 8 * 3; ++i) {
+            assertEquals(out.getFloat(4 * i), out.getFloat(4 * (i + 8 * 8 * 3)), 0);
+        }
+    }
+
+    private static void assertWarp(FaceAligner aligner, int[] argb, int width, int height,
+                                   int outWidth, int outHeight, float[] transform) {
+        ByteBuffer out = ByteBuffer.allocateDirect(4 * outWidth * outHeight * 3).order(ByteOrder.nativeOrder());
+        aligner.warp(argb, width, height, out);
+        float[] expected = referenceWarp(argb, width, height, outWidth, outHeight, transform);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(width + "x" + height + " to " + outWidth + "x" + outHeight + " at " + i,
+                    expected[i], out.getFloat(4 * i), TOLERANCE);
+        }
+    }
+
+    /**
+     * Least squares similarity from the tensor template to the landmarks, as fitted by the aligner.
+     *
+     * @return {@code m00, m01, tx, m10, m11, ty}
+     */
+    private static float[] referenceFit(float[] landmarks, int outWidth, int outHeight) {
+        float[] template = {
+                0.68f * outWidth, 0.40f * outHeight,
+                0.32f * outWidth, 0.40f * outHeight,
+                0.50f * outWidth, 0.76f * outHeight,
+        };
+        float dstMeanX = 0;
+        float dstMeanY = 0;
+        float srcMeanX = 0;
+        float srcMeanY = 0;
+        for (int i = 0; i < template.length; i += 2) {
+            dstMeanX += template[i];
+            dstMeanY += template[i + 1];
+            srcMeanX += landmarks[i];
+            srcMeanY += landmarks[i + 1];
+        }
+        dstMeanX /= 3;
+        dstMeanY /= 3;
+        srcMeanX /= 3;
+        srcMeanY /= 3;
+        float norm = 0;
+        float dot = 0;
+        float cross = 0;
+        for (int i = 0; i < template.length; i += 2) {
+            float dx = template[i] - dstMeanX;
+            float dy = template[i + 1] - dstMeanY;
+            float sx = landmarks[i] - srcMeanX;
+            float sy = landmarks[i + 1] - srcMeanY;
+            norm += dx * dx + dy * dy;
+            dot += dx * sx + dy * sy;
+            cross += dx * sy - dy * sx;
+        }
+        float a = dot / norm;
+        float b = cross / norm;
+        return new float[]{
+                a, -b, srcMeanX - (a * dstMeanX - b * dstMeanY),
+                b, a, srcMeanY - (b * dstMeanX + a * dstMeanY),
+        };
+    }
+
+    /**
+     * Bilinear sampling of the raw channel values, clamped to the border, normalized afterwards.
+     */
+    private static float[] referenceWarp(int[] argb, int width, int height, int outWidth, int outHeight,
+                                         float[] transform) {
+        float[] out = new float[outWidth * outHeight * 3];
+        int maxX = width - 1;
+        int maxY = height - 1;
+        int i = 0;
+        for (int v = 0; v < outHeight; ++v) {
+            for (int u = 0; u < outWidth; ++u) {
+                float sx = transform[0] * u + (transform[1] * v + transform[2]);
+                float sy = transform[3] * u + (transform[4] * v + transform[5]);
+                sx = Math.max(0, Math.min(maxX, sx));
+                sy = Math.max(0, Math.min(maxY, sy));
+                int x0 = (int) sx;
+                int y0 = (int) sy;
+                int x1 = Math.min(x0 + 1, maxX);
+                int y1 = Math.min(y0 + 1, maxY);
+                float fx = sx - x0;
+                float fy = sy - y0;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    float c00 = (argb[y0 * width + x0] >> shift) & 0xFF;
+                    float c01 = (argb[y0 * width + x1] >> shift) & 0xFF;
+                    float c10 = (argb[y1 * width + x0] >> shift) & 0xFF;
+                    float c11 = (argb[y1 * width + x1] >> shift) & 0xFF;
+                    float top = c00 + (c01 - c00) * fx;
+                    float bottom = c10 + (c11 - c10) * fx;
+                    out[i++] = (top + (bottom - top) * fy - MEAN) / STD;
+                }
+            }
+        }
+        return out;
+    }
+
+    private static int[] randomPixels(Random random, int width, int height) {
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; ++i) {
+            argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return argb;
+    }
+}
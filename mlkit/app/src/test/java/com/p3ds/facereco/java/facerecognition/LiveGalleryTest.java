@@ -0,0 +1,255 @@
+/* Copyright 2018 P3DS. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.p3ds.facereco.java.facerecognition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Round trips of {@link GalleryDelta}s and checkpoints through a {@link LiveGallery}, and the
+ * identity IDs both must reject.
+ */
+public class LiveGalleryTest {
+
+    private static final int EMBEDDING_SIZE = 4;
+    private static final int MODEL_VERSION = 3;
+    private static final byte[] KEY = "test key".getBytes(StandardCharsets.UTF_8);
+    private static final String LABELS = "alice\nbob\n";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("live_gallery", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * A change of a delta, written by {@link #writeDelta}.
+     */
+    private static class Change {
+        final int op;
+        final int identityId;
+        final String name;
+        final float[] templates;
+
+        Change(int op, int identityId, String name, float[] templates) {
+            this.op = op;
+            this.identityId = identityId;
+            this.name = name;
+            this.templates = templates;
+        }
+    }
+
+    private static float[] unit(int axis) {
+        float[] vector = new float[EMBEDDING_SIZE];
+        vector[axis] = 1;
+        return vector;
+    }
+
+    private static LabelStore labels() throws IOException {
+        return LabelStore.fromText(new ByteArrayInputStream(LABELS.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Alice and Bob, along the first two axes.
+     */
+    private static LiveGallery gallery(LabelStore labels) {
+        float[] embeddings = new float[2 * EMBEDDING_SIZE];
+        System.arraycopy(unit(0), 0, embeddings, 0, EMBEDDING_SIZE);
+        System.arraycopy(unit(1), 0, embeddings, EMBEDDING_SIZE, EMBEDDING_SIZE);
+        return new LiveGallery(new FaceGallery(EMBEDDING_SIZE, new int[] {0, 1}, embeddings), labels, 0);
+    }
+
+    private File writeDelta(String name, long fromVersion, long toVersion, Change... changes)
+            throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x50334744).putInt(2).putInt(EMBEDDING_SIZE).putInt(MODEL_VERSION)
+                .putLong(fromVersion).putLong(toVersion).putInt(changes.length);
+        bytes.write(header.array());
+        for (Change change : changes) {
+            byte[] encoded = change.name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(16 + encoded.length + 4 * change.templates.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(change.op).putInt(change.identityId).putInt(encoded.length).put(encoded)
+                    .putInt(change.templates.length / EMBEDDING_SIZE);
+            for (float value : change.templates) {
+                buffer.putFloat(value);
+            }
+            bytes.write(buffer.array());
+        }
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+        bytes.write(mac.doFinal(bytes.toByteArray()));
+        File file = new File(directory, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes.toByteArray());
+        }
+        return file;
+    }
+
+    private static void assertMatch(LiveGallery gallery, float[] embedding, int identityId) {
+        TopK matches = new TopK(1);
+        gallery.match(embedding, matches);
+        assertEquals(1, matches.size());
+        assertEquals(identityId, matches.getId(0));
+        assertEquals(1, matches.getScore(0), 1e-6f);
+    }
+
+    /**
+     * Enrolls Carol along the third axis and moves Bob to the fourth.
+     */
+    private File writeFirstDelta() throws Exception {
+        return writeDelta("1.delta", 0, 1,
+                new Change(GalleryDelta.ENROLL, 2, "carol", unit(2)),
+                new Change(GalleryDelta.UPDATE, 1, "", unit(3)));
+    }
+
+    private static void assertFirstDelta(LiveGallery gallery, LabelStore labels) {
+        assertEquals(1, gallery.getVersion());
+        assertMatch(gallery, unit(0), 0);
+        assertMatch(gallery, unit(2), 2);
+        assertMatch(gallery, unit(3), 1);
+        TopK matches = new TopK(1);
+        gallery.match(unit(1), matches);
+        assertTrue(matches.size() == 0 || matches.getScore(0) < 0.5f);
+        assertEquals("carol", labels.getName(2));
+        assertEquals("bob", labels.getName(1));
+    }
+
+    @Test
+    public void appliesDelta() throws Exception {
+        LabelStore labels = labels();
+        LiveGallery gallery = gallery(labels);
+        GalleryDelta delta = GalleryDelta.read(writeFirstDelta(), KEY, EMBEDDING_SIZE, labels.size());
+        assertEquals(MODEL_VERSION, delta.getModelVersion());
+        assertTrue(gallery.apply(delta));
+        assertFirstDelta(gallery, labels);
+        // A delta applies to its version only
+        assertFalse(gallery.apply(delta));
+    }
+
+    @Test
+    public void restoresCheckpoint() throws Exception {
+        LabelStore labels = labels();
+        LiveGallery gallery = gallery(labels);
+        gallery.apply(GalleryDelta.read(writeFirstDelta(), KEY, EMBEDDING_SIZE, labels.size()));
+        File checkpoint = new File(directory, "checkpoint");
+        gallery.writeCheckpoint(checkpoint);
+
+        LabelStore restoredLabels = labels();
+        LiveGallery restored = gallery(restoredLabels);
+        assertTrue(restored.readCheckpoint(checkpoint));
+        assertFirstDelta(restored, restoredLabels);
+    }
+
+    @Test
+    public void enrollsTemplatesOfLabeledIdentity() throws Exception {
+        LabelStore labels = labels();
+        LiveGallery gallery = gallery(labels);
+        File file = writeDelta("1.delta", 0, 1, new Change(GalleryDelta.ENROLL, 0, "", unit(2)));
+        assertTrue(gallery.apply(GalleryDelta.read(file, KEY, EMBEDDING_SIZE, labels.size())));
+        assertMatch(gallery, unit(2), 0);
+        assertEquals("alice", labels.getName(0));
+    }
+
+    @Test
+    public void rejectsNegativeIdentityId() throws Exception {
+        File file = writeDelta("1.delta", 0, 1, new Change(GalleryDelta.ENROLL, -1, "mallory", unit(2)));
+        assertUnreadable(file);
+        file = writeDelta("2.delta", 0, 1, new Change(GalleryDelta.REMOVE, -1, "", new float[0]));
+        assertUnreadable(file);
+    }
+
+    @Test
+    public void rejectsRenamingLabeledIdentity() throws Exception {
+        File file = writeDelta("1.delta", 0, 1, new Change(GalleryDelta.ENROLL, 1, "mallory", unit(2)));
+        assertUnreadable(file);
+    }
+
+    @Test
+    public void rejectsBadSignature() throws Exception {
+        File file = writeFirstDelta();
+        try {
+            GalleryDelta.read(file, "other key".getBytes(StandardCharsets.UTF_8), EMBEDDING_SIZE, 2);
+            fail("Read a delta signed with another key");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsCheckpointWithNegativeIdentityId() throws Exception {
+        LabelStore labels = labels();
+        LiveGallery gallery = gallery(labels);
+        gallery.apply(GalleryDelta.read(writeFirstDelta(), KEY, EMBEDDING_SIZE, labels.size()));
+        File checkpoint = new File(directory, "checkpoint");
+        gallery.writeCheckpoint(checkpoint);
+        // The hidden identity, Bob, follows the header and the hidden count
+        try (RandomAccessFile out = new RandomAccessFile(checkpoint, "rw")) {
+            out.seek(24);
+            out.writeInt(-1);
+        }
+        LiveGallery restored = gallery(labels());
+        try {
+            restored.readCheckpoint(checkpoint);
+            fail("Restored a checkpoint with a negative identity ID");
+        } catch (IOException expected) {
+            // Expected
+        }
+        assertEquals(0, restored.getVersion());
+    }
+
+    private static void assertUnreadable(File file) {
+        try {
+            GalleryDelta.read(file, KEY, EMBEDDING_SIZE, 2);
+            fail("Read " + file);
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,137 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Round trips of {@link CoordinateTransform} between image, buffer and view space. */
+public class CoordinateTransformTest {
+
+  private static final float EPSILON = 1e-3f;
+
+  private static final int BUFFER_WIDTH = 640;
+  private static final int BUFFER_HEIGHT = 480;
+
+  /** Overlay sizes, matching neither the preview size nor its aspect ratio. */
+  private static final int[][] VIEW_SIZES = {{640, 480}, {1080, 1920}, {1080, 1440}, {720, 720}};
+
+  /** Points of an upright image, its corners and center included. */
+  private static float[] imagePoints(int imageWidth, int imageHeight) {
+    return new float[] {
+      0, 0,
+      imageWidth, 0,
+      0, imageHeight,
+      imageWidth, imageHeight,
+      imageWidth / 2f, imageHeight / 2f,
+      17.5f, imageHeight - 3.25f,
+    };
+  }
+
+  @Test
+  public void forFrameComposedWithInvertIsIdentity() {
+    for (int rotation = 0; rotation < 4; ++rotation) {
+      CoordinateTransform imageToBuffer =
+          CoordinateTransform.forFrame(BUFFER_WIDTH, BUFFER_HEIGHT, rotation);
+      float[] expected = imagePoints(imageWidth(rotation), imageHeight(rotation));
+
+      float[] points = expected.clone();
+      imageToBuffer.mapPoints(points);
+      imageToBuffer.invert().mapPoints(points);
+      assertArrayEquals("rotation " + rotation, expected, points, EPSILON);
+
+      points = expected.clone();
+      imageToBuffer.mapPoints(points);
+      imageToBuffer.inverseMapPoints(points);
+      assertArrayEquals("rotation " + rotation, expected, points, EPSILON);
+    }
+  }
+
+  @Test
+  public void forFrameMapsTheImageOntoTheBuffer() {
+    for (int rotation = 0; rotation < 4; ++rotation) {
+      float[] rect = {0, 0, imageWidth(rotation), imageHeight(rotation)};
+      CoordinateTransform.forFrame(BUFFER_WIDTH, BUFFER_HEIGHT, rotation).mapRect(rect);
+      assertArrayEquals(
+          "rotation " + rotation, new float[] {0, 0, BUFFER_WIDTH, BUFFER_HEIGHT}, rect, EPSILON);
+    }
+  }
+
+  @Test
+  public void forViewComposedWithInvertIsIdentity() {
+    for (int rotation = 0; rotation < 4; ++rotation) {
+      int imageWidth = imageWidth(rotation);
+      int imageHeight = imageHeight(rotation);
+      for (int[] view : VIEW_SIZES) {
+        for (boolean mirror : new boolean[] {false, true}) {
+          String message = "rotation " + rotation + ", view " + view[0] + "x" + view[1]
+              + (mirror ? ", front" : ", back");
+          CoordinateTransform imageToView =
+              CoordinateTransform.forView(imageWidth, imageHeight, view[0], view[1], mirror);
+          float[] expected = imagePoints(imageWidth, imageHeight);
+
+          float[] points = expected.clone();
+          imageToView.mapPoints(points);
+          imageToView.invert().mapPoints(points);
+          assertArrayEquals(message, expected, points, EPSILON);
+
+          float[] rect = {0, 0, imageWidth, imageHeight};
+          imageToView.mapRect(rect);
+          assertArrayEquals(message, new float[] {0, 0, view[0], view[1]}, rect, EPSILON);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void bufferToViewRoundTrip() {
+    for (int rotation = 0; rotation < 4; ++rotation) {
+      int imageWidth = imageWidth(rotation);
+      int imageHeight = imageHeight(rotation);
+      CoordinateTransform imageToBuffer =
+          CoordinateTransform.forFrame(BUFFER_WIDTH, BUFFER_HEIGHT, rotation);
+      for (int[] view : VIEW_SIZES) {
+        for (boolean mirror : new boolean[] {false, true}) {
+          CoordinateTransform imageToView =
+              CoordinateTransform.forView(imageWidth, imageHeight, view[0], view[1], mirror);
+          float[] expected = {0, 0, 100.5f, 37.25f, BUFFER_WIDTH, BUFFER_HEIGHT};
+          float[] points = expected.clone();
+          imageToBuffer.inverseMapPoints(points);
+          imageToView.mapPoints(points);
+          imageToView.inverseMapPoints(points);
+          imageToBuffer.mapPoints(points);
+          assertArrayEquals("rotation " + rotation, expected, points, EPSILON);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void mirroredViewFlipsHorizontally() {
+    CoordinateTransform imageToView = CoordinateTransform.forView(480, 640, 1080, 1440, true);
+    assertEquals(1080, imageToView.mapX(0), EPSILON);
+    assertEquals(0, imageToView.mapX(480), EPSILON);
+    assertEquals(1440, imageToView.mapY(640), EPSILON);
+  }
+
+  private static int imageWidth(int rotation) {
+    return rotation % 2 == 0 ? BUFFER_WIDTH : BUFFER_HEIGHT;
+  }
+
+  private static int imageHeight(int rotation) {
+    return rotation % 2 == 0 ? BUFFER_HEIGHT : BUFFER_WIDTH;
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import static org.junit.Assert.assertEquals;
+
+import com.p3ds.facereco.java.processing.DeviceConditions.Thermal;
+import com.p3ds.facereco.java.processing.ThrottlingPolicy.Level;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Hysteresis of {@link ThrottlingPolicy#evaluate}, driven by a {@link FixedConditionSource}. */
+public class ThrottlingPolicyTest {
+
+  private static final long COOL_DOWN_MS = ThrottlingPolicy.DEFAULT_COOL_DOWN_MS;
+
+  private FixedConditionSource source;
+  private List<Level> changes;
+  private ThrottlingPolicy policy;
+
+  @Before
+  public void setUp() {
+    source = new FixedConditionSource(conditions(Thermal.NONE));
+    changes = new ArrayList<>();
+    policy = new ThrottlingPolicy(source, changes::add, COOL_DOWN_MS);
+  }
+
+  private static DeviceConditions conditions(Thermal thermal) {
+    return new DeviceConditions(thermal, DeviceConditions.UNKNOWN_BATTERY, true, false);
+  }
+
+  @Test
+  public void startsAtTheLevelOfTheConditions() {
+    source.set(conditions(Thermal.MODERATE));
+    assertEquals(Level.LOW, policy.evaluate(0));
+    assertEquals(1, changes.size());
+    assertEquals(Level.LOW, changes.get(0));
+  }
+
+  @Test
+  public void escalatesImmediately() {
+    assertEquals(Level.NORMAL, policy.evaluate(0));
+    source.set(conditions(Thermal.SEVERE));
+    // Skips the levels in between, without waiting for a cool-down
+    assertEquals(Level.MINIMAL, policy.evaluate(1));
+    assertEquals(2, changes.size());
+    assertEquals(Level.MINIMAL, changes.get(1));
+  }
+
+  @Test
+  public void stepsDownOneLevelPerCoolDown() {
+    source.set(conditions(Thermal.SEVERE));
+    policy.evaluate(0);
+    source.set(conditions(Thermal.NONE));
+
+    // The cool-down starts with the first evaluation allowing a lighter level
+    long start = 1000;
+    assertEquals(Level.MINIMAL, policy.evaluate(start));
+    assertEquals(Level.MINIMAL, policy.evaluate(start + COOL_DOWN_MS - 1));
+    assertEquals(Level.LOW, policy.evaluate(start + COOL_DOWN_MS));
+    // Every step down needs a whole cool-down of its own
+    assertEquals(Level.LOW, policy.evaluate(start + 2 * COOL_DOWN_MS - 1));
+    assertEquals(Level.REDUCED, policy.evaluate(start + 2 * COOL_DOWN_MS));
+    assertEquals(Level.NORMAL, policy.evaluate(start + 3 * COOL_DOWN_MS));
+    assertEquals(Level.NORMAL, policy.evaluate(start + 4 * COOL_DOWN_MS));
+
+    assertEquals(4, changes.size());
+    assertEquals(Level.LOW, changes.get(1));
+    assertEquals(Level.REDUCED, changes.get(2));
+    assertEquals(Level.NORMAL, changes.get(3));
+  }
+
+  @Test
+  public void stopsStepDownAtTheTargetLevel() {
+    source.set(conditions(Thermal.SEVERE));
+    policy.evaluate(0);
+    source.set(conditions(Thermal.MODERATE));
+
+    policy.evaluate(0);
+    assertEquals(Level.LOW, policy.evaluate(COOL_DOWN_MS));
+    assertEquals(Level.LOW, policy.evaluate(10 * COOL_DOWN_MS));
+    assertEquals(2, changes.size());
+  }
+
+  @Test
+  public void resetsCoolDownWhenConditionsBounceBack() {
+    source.set(conditions(Thermal.MODERATE));
+    policy.evaluate(0);
+
+    source.set(conditions(Thermal.NONE));
+    policy.evaluate(0);
+    // Back at the current level just before the cool-down ends
+    source.set(conditions(Thermal.MODERATE));
+    assertEquals(Level.LOW, policy.evaluate(COOL_DOWN_MS - 1));
+    source.set(conditions(Thermal.NONE));
+    // The cool-down restarts here rather than at 0
+    assertEquals(Level.LOW, policy.evaluate(COOL_DOWN_MS));
+    assertEquals(Level.LOW, policy.evaluate(2 * COOL_DOWN_MS - 1));
+    assertEquals(Level.REDUCED, policy.evaluate(2 * COOL_DOWN_MS));
+  }
+
+  @Test
+  public void resetsCoolDownOnEscalation() {
+    source.set(conditions(Thermal.MODERATE));
+    policy.evaluate(0);
+
+    source.set(conditions(Thermal.NONE));
+    policy.evaluate(0);
+    source.set(conditions(Thermal.CRITICAL));
+    assertEquals(Level.MINIMAL, policy.evaluate(COOL_DOWN_MS - 1));
+    source.set(conditions(Thermal.NONE));
+    assertEquals(Level.MINIMAL, policy.evaluate(COOL_DOWN_MS));
+    assertEquals(Level.MINIMAL, policy.evaluate(2 * COOL_DOWN_MS - 1));
+    assertEquals(Level.LOW, policy.evaluate(2 * COOL_DOWN_MS));
+  }
+}
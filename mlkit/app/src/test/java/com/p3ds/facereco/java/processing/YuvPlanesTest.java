@@ -0,0 +1,211 @@
+// Copyright 2018 P3DS
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.p3ds.facereco.java.processing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Converts synthetic frames laid out as padded I420, NV12 and NV21 with {@link YuvPlanes} and
+ * compares them to a floating point BT.601 conversion of the same samples.
+ */
+public class YuvPlanesTest {
+
+  private static final int WIDTH = 20;
+  private static final int HEIGHT = 14;
+  private static final int PADDING = 6;
+
+  /** Fixed point rounding may differ from the floating point reference by one level. */
+  private static final int TOLERANCE = 1;
+
+  /** Regions as {@code left, top, width, height}, odd offsets and sizes included. */
+  private static final int[][] REGIONS = {
+    {0, 0, WIDTH, HEIGHT}, {3, 5, 7, 9}, {1, 1, 1, 1}, {5, 0, 15, 13}, {WIDTH - 1, HEIGHT - 1, 1, 1},
+  };
+
+  /** Samples of a frame before they are laid out, chroma at half resolution. */
+  private static class Samples {
+    final int[] y = new int[WIDTH * HEIGHT];
+    final int[] u = new int[(WIDTH / 2) * (HEIGHT / 2)];
+    final int[] v = new int[(WIDTH / 2) * (HEIGHT / 2)];
+
+    Samples(Random random) {
+      for (int i = 0; i < y.length; ++i) {
+        y[i] = random.nextInt(256);
+      }
+      for (int i = 0; i < u.length; ++i) {
+        u[i] = random.nextInt(256);
+        v[i] = random.nextInt(256);
+      }
+    }
+  }
+
+  @Test
+  public void paddedI420() {
+    Samples samples = new Samples(new Random(1));
+    int yRowStride = WIDTH + PADDING;
+    int uvRowStride = WIDTH / 2 + PADDING;
+    ByteBuffer y = luma(samples, yRowStride);
+    ByteBuffer u = ByteBuffer.allocateDirect(uvRowStride * HEIGHT / 2);
+    ByteBuffer v = ByteBuffer.allocateDirect(uvRowStride * HEIGHT / 2);
+    fill(u, 0);
+    fill(v, 0);
+    for (int row = 0; row < HEIGHT / 2; ++row) {
+      for (int col = 0; col < WIDTH / 2; ++col) {
+        u.put(row * uvRowStride + col, (byte) samples.u[row * (WIDTH / 2) + col]);
+        v.put(row * uvRowStride + col, (byte) samples.v[row * (WIDTH / 2) + col]);
+      }
+    }
+    assertConversions(
+        samples, new YuvPlanes(WIDTH, HEIGHT, y, yRowStride, 1, u, v, uvRowStride, 1));
+  }
+
+  @Test
+  public void nv12() {
+    Samples samples = new Samples(new Random(2));
+    assertConversions(samples, semiPlanar(samples, false));
+  }
+
+  @Test
+  public void nv21() {
+    Samples samples = new Samples(new Random(3));
+    assertConversions(samples, semiPlanar(samples, true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsRegionsOutsideOfTheFrame() {
+    YuvPlanes planes = semiPlanar(new Samples(new Random(4)), true);
+    planes.toArgb(WIDTH - 2, 0, 3, 1, 0, new int[3]);
+  }
+
+  /**
+   * Chroma interleaved in one buffer with a pixel stride of 2, Cr first for NV21 and Cb first for
+   * NV12, rows padded like the luma.
+   */
+  private static YuvPlanes semiPlanar(Samples samples, boolean crFirst) {
+    int rowStride = WIDTH + PADDING;
+    ByteBuffer y = luma(samples, rowStride);
+    ByteBuffer uv = ByteBuffer.allocateDirect(rowStride * HEIGHT / 2);
+    fill(uv, 0);
+    for (int row = 0; row < HEIGHT / 2; ++row) {
+      for (int col = 0; col < WIDTH / 2; ++col) {
+        int index = row * rowStride + 2 * col;
+        int sample = row * (WIDTH / 2) + col;
+        uv.put(index, (byte) (crFirst ? samples.v[sample] : samples.u[sample]));
+        uv.put(index + 1, (byte) (crFirst ? samples.u[sample] : samples.v[sample]));
+      }
+    }
+    ByteBuffer first = uv.duplicate();
+    ByteBuffer second = uv.duplicate();
+    second.position(1);
+    second = second.slice();
+    return new YuvPlanes(
+        WIDTH,
+        HEIGHT,
+        y,
+        rowStride,
+        1,
+        crFirst ? second : first,
+        crFirst ? first : second,
+        rowStride,
+        2);
+  }
+
+  private static ByteBuffer luma(Samples samples, int rowStride) {
+    ByteBuffer y = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+    // Padding that would show if it were read
+    fill(y, 255);
+    for (int row = 0; row < HEIGHT; ++row) {
+      for (int col = 0; col < WIDTH; ++col) {
+        y.put(row * rowStride + col, (byte) samples.y[row * WIDTH + col]);
+      }
+    }
+    return y;
+  }
+
+  private static void fill(ByteBuffer buffer, int value) {
+    for (int i = 0; i < buffer.capacity(); ++i) {
+      buffer.put(i, (byte) value);
+    }
+  }
+
+  private static void assertConversions(Samples samples, YuvPlanes planes) {
+    for (int[] region : REGIONS) {
+      for (int rotation = 0; rotation < 4; ++rotation) {
+        int left = region[0];
+        int top = region[1];
+        int regionWidth = region[2];
+        int regionHeight = region[3];
+        int[] out = new int[regionWidth * regionHeight];
+        planes.toArgb(left, top, regionWidth, regionHeight, rotation, out);
+        boolean sideways = (rotation & 1) != 0;
+        int outWidth = sideways ? regionHeight : regionWidth;
+        for (int row = 0; row < regionHeight; ++row) {
+          for (int col = 0; col < regionWidth; ++col) {
+            int outX;
+            int outY;
+            switch (rotation) {
+              case 0:
+                outX = col;
+                outY = row;
+                break;
+              case 1:
+                outX = regionHeight - 1 - row;
+                outY = col;
+                break;
+              case 2:
+                outX = regionWidth - 1 - col;
+                outY = regionHeight - 1 - row;
+                break;
+              default:
+                outX = row;
+                outY = regionWidth - 1 - col;
+                break;
+            }
+            String message =
+                "region " + left + "," + top + " " + regionWidth + "x" + regionHeight
+                    + ", rotation " + rotation + ", pixel " + col + "," + row;
+            assertArgb(message, reference(samples, left + col, top + row), out[outY * outWidth + outX]);
+          }
+        }
+      }
+    }
+  }
+
+  /** Full range BT.601, as JPEG decodes NV21. */
+  private static int reference(Samples samples, int x, int y) {
+    double luma = samples.y[y * WIDTH + x];
+    int chroma = (y / 2) * (WIDTH / 2) + x / 2;
+    double cb = samples.u[chroma] - 128;
+    double cr = samples.v[chroma] - 128;
+    int r = clamp(luma + 1.402 * cr);
+    int g = clamp(luma - 0.344136 * cb - 0.714136 * cr);
+    int b = clamp(luma + 1.772 * cb);
+    return 0xFF000000 | (r << 16) | (g << 8) | b;
+  }
+
+  private static int clamp(double value) {
+    return (int) Math.max(0, Math.min(255, Math.round(value)));
+  }
+
+  private static void assertArgb(String message, int expected, int actual) {
+    assertEquals(message, 0xFF, actual >>> 24);
+    for (int shift = 0; shift <= 16; shift += 8) {
+      assertEquals(message, (expected >> shift) & 0xFF, (actual >> shift) & 0xFF, TOLERANCE);
+    }
+  }
+}